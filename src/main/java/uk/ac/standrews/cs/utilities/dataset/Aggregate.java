@@ -0,0 +1,406 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An aggregate function computed over the records in each group by
+ * {@link DataSet#groupBy(java.util.List, Aggregate...)}.
+ * <p>
+ * Sums, means, minima and maxima treat the values of a column as numbers, and
+ * ignore values that cannot be parsed as numbers. Where all the values are
+ * integers, sums are computed exactly. The result for a group with no numeric
+ * values is an empty string.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+public final class Aggregate {
+
+    private enum Function {
+        COUNT, SUM, MIN, MAX, MEAN, DISTINCT_COUNT
+    }
+
+    private final Function function;
+    private final String input_label;
+    private final String output_label;
+
+    private Aggregate(final Function function, final String input_label, final String output_label) {
+
+        this.function = function;
+        this.input_label = input_label;
+        this.output_label = output_label;
+    }
+
+    private Aggregate(final Function function, final String input_label) {
+
+        this(function, input_label, function.name().toLowerCase() + "(" + input_label + ")");
+    }
+
+    /**
+     * Gets an aggregate giving the number of records in each group, with the
+     * label "count".
+     *
+     * @return the aggregate
+     */
+    @SuppressWarnings("unused")
+    public static Aggregate count() {
+
+        return new Aggregate(Function.COUNT, null, "count");
+    }
+
+    /**
+     * Gets an aggregate giving the sum of the values in a column, with the
+     * label "sum(column)".
+     *
+     * @param label the label of the column
+     * @return the aggregate
+     */
+    @SuppressWarnings("unused")
+    public static Aggregate sum(final String label) {
+
+        return new Aggregate(Function.SUM, label);
+    }
+
+    /**
+     * Gets an aggregate giving the smallest numeric value in a column, with the
+     * label "min(column)".
+     *
+     * @param label the label of the column
+     * @return the aggregate
+     */
+    @SuppressWarnings("unused")
+    public static Aggregate min(final String label) {
+
+        return new Aggregate(Function.MIN, label);
+    }
+
+    /**
+     * Gets an aggregate giving the largest numeric value in a column, with the
+     * label "max(column)".
+     *
+     * @param label the label of the column
+     * @return the aggregate
+     */
+    @SuppressWarnings("unused")
+    public static Aggregate max(final String label) {
+
+        return new Aggregate(Function.MAX, label);
+    }
+
+    /**
+     * Gets an aggregate giving the mean of the numeric values in a column, with
+     * the label "mean(column)".
+     *
+     * @param label the label of the column
+     * @return the aggregate
+     */
+    @SuppressWarnings("unused")
+    public static Aggregate mean(final String label) {
+
+        return new Aggregate(Function.MEAN, label);
+    }
+
+    /**
+     * Gets an aggregate giving the number of distinct values in a column, with
+     * the label "distinct_count(column)".
+     *
+     * @param label the label of the column
+     * @return the aggregate
+     */
+    @SuppressWarnings("unused")
+    public static Aggregate distinctCount(final String label) {
+
+        return new Aggregate(Function.DISTINCT_COUNT, label);
+    }
+
+    /**
+     * Gets a copy of this aggregate with a different label for the result
+     * column.
+     *
+     * @param label the label
+     * @return the new aggregate
+     */
+    @SuppressWarnings("unused")
+    public Aggregate as(final String label) {
+
+        return new Aggregate(function, input_label, label);
+    }
+
+    /**
+     * Gets the label of the column aggregated.
+     *
+     * @return the label, or null for a count
+     */
+    public String getInputLabel() {
+
+        return input_label;
+    }
+
+    /**
+     * Gets the label of the result column.
+     *
+     * @return the label
+     */
+    public String getOutputLabel() {
+
+        return output_label;
+    }
+
+    /**
+     * Creates the state used to accumulate this aggregate for a single group.
+     *
+     * @return the state
+     */
+    State newState() {
+
+        switch (function) {
+            case COUNT:
+                return new Count();
+            case SUM:
+                return new Numeric(false);
+            case MEAN:
+                return new Numeric(true);
+            case MIN:
+                return new Extreme(false);
+            case MAX:
+                return new Extreme(true);
+            default:
+                return new DistinctCount();
+        }
+    }
+
+    /**
+     * Accumulates an aggregate over the values in a group. Partial states for
+     * parts of a group can be merged.
+     */
+    abstract static class State {
+
+        /**
+         * Adds a value.
+         *
+         * @param value the value, or null for a count
+         */
+        abstract void add(String value);
+
+        /**
+         * Merges the values added to another state of the same kind, which
+         * were found after those added to this state.
+         *
+         * @param other the other state
+         */
+        abstract void merge(State other);
+
+        /**
+         * Gets the value of the aggregate.
+         *
+         * @return the value
+         */
+        abstract String getResult();
+    }
+
+    private static class Count extends State {
+
+        private long count = 0;
+
+        @Override
+        void add(final String value) {
+
+            count++;
+        }
+
+        @Override
+        void merge(final State other) {
+
+            count += ((Count) other).count;
+        }
+
+        @Override
+        String getResult() {
+
+            return String.valueOf(count);
+        }
+    }
+
+    private static class Numeric extends State {
+
+        private final boolean mean;
+
+        private long count = 0;
+        private long integer_sum = 0;
+        private double sum = 0;
+        private boolean integral = true;
+
+        Numeric(final boolean mean) {
+
+            this.mean = mean;
+        }
+
+        @Override
+        void add(final String value) {
+
+            if (value == null) {
+                return;
+            }
+
+            final String trimmed = value.trim();
+
+            if (integral) {
+                try {
+                    integer_sum = Math.addExact(integer_sum, Long.parseLong(trimmed));
+                    count++;
+                    return;
+
+                } catch (final NumberFormatException | ArithmeticException e) {
+                    // Not an integer, or the sum is too large for a long, so continue with floating point.
+                }
+            }
+
+            final double number = parse(trimmed);
+            if (!Double.isNaN(number)) {
+                switchToFloatingPoint();
+                sum += number;
+                count++;
+            }
+        }
+
+        @Override
+        void merge(final State other) {
+
+            final Numeric numeric = (Numeric) other;
+
+            if (integral && numeric.integral) {
+                try {
+                    integer_sum = Math.addExact(integer_sum, numeric.integer_sum);
+                    count += numeric.count;
+                    return;
+
+                } catch (final ArithmeticException e) {
+                    // Continue with floating point.
+                }
+            }
+
+            switchToFloatingPoint();
+            sum += numeric.integral ? numeric.integer_sum : numeric.sum;
+            count += numeric.count;
+        }
+
+        @Override
+        String getResult() {
+
+            if (count == 0) {
+                return "";
+            }
+
+            if (mean) {
+                return format((integral ? (double) integer_sum : sum) / count);
+            }
+            return integral ? String.valueOf(integer_sum) : format(sum);
+        }
+
+        private void switchToFloatingPoint() {
+
+            if (integral) {
+                sum = integer_sum;
+                integral = false;
+            }
+        }
+    }
+
+    private static class Extreme extends State {
+
+        private final boolean maximum;
+
+        private String best_value = null;
+        private double best_number;
+
+        Extreme(final boolean maximum) {
+
+            this.maximum = maximum;
+        }
+
+        @Override
+        void add(final String value) {
+
+            final double number = parse(value);
+
+            if (!Double.isNaN(number) && (best_value == null || (maximum ? number > best_number : number < best_number))) {
+                best_value = value;
+                best_number = number;
+            }
+        }
+
+        @Override
+        void merge(final State other) {
+
+            final Extreme extreme = (Extreme) other;
+            if (extreme.best_value != null) {
+                add(extreme.best_value);
+            }
+        }
+
+        @Override
+        String getResult() {
+
+            return best_value == null ? "" : best_value;
+        }
+    }
+
+    private static class DistinctCount extends State {
+
+        private final Set<String> values = new HashSet<>();
+
+        @Override
+        void add(final String value) {
+
+            values.add(value);
+        }
+
+        @Override
+        void merge(final State other) {
+
+            values.addAll(((DistinctCount) other).values);
+        }
+
+        @Override
+        String getResult() {
+
+            return String.valueOf(values.size());
+        }
+    }
+
+    private static double parse(final String value) {
+
+        if (value == null) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (final NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static String format(final double number) {
+
+        if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+            return String.valueOf((long) number);
+        }
+        return String.valueOf(number);
+    }
+}
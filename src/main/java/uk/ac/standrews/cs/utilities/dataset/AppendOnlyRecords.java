@@ -0,0 +1,28 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+/**
+ * Marker for a store of records that can only be appended to, so that each
+ * existing record always remains at the same position. A dataset selected or
+ * projected from a dataset whose records are held in such a store refers to
+ * the records by position, rather than holding the records themselves.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+public interface AppendOnlyRecords {
+}
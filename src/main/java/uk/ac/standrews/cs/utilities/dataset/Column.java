@@ -0,0 +1,342 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * The values of a single column in a {@link ColumnStore}.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+abstract class Column {
+
+    /**
+     * Gets the value at a given position.
+     *
+     * @param row_index the position
+     * @return the value
+     */
+    abstract String get(int row_index);
+
+    /**
+     * Sets the value at a given position, if it can be stored in this column.
+     *
+     * @param row_index the position
+     * @param value     the value
+     * @return true if the value was stored, or false if it cannot be stored in
+     * this column, in which case the column is unchanged
+     */
+    abstract boolean set(int row_index, String value);
+
+    /**
+     * Gets the number of values that can be stored without extending the
+     * column.
+     *
+     * @return the capacity
+     */
+    abstract int capacity();
+
+    /**
+     * Extends the column to hold at least a given number of values.
+     *
+     * @param capacity the required capacity
+     */
+    abstract void ensureCapacity(int capacity);
+
+    /**
+     * Creates a copy of the first values in this column.
+     *
+     * @param size the number of values to copy
+     * @return the new column
+     */
+    abstract Column copy(int size);
+
+    /**
+     * Creates a new column containing the values at the given positions.
+     *
+     * @param row_indices the positions
+     * @param count       the number of valid entries in the index array
+     * @return the new column
+     */
+    abstract Column gather(int[] row_indices, int count);
+
+    /**
+     * Gets a read-only view of the first values in this column.
+     *
+     * @param size the number of values
+     * @return the values
+     */
+    List<String> asList(final int size) {
+
+        return new ColumnView(size);
+    }
+
+    /**
+     * Converts the first values in this column to a plain column.
+     *
+     * @param size the number of values
+     * @return the new column
+     */
+    Plain toPlain(final int size) {
+
+        final Plain plain = new Plain(capacity());
+        for (int i = 0; i < size; i++) {
+            plain.values[i] = get(i);
+        }
+        return plain;
+    }
+
+    /**
+     * Column holding each value as a separate reference.
+     */
+    static class Plain extends Column {
+
+        private String[] values;
+
+        Plain(final int capacity) {
+
+            values = new String[Math.max(capacity, 1)];
+        }
+
+        Plain(final String[] values) {
+
+            this.values = values;
+        }
+
+        @Override
+        String get(final int row_index) {
+
+            return values[row_index];
+        }
+
+        @Override
+        boolean set(final int row_index, final String value) {
+
+            values[row_index] = value;
+            return true;
+        }
+
+        @Override
+        int capacity() {
+
+            return values.length;
+        }
+
+        @Override
+        void ensureCapacity(final int capacity) {
+
+            if (capacity > values.length) {
+                values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+            }
+        }
+
+        @Override
+        Column copy(final int size) {
+
+            return new Plain(Arrays.copyOf(values, Math.max(size, 1)));
+        }
+
+        @Override
+        Column gather(final int[] row_indices, final int count) {
+
+            final String[] gathered = new String[Math.max(count, 1)];
+            for (int i = 0; i < count; i++) {
+                gathered[i] = values[row_indices[i]];
+            }
+            return new Plain(gathered);
+        }
+
+        @Override
+        List<String> asList(final int size) {
+
+            return Collections.unmodifiableList(Arrays.asList(values).subList(0, size));
+        }
+    }
+
+    /**
+     * Column holding each distinct value once, in a dictionary, with each
+     * position holding the integer code of its value.
+     */
+    static class Dictionary extends Column {
+
+        private int[] codes;
+        private final List<String> dictionary;
+        private final Map<String, Integer> codes_by_value;
+        private final int max_dictionary_size;
+
+        /**
+         * @param capacity            the initial capacity
+         * @param max_dictionary_size the maximum number of distinct values
+         */
+        Dictionary(final int capacity, final int max_dictionary_size) {
+
+            this(new int[Math.max(capacity, 1)], new ArrayList<>(), new HashMap<>(), max_dictionary_size);
+        }
+
+        /**
+         * @param codes      the code for each position
+         * @param dictionary the distinct values, indexed by code
+         */
+        Dictionary(final int[] codes, final List<String> dictionary) {
+
+            this(codes, dictionary, new HashMap<>(), Integer.MAX_VALUE);
+
+            for (int code = 0; code < dictionary.size(); code++) {
+                codes_by_value.put(dictionary.get(code), code);
+            }
+        }
+
+        private Dictionary(final int[] codes, final List<String> dictionary, final Map<String, Integer> codes_by_value, final int max_dictionary_size) {
+
+            this.codes = codes;
+            this.dictionary = dictionary;
+            this.codes_by_value = codes_by_value;
+            this.max_dictionary_size = max_dictionary_size;
+        }
+
+        @Override
+        String get(final int row_index) {
+
+            return dictionary.get(codes[row_index]);
+        }
+
+        @Override
+        boolean set(final int row_index, final String value) {
+
+            Integer code = codes_by_value.get(value);
+
+            if (code == null) {
+
+                if (dictionary.size() >= max_dictionary_size) {
+                    return false;
+                }
+                code = dictionary.size();
+                dictionary.add(value);
+                codes_by_value.put(value, code);
+            }
+
+            codes[row_index] = code;
+            return true;
+        }
+
+        @Override
+        int capacity() {
+
+            return codes.length;
+        }
+
+        @Override
+        void ensureCapacity(final int capacity) {
+
+            if (capacity > codes.length) {
+                codes = Arrays.copyOf(codes, Math.max(capacity, codes.length * 2));
+            }
+        }
+
+        @Override
+        Column copy(final int size) {
+
+            return new Dictionary(Arrays.copyOf(codes, Math.max(size, 1)), new ArrayList<>(dictionary), new HashMap<>(codes_by_value), max_dictionary_size);
+        }
+
+        @Override
+        Column gather(final int[] row_indices, final int count) {
+
+            final int[] gathered = new int[Math.max(count, 1)];
+            for (int i = 0; i < count; i++) {
+                gathered[i] = codes[row_indices[i]];
+            }
+            return new Dictionary(gathered, new ArrayList<>(dictionary), new HashMap<>(codes_by_value), max_dictionary_size);
+        }
+
+        /**
+         * Gets the code for a given value.
+         *
+         * @param value the value
+         * @return the code, or -1 if the value does not occur in this column
+         */
+        int getCode(final String value) {
+
+            final Integer code = codes_by_value.get(value);
+            return code == null ? -1 : code;
+        }
+
+        /**
+         * Gets the code at a given position.
+         *
+         * @param row_index the position
+         * @return the code
+         */
+        int getCode(final int row_index) {
+
+            return codes[row_index];
+        }
+
+        /**
+         * Gets the number of distinct values.
+         *
+         * @return the size of the dictionary
+         */
+        int getDictionarySize() {
+
+            return dictionary.size();
+        }
+
+        /**
+         * Gets the distinct values, indexed by code.
+         *
+         * @return the dictionary
+         */
+        List<String> getDictionary() {
+
+            return dictionary;
+        }
+    }
+
+    private class ColumnView extends AbstractList<String> implements RandomAccess {
+
+        private final int size;
+
+        ColumnView(final int size) {
+
+            this.size = size;
+        }
+
+        @Override
+        public String get(final int index) {
+
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+            }
+            return Column.this.get(index);
+        }
+
+        @Override
+        public int size() {
+
+            return size;
+        }
+    }
+}
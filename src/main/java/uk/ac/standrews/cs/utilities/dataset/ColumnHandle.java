@@ -0,0 +1,70 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import java.util.List;
+
+/**
+ * A column of a dataset, resolved to its position. Obtained from
+ * {@link Schema#getHandle(String)}, typically when a selector, mapper,
+ * extender or projector is bound to a dataset, so that each subsequent access
+ * to a record is a single positional lookup.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+public final class ColumnHandle {
+
+    private final String label;
+    private final int index;
+
+    ColumnHandle(final String label, final int index) {
+
+        this.label = label;
+        this.index = index;
+    }
+
+    /**
+     * Gets the label of the column.
+     *
+     * @return the label
+     */
+    public String getLabel() {
+
+        return label;
+    }
+
+    /**
+     * Gets the position of the column.
+     *
+     * @return the position
+     */
+    public int getIndex() {
+
+        return index;
+    }
+
+    /**
+     * Gets the value of the column from a given record.
+     *
+     * @param record the record
+     * @return the value
+     */
+    public String getValue(final List<String> record) {
+
+        return record.get(index);
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Column-oriented store for the records of a dataset. The values for each
+ * column are held in a single array, and each record is presented as a view
+ * over the corresponding position in the column arrays. Columns may be
+ * dictionary-encoded, in which case each distinct value is held once and the
+ * column array holds integer codes.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+class ColumnStore extends AbstractList<List<String>> implements RandomAccess, AppendOnlyRecords {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private final Column[] columns;
+    private int size;
+
+    /**
+     * Creates a new empty store.
+     *
+     * @param number_of_columns the number of columns
+     */
+    ColumnStore(final int number_of_columns) {
+
+        this(number_of_columns, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new empty store with a given initial capacity.
+     *
+     * @param number_of_columns the number of columns
+     * @param capacity          the number of records that can be stored
+     *                          before the column arrays need to be extended
+     */
+    ColumnStore(final int number_of_columns, final int capacity) {
+
+        columns = new Column[number_of_columns];
+        for (int column_index = 0; column_index < number_of_columns; column_index++) {
+            columns[column_index] = new Column.Plain(capacity);
+        }
+        size = 0;
+    }
+
+    /**
+     * Creates a new empty store, with columns dictionary-encoded as specified.
+     *
+     * @param labels   the column labels
+     * @param encoding the columns to be encoded
+     */
+    ColumnStore(final List<String> labels, final DictionaryEncoding encoding) {
+
+        columns = new Column[labels.size()];
+        for (int column_index = 0; column_index < columns.length; column_index++) {
+
+            final int max_dictionary_size = encoding.getMaxDictionarySize(labels.get(column_index));
+            columns[column_index] = max_dictionary_size > 0 ? new Column.Dictionary(DEFAULT_CAPACITY, max_dictionary_size) : new Column.Plain(DEFAULT_CAPACITY);
+        }
+        size = 0;
+    }
+
+    /**
+     * Creates a new store from existing columns.
+     *
+     * @param columns the columns
+     * @param size    the number of records
+     */
+    ColumnStore(final Column[] columns, final int size) {
+
+        this.columns = columns;
+        this.size = size;
+    }
+
+    /**
+     * Creates a new store containing the given records.
+     *
+     * @param number_of_columns the number of columns
+     * @param records           the records
+     * @return the new store
+     */
+    static ColumnStore of(final int number_of_columns, final List<List<String>> records) {
+
+        final ColumnStore store = new ColumnStore(number_of_columns, records.size());
+        for (final List<String> record : records) {
+            store.add(record);
+        }
+        return store;
+    }
+
+    @Override
+    public List<String> get(final int index) {
+
+        checkIndex(index, size);
+        return new Row(index);
+    }
+
+    @Override
+    public int size() {
+
+        return size;
+    }
+
+    @Override
+    public boolean add(final List<String> record) {
+
+        if (record.size() != columns.length) {
+            throw new RuntimeException("record has " + record.size() + " values but dataset has " + columns.length + " columns");
+        }
+
+        ensureCapacity(size + 1);
+
+        for (int column_index = 0; column_index < columns.length; column_index++) {
+            set(column_index, size, record.get(column_index));
+        }
+
+        size++;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Gets the number of columns.
+     *
+     * @return the number of columns
+     */
+    int getNumberOfColumns() {
+
+        return columns.length;
+    }
+
+    /**
+     * Gets a read-only view of the values in a given column.
+     *
+     * @param column_index the index of the column
+     * @return the values in the column
+     */
+    List<String> getColumn(final int column_index) {
+
+        return columns[column_index].asList(size);
+    }
+
+    /**
+     * Gets the storage for a given column.
+     *
+     * @param column_index the index of the column
+     * @return the column
+     */
+    Column getStoredColumn(final int column_index) {
+
+        return columns[column_index];
+    }
+
+    /**
+     * Creates a new store containing the given columns of this store, in the
+     * given order. Each column is copied as a whole, without creating any
+     * per-record objects.
+     *
+     * @param column_indices the indices of the columns to be included
+     * @return the new store
+     */
+    ColumnStore project(final int[] column_indices) {
+
+        final Column[] projected_columns = new Column[column_indices.length];
+
+        for (int i = 0; i < column_indices.length; i++) {
+            projected_columns[i] = columns[column_indices[i]].copy(size);
+        }
+
+        return new ColumnStore(projected_columns, size);
+    }
+
+    /**
+     * Creates a new store containing the records of this store at the given
+     * positions. The result is assembled one column at a time.
+     *
+     * @param record_indices the indices of the records to be included, in
+     *                       the order required
+     * @param count          the number of valid entries in the index array
+     * @return the new store
+     */
+    ColumnStore gather(final int[] record_indices, final int count) {
+
+        final Column[] gathered_columns = new Column[columns.length];
+
+        for (int column_index = 0; column_index < columns.length; column_index++) {
+            gathered_columns[column_index] = columns[column_index].gather(record_indices, count);
+        }
+
+        return new ColumnStore(gathered_columns, count);
+    }
+
+    /**
+     * Creates a new store containing a column of record numbers, starting from
+     * 1, followed by the columns of this store.
+     *
+     * @param replace_first_column true if the first column of this store is
+     *                             omitted
+     * @return the new store
+     */
+    ColumnStore number(final boolean replace_first_column) {
+
+        final int first_retained = replace_first_column ? 1 : 0;
+        final Column[] numbered_columns = new Column[columns.length + 1 - first_retained];
+
+        final String[] numbers = new String[Math.max(size, 1)];
+        for (int row_index = 0; row_index < size; row_index++) {
+            numbers[row_index] = String.valueOf(row_index + 1);
+        }
+        numbered_columns[0] = new Column.Plain(numbers);
+
+        for (int column_index = first_retained; column_index < columns.length; column_index++) {
+            numbered_columns[column_index + 1 - first_retained] = columns[column_index].copy(size);
+        }
+
+        return new ColumnStore(numbered_columns, size);
+    }
+
+    /**
+     * Creates a new store containing the columns of this store followed by a
+     * number of additional columns.
+     *
+     * @param number_of_additional_columns the number of additional columns
+     * @param additional_values            the additional values for each record
+     * @return the new store
+     */
+    ColumnStore extend(final int number_of_additional_columns, final List<List<String>> additional_values) {
+
+        final Column[] extended_columns = new Column[columns.length + number_of_additional_columns];
+
+        for (int column_index = 0; column_index < columns.length; column_index++) {
+            extended_columns[column_index] = columns[column_index].copy(size);
+        }
+
+        for (int i = 0; i < number_of_additional_columns; i++) {
+
+            final Column column = new Column.Plain(size);
+
+            for (int row_index = 0; row_index < size; row_index++) {
+
+                final List<String> values = additional_values.get(row_index);
+                if (values.size() != number_of_additional_columns) {
+                    throw new RuntimeException("extender generated " + values.size() + " values for " + number_of_additional_columns + " columns");
+                }
+                column.set(row_index, values.get(i));
+            }
+            extended_columns[columns.length + i] = column;
+        }
+
+        return new ColumnStore(extended_columns, size);
+    }
+
+    private void ensureCapacity(final int required_capacity) {
+
+        for (final Column column : columns) {
+            column.ensureCapacity(required_capacity);
+        }
+    }
+
+    private void set(final int column_index, final int row_index, final String value) {
+
+        if (!columns[column_index].set(row_index, value)) {
+
+            // The dictionary is full, so the column is not worth encoding.
+            final Column plain = columns[column_index].toPlain(size);
+            plain.set(row_index, value);
+            columns[column_index] = plain;
+        }
+    }
+
+    private static void checkIndex(final int index, final int size) {
+
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+    }
+
+    /**
+     * View of a single record.
+     */
+    private class Row extends AbstractList<String> implements RandomAccess {
+
+        private final int row_index;
+
+        Row(final int row_index) {
+
+            this.row_index = row_index;
+        }
+
+        @Override
+        public String get(final int column_index) {
+
+            checkIndex(column_index, columns.length);
+            return columns[column_index].get(row_index);
+        }
+
+        @Override
+        public String set(final int column_index, final String value) {
+
+            checkIndex(column_index, columns.length);
+
+            final String previous_value = columns[column_index].get(row_index);
+            ColumnStore.this.set(column_index, row_index, value);
+            return previous_value;
+        }
+
+        @Override
+        public int size() {
+
+            return columns.length;
+        }
+    }
+}
@@ -18,11 +18,10 @@ package uk.ac.standrews.cs.utilities.dataset;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
 import uk.ac.standrews.cs.utilities.FileManipulation;
-import uk.ac.standrews.cs.utilities.dataset.derived.Extender;
 import uk.ac.standrews.cs.utilities.dataset.derived.Mapper;
+import uk.ac.standrews.cs.utilities.dataset.derived.PositionalExtender;
 import uk.ac.standrews.cs.utilities.dataset.derived.Projector;
 import uk.ac.standrews.cs.utilities.dataset.derived.Selector;
 
@@ -32,16 +31,41 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
  * Simple abstraction over a plain-text dataset. Data is represented as a list
  * of rows, each of which is a list of strings, plus a list of string column
  * labels.
+ * <p>
+ * By default each row is stored as a separate list. Alternatively a dataset can
+ * be created with {@link StorageLayout#COLUMN}, in which case the values for
+ * each column are stored contiguously and rows are presented as views, or
+ * loaded from a file with {@link StorageLayout#MAPPED}, in which case values
+ * are decoded from the mapped file only when read.
+ * <p>
+ * The select, project, map and extend operations are evaluated lazily: each
+ * returns a dataset that records the operation, and the records are only
+ * computed when first needed, for example by {@link #getRecords()},
+ * {@link #print(Appendable)} or iteration. A chain of operations is then
+ * evaluated in a single pass over the records of the dataset at the start of
+ * the chain, and columns that are discarded by a later projection are not
+ * computed. The records of that dataset should therefore not be modified while
+ * a derived dataset remains unevaluated.
+ * <p>
+ * Where a chain consists only of selections and projections over a dataset
+ * stored by row, the evaluated records are a view over the records of that
+ * dataset rather than copies: a list of the selected positions, and a mapping
+ * of the projected columns. Unprojected records are shared with the original
+ * dataset; a projected record is copied when it is modified. The list of
+ * records can still be modified, for example by removing or sorting records,
+ * in which case the view is first replaced by a list of its records. The
+ * records can be copied explicitly with {@link #materialise()}.
  *
  * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
  */
-public class DataSet {
+public class DataSet implements Iterable<List<String>> {
 
     /**
      * The default CSV file format:
@@ -63,9 +87,13 @@ public class DataSet {
     public static final String DEFAULT_DELIMITER = ",";
 
     private List<String> labels;
-    private List<List<String>> records;
+    private volatile List<List<String>> records;
+    private Plan plan;
+    private Schema schema;
+    private volatile Supplier<DataSet> deferred_contents;
 
     private CSVFormat output_format = DEFAULT_CSV_FORMAT;
+    private ExecutionMode execution_mode = ExecutionMode.SEQUENTIAL;
 
     /**
      * Creates a new empty dataset with given column labels.
@@ -77,6 +105,18 @@ public class DataSet {
         this(labels, new ArrayList<>());
     }
 
+    /**
+     * Creates a new empty dataset with given column labels and storage layout.
+     *
+     * @param labels the column labels
+     * @param layout the storage layout
+     */
+    @SuppressWarnings("unused")
+    public DataSet(final List<String> labels, final StorageLayout layout) {
+
+        this(labels, makeStore(labels.size(), layout));
+    }
+
     /**
      * Creates a new dataset containing a copy of the given dataset.
      *
@@ -101,6 +141,61 @@ public class DataSet {
         this(FileManipulation.getInputStream(path));
     }
 
+    /**
+     * Creates a new dataset with column labels and data read from a file with
+     * the given path, using a specified storage layout.
+     *
+     * @param path   the path of the file to read column labels and data from
+     * @param layout the storage layout
+     * @throws IOException if the file cannot be read
+     */
+    @SuppressWarnings("unused")
+    public DataSet(final Path path, final StorageLayout layout) throws IOException {
+
+        this(path, DEFAULT_CSV_FORMAT, layout, ExecutionMode.SEQUENTIAL);
+    }
+
+    /**
+     * Creates a new dataset with column labels and data read from a file with
+     * the given path, using a specified input format, storage layout and
+     * execution mode.
+     * <p>
+     * In {@link ExecutionMode#PARALLEL} mode, the file is divided at record
+     * boundaries and the parts parsed concurrently, provided that the format
+     * allows boundaries to be found without a full parse: the delimiter and
+     * quote must be single ASCII characters, and no escape character, comment
+     * marker or surrounding space handling may be specified. Otherwise, or for
+     * small files, the file is read sequentially. The execution mode is also
+     * used for subsequent operations on the dataset.
+     * <p>
+     * With {@link StorageLayout#MAPPED}, the file is mapped into memory and
+     * tokenized without decoding, subject to the same restrictions on the
+     * format, and additionally that values are neither trimmed nor converted
+     * to null.
+     *
+     * @param path         the path of the file to read column labels and data from
+     * @param input_format the format
+     * @param layout       the storage layout
+     * @param mode         the execution mode
+     * @throws IOException if the file cannot be read
+     */
+    @SuppressWarnings("unused")
+    public DataSet(final Path path, final CSVFormat input_format, final StorageLayout layout, final ExecutionMode mode) throws IOException {
+
+        if (layout == StorageLayout.MAPPED && MappedStore.canMap(input_format, getCharset())) {
+            final List<String> column_labels = new ArrayList<>();
+            final MappedStore store = MappedStore.load(path, input_format, getCharset(), column_labels);
+            init(column_labels, store);
+
+        } else if (mode == ExecutionMode.PARALLEL && ParallelCSVLoader.canSplit(input_format, getCharset())) {
+            init(ParallelCSVLoader.load(path, input_format, getCharset(), layout));
+
+        } else {
+            init(new DataSet(FileManipulation.getInputStream(path), input_format, layout));
+        }
+        execution_mode = mode;
+    }
+
     /**
      * Creates a new dataset with column labels and data read from the given
      * Reader, using the default delimiter: {@value #DEFAULT_DELIMITER}.
@@ -134,31 +229,42 @@ public class DataSet {
     @SuppressWarnings("WeakerAccess")
     public DataSet(final InputStream reader, final CSVFormat input_format) {
 
-        this();
-
-        try (final CSVParser parser = new CSVParser(new InputStreamReader(reader, getCharset()), input_format.builder().setHeader().setSkipHeaderRecord(true).build())) {
-
-            labels.addAll(getColumnLabels(parser));
+        this(reader, input_format, StorageLayout.ROW);
+    }
 
-            for (final CSVRecord record : parser) {
+    /**
+     * Creates a new dataset with column labels and data read from the given
+     * Reader, using a specified input format and storage layout.
+     *
+     * @param reader       the Reader to read column labels and data from
+     * @param input_format the format
+     * @param layout       the storage layout
+     */
+    @SuppressWarnings("WeakerAccess")
+    public DataSet(final InputStream reader, final CSVFormat input_format, final StorageLayout layout) {
 
-                final List<String> items = csvRecordToList(record);
-                final int size = items.size();
+        load(reader, input_format, column_labels -> makeStore(column_labels.size(), layout));
+    }
 
-                // Don't add row if the line was empty.
-                if (size > 1 || (size == 1 && items.get(0).length() > 0)) {
-                    records.add(items);
-                }
-            }
+    /**
+     * Creates a new dataset with column labels and data read from the given
+     * Reader, using a specified input format, with {@link StorageLayout#COLUMN}
+     * layout and columns dictionary-encoded as specified.
+     *
+     * @param reader       the Reader to read column labels and data from
+     * @param input_format the format
+     * @param encoding     the columns to be dictionary-encoded
+     */
+    @SuppressWarnings("unused")
+    public DataSet(final InputStream reader, final CSVFormat input_format, final DictionaryEncoding encoding) {
 
-        } catch (final IOException e) {
-            throw new RuntimeException(e);
-        }
+        load(reader, input_format, column_labels -> new ColumnStore(column_labels, encoding));
     }
 
     /**
      * Creates a new dataset from this dataset, with the same column labels and
-     * selected rows.
+     * selected rows. The selected rows are not affected if rows of this dataset
+     * are later sorted, inserted or removed.
      *
      * @param selector a selector to determine which rows should be included
      * @return the new dataset
@@ -166,11 +272,13 @@ public class DataSet {
     @SuppressWarnings("WeakerAccess")
     public DataSet select(final Selector selector) {
 
-        return new DataSet(labels, filterRecords(selector));
+        return derive(getColumnLabels(), new Operation.Selection(selector, this));
     }
 
     /**
-     * Creates a new dataset from this dataset, with specified columns.
+     * Creates a new dataset from this dataset, with specified columns. The
+     * rows of the new dataset are not affected if rows of this dataset are
+     * later sorted, inserted or removed.
      *
      * @param projector a projector to determine which columns should be
      *                  included
@@ -179,7 +287,8 @@ public class DataSet {
     @SuppressWarnings("WeakerAccess")
     public DataSet project(final Projector projector) {
 
-        return new DataSet(projector.getProjectedColumnLabels(), projectRecords(projector));
+        final List<String> projected_labels = projector.bind(getSchema()).getProjectedColumnLabels();
+        return derive(projected_labels, new Operation.Projection(getSchema().getIndices(projected_labels)));
     }
 
     /**
@@ -193,21 +302,251 @@ public class DataSet {
     @SuppressWarnings("unused")
     public DataSet map(final Mapper mapper) {
 
-        return new DataSet(mapper.mapColumnLabels(labels), mapRecords(mapper));
+        return derive(mapper.mapColumnLabels(getColumnLabels()), new Operation.Mapping(mapper, this));
     }
 
     /**
      * Creates a new dataset from this dataset, with additional generated
-     * columns.
+     * columns. If all the generated columns are discarded by a subsequent
+     * projection, the extender may not be called at all.
      *
      * @param extender an extender to generate additional column labels and
      *                 values
      * @return the new dataset
      */
     @SuppressWarnings("unused")
-    public DataSet extend(final Extender extender) {
+    public DataSet extend(final PositionalExtender extender) {
+
+        return derive(extendLabels(extender), new Operation.Extension(extender, this));
+    }
+
+    /**
+     * Creates a new dataset from this dataset, with an additional first column
+     * containing the position of each record, numbered from 1. In parallel
+     * execution mode the numbers are assigned from the total sizes of the
+     * preceding chunks, so they are the same as for sequential execution.
+     *
+     * @param label the label of the new column
+     * @return the new dataset
+     */
+    @SuppressWarnings("unused")
+    public DataSet addIdColumn(final String label) {
+
+        final List<String> numbered_labels = new ArrayList<>();
+        numbered_labels.add(label);
+        numbered_labels.addAll(getColumnLabels());
+
+        return derive(numbered_labels, new Operation.Numbering(false));
+    }
+
+    /**
+     * Creates a new dataset from this dataset, with the same column labels and
+     * the values in the first column replaced by the position of each record,
+     * numbered from 1. The new values are written in a single pass, without
+     * building intermediate records.
+     *
+     * @return the new dataset
+     * @throws RuntimeException if this dataset has no columns
+     * @see #addIdColumn(String)
+     */
+    @SuppressWarnings("WeakerAccess")
+    public DataSet renumber() {
 
-        return new DataSet(extendLabels(extender), extendRecords(extender));
+        if (getColumnLabels().isEmpty()) {
+            throw new RuntimeException("no column to renumber");
+        }
+        return derive(getColumnLabels(), new Operation.Numbering(true));
+    }
+
+    /**
+     * Creates a new dataset from this dataset, with the same column labels and
+     * the records sorted on the given keys. Keys are compared in order, and
+     * records with equal values for all keys remain in their original order.
+     * Unlike the other operations, sorting is performed immediately, using
+     * multiple cores for large datasets.
+     *
+     * @param keys the keys, in order of precedence
+     * @return the new dataset
+     * @throws RuntimeException if a key label is not present
+     */
+    @SuppressWarnings("unused")
+    public DataSet sort(final SortKey... keys) {
+
+        return sort(Arrays.asList(keys));
+    }
+
+    /**
+     * Creates a new dataset from this dataset, with the same column labels and
+     * the records sorted on the given keys.
+     *
+     * @param keys the keys, in order of precedence
+     * @return the new dataset
+     * @throws RuntimeException if a key label is not present
+     * @see #sort(SortKey...)
+     */
+    @SuppressWarnings("WeakerAccess")
+    public DataSet sort(final List<SortKey> keys) {
+
+        final DataSet sorted = new DataSet(getColumnLabels(), Sorter.sort(getRecords(), getSchema(), keys));
+        sorted.execution_mode = execution_mode;
+        return sorted;
+    }
+
+    /**
+     * Creates a new dataset from this dataset, with the same column labels and
+     * duplicate records removed. The first of each set of duplicates is
+     * retained. Like sorting, this is performed immediately.
+     *
+     * @return the new dataset
+     */
+    @SuppressWarnings("WeakerAccess")
+    public DataSet removeDuplicates() {
+
+        return removeDuplicates(null, DuplicateRetention.FIRST);
+    }
+
+    /**
+     * Creates a new dataset from this dataset, with the same column labels and
+     * only one of each set of records that have the same values in the given
+     * key columns. Records are compared field by field, without building any
+     * combined key.
+     *
+     * @param key_labels the labels of the key columns, or null if whole
+     *                   records are compared
+     * @param retention  which of each set of duplicates is retained
+     * @return the new dataset
+     * @throws RuntimeException if a key label is not present
+     */
+    @SuppressWarnings("WeakerAccess")
+    public DataSet removeDuplicates(final List<String> key_labels, final DuplicateRetention retention) {
+
+        final List<List<String>> all_records = getRecords();
+        final int[] positions = new Deduplicator(all_records, getKeyIndices(getSchema(), key_labels)).getDistinctPositions(retention);
+
+        final DataSet deduplicated = new DataSet(getColumnLabels(), gatherRecords(all_records, positions));
+        deduplicated.execution_mode = execution_mode;
+        return deduplicated;
+    }
+
+    /**
+     * Creates a new dataset by joining this dataset with another, using a hash
+     * table built on the smaller of the two. Records match if their values in
+     * the corresponding key columns are equal. For inner and left outer joins,
+     * the result has the column labels of this dataset followed by those of
+     * the other dataset other than its key columns; for semi and anti joins it
+     * has the column labels of this dataset. Like sorting, this is performed
+     * immediately.
+     *
+     * @param right            the other dataset
+     * @param left_key_labels  the labels of the key columns in this dataset
+     * @param right_key_labels the labels of the key columns in the other dataset
+     * @param type             the kind of join
+     * @return the new dataset
+     * @throws RuntimeException if a key label is not present, or if a column
+     *                          label of the other dataset is also present in
+     *                          this dataset; columns can be renamed with
+     *                          {@link #map(Mapper)} before joining
+     */
+    @SuppressWarnings("unused")
+    public DataSet join(final DataSet right, final List<String> left_key_labels, final List<String> right_key_labels, final JoinType type) {
+
+        return join(right, left_key_labels, right_key_labels, type, JoinStrategy.HASH);
+    }
+
+    /**
+     * Creates a new dataset by joining this dataset with another, finding
+     * matching records in a specified way.
+     *
+     * @param right            the other dataset
+     * @param left_key_labels  the labels of the key columns in this dataset
+     * @param right_key_labels the labels of the key columns in the other dataset
+     * @param type             the kind of join
+     * @param strategy         the way in which matching records are found
+     * @return the new dataset
+     * @throws RuntimeException if a key label is not present, or if a column
+     *                          label of the other dataset is also present in
+     *                          this dataset
+     * @see #join(DataSet, List, List, JoinType)
+     */
+    @SuppressWarnings("WeakerAccess")
+    public DataSet join(final DataSet right, final List<String> left_key_labels, final List<String> right_key_labels, final JoinType type, final JoinStrategy strategy) {
+
+        final Join join = new Join(this, right, left_key_labels, right_key_labels, type);
+
+        final DataSet joined = new DataSet(join.getColumnLabels(), join.execute(strategy));
+        joined.execution_mode = execution_mode;
+        return joined;
+    }
+
+    /**
+     * Creates a new dataset by joining this dataset with another using
+     * {@link JoinStrategy#SORT_MERGE}, holding no more than a given amount of
+     * key data in memory at once for the sort of each dataset. With the other
+     * join methods, the budget is a quarter of the maximum heap size.
+     *
+     * @param right            the other dataset
+     * @param left_key_labels  the labels of the key columns in this dataset
+     * @param right_key_labels the labels of the key columns in the other dataset
+     * @param type             the kind of join
+     * @param memory_budget    the approximate number of bytes of key values to
+     *                         be held in memory at once by each sort
+     * @return the new dataset
+     * @throws IOException      if the temporary files cannot be written or
+     *                          read
+     * @throws RuntimeException if a key label is not present, or if a column
+     *                          label of the other dataset is also present in
+     *                          this dataset
+     * @see #join(DataSet, List, List, JoinType)
+     */
+    @SuppressWarnings("unused")
+    public DataSet join(final DataSet right, final List<String> left_key_labels, final List<String> right_key_labels, final JoinType type, final long memory_budget) throws IOException {
+
+        final Join join = new Join(this, right, left_key_labels, right_key_labels, type);
+
+        final DataSet joined = new DataSet(join.getColumnLabels(), join.executeSortMerge(memory_budget));
+        joined.execution_mode = execution_mode;
+        return joined;
+    }
+
+    /**
+     * Creates a new dataset with a record for each distinct combination of
+     * values in the given key columns, containing those values followed by the
+     * given aggregates computed over the records with that combination. The
+     * groups are in order of their first occurrence in this dataset. In
+     * parallel execution mode, partial aggregates are computed concurrently
+     * over chunks of the records and then merged. Like sorting, this is
+     * performed immediately.
+     *
+     * @param key_labels the labels of the key columns
+     * @param aggregates the aggregates
+     * @return the new dataset
+     * @throws RuntimeException if a key or aggregated column label is not
+     *                          present, or if two result columns have the same
+     *                          label; aggregates can be relabelled with
+     *                          {@link Aggregate#as(String)}
+     */
+    @SuppressWarnings("unused")
+    public DataSet groupBy(final List<String> key_labels, final Aggregate... aggregates) {
+
+        return groupBy(key_labels, Arrays.asList(aggregates));
+    }
+
+    /**
+     * Creates a new dataset by grouping records and aggregating each group.
+     *
+     * @param key_labels the labels of the key columns
+     * @param aggregates the aggregates
+     * @return the new dataset
+     * @see #groupBy(List, Aggregate...)
+     */
+    @SuppressWarnings("WeakerAccess")
+    public DataSet groupBy(final List<String> key_labels, final List<Aggregate> aggregates) {
+
+        final GroupBy group_by = new GroupBy(getSchema(), key_labels, aggregates);
+
+        final DataSet grouped = new DataSet(group_by.getColumnLabels(), group_by.execute(getRecords(), execution_mode));
+        grouped.execution_mode = execution_mode;
+        return grouped;
     }
 
     /**
@@ -217,7 +556,7 @@ public class DataSet {
      */
     public void addRow(final List<String> record) {
 
-        records.add(record);
+        getRecords().add(record);
     }
 
     /**
@@ -238,7 +577,53 @@ public class DataSet {
      */
     public List<List<String>> getRecords() {
 
-        return records;
+        resolve();
+        List<List<String>> result = records;
+
+        if (result == null) {
+            synchronized (this) {
+
+                result = records;
+                if (result == null) {
+
+                    result = plan.execute(labels.size(), execution_mode);
+                    records = result;
+                    plan = null;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the records of this dataset with independent copies, if they are
+     * a view over the records of another dataset. Subsequent changes to either
+     * dataset then do not affect the other, and the records of the other
+     * dataset are no longer retained by this dataset.
+     */
+    @SuppressWarnings("unused")
+    public void materialise() {
+
+        final List<List<String>> all_records = getRecords();
+
+        if (all_records instanceof RecordView) {
+            synchronized (this) {
+                if (records == all_records) {
+                    records = ((RecordView) all_records).copy();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets an iterator over the records of this dataset.
+     *
+     * @return the iterator
+     */
+    @Override
+    public Iterator<List<String>> iterator() {
+
+        return getRecords().iterator();
     }
 
     /**
@@ -248,9 +633,69 @@ public class DataSet {
      */
     public List<String> getColumnLabels() {
 
+        resolve();
         return labels;
     }
 
+    /**
+     * Gets the schema of this dataset, which resolves column labels to
+     * positions. The schema is built once, so the column labels should not be
+     * modified after it has been obtained.
+     *
+     * @return the schema
+     */
+    public Schema getSchema() {
+
+        if (schema == null) {
+            schema = new Schema(getColumnLabels());
+        }
+        return schema;
+    }
+
+    /**
+     * Gets the storage layout of this dataset. For a derived dataset that has
+     * not yet been evaluated, this is the layout that evaluation will produce,
+     * so the result does not depend on whether the records have been read.
+     *
+     * @return the storage layout
+     */
+    @SuppressWarnings("unused")
+    public StorageLayout getStorageLayout() {
+
+        resolve();
+        final Plan current_plan = plan;
+        if (current_plan != null) {
+            return current_plan.getResultLayout();
+        }
+        final List<List<String>> all_records = getRecords();
+
+        if (all_records instanceof ColumnStore) {
+            return StorageLayout.COLUMN;
+        }
+        return all_records instanceof MappedStore ? StorageLayout.MAPPED : StorageLayout.ROW;
+    }
+
+    /**
+     * Gets the values in a specified column. For a dataset with
+     * {@link StorageLayout#COLUMN} layout the result is a read-only view of the
+     * underlying column.
+     *
+     * @param label the label of the required column
+     * @return the values in the column
+     * @throws RuntimeException if the specified label is not present
+     */
+    @SuppressWarnings("WeakerAccess")
+    public List<String> getColumn(final String label) {
+
+        final int index = getColumnIndex(label);
+        final List<List<String>> all_records = getRecords();
+
+        if (all_records instanceof ColumnStore) {
+            return ((ColumnStore) all_records).getColumn(index);
+        }
+        return all_records.stream().map(record -> record.get(index)).collect(Collectors.toList());
+    }
+
     /**
      * Gets the value for a specified column label, from a given record.
      *
@@ -262,12 +707,32 @@ public class DataSet {
     @SuppressWarnings("WeakerAccess")
     public String getValue(final List<String> record, final String label) {
 
-        final int index = labels.indexOf(label);
+        return record.get(getColumnIndex(label));
+    }
 
-        if (index == -1) {
-            throw new RuntimeException("Unknown label: " + label);
-        }
-        return record.get(index);
+    /**
+     * Sets the way in which this dataset, if defined by operations on another
+     * dataset, will be evaluated. Datasets subsequently derived from this one
+     * inherit the setting.
+     *
+     * @param execution_mode the execution mode
+     */
+    @SuppressWarnings("unused")
+    public void setExecutionMode(final ExecutionMode execution_mode) {
+
+        this.execution_mode = execution_mode;
+    }
+
+    /**
+     * Gets the way in which this dataset, if defined by operations on another
+     * dataset, will be evaluated.
+     *
+     * @return the execution mode
+     */
+    @SuppressWarnings("unused")
+    public ExecutionMode getExecutionMode() {
+
+        return execution_mode;
     }
 
     /**
@@ -282,7 +747,8 @@ public class DataSet {
     }
 
     /**
-     * Prints this dataset to the given output object.
+     * Prints this dataset to the given output object, flushing the output after
+     * each record.
      *
      * @param out the output object
      * @throws IOException if this dataset cannot be printed to the given output
@@ -290,18 +756,44 @@ public class DataSet {
      */
     public void print(final Appendable out) throws IOException {
 
-        final String[] header_array = labels.toArray(new String[0]);
-        @SuppressWarnings("resource") final CSVPrinter printer = new CSVPrinter(out, output_format.builder().setHeader(header_array).build());
+        print(out, FlushPolicy.EACH_RECORD);
+    }
 
-        for (final List<String> record : records) {
+    /**
+     * Prints this dataset to the given output object, flushing the output
+     * according to the given policy.
+     *
+     * @param out          the output object
+     * @param flush_policy the flush policy
+     * @throws IOException if this dataset cannot be printed to the given output
+     *                     object.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void print(final Appendable out, final FlushPolicy flush_policy) throws IOException {
 
-            printer.printRecord(record);
-            printer.flush();
-        }
+        RecordWriter.print(getColumnLabels(), getRecords(), output_format, out, flush_policy);
+    }
+
+    /**
+     * Prints this dataset to the given output stream, encoding characters with
+     * the given charset. Output is buffered, and the stream is flushed
+     * according to the given policy. The stream is not closed.
+     *
+     * @param out          the output stream
+     * @param charset      the charset
+     * @param flush_policy the flush policy
+     * @throws IOException if this dataset cannot be printed to the given stream
+     */
+    @SuppressWarnings("unused")
+    public void print(final OutputStream out, final Charset charset, final FlushPolicy flush_policy) throws IOException {
+
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, charset), RecordWriter.BUFFER_SIZE);
+        print(writer, flush_policy);
     }
 
     /**
-     * Prints this dataset to the given file.
+     * Prints this dataset to the given file. The output is buffered, and
+     * flushed only when the file is closed.
      *
      * @param path the path of the output file
      * @throws IOException if this dataset cannot be printed to the given file
@@ -310,10 +802,40 @@ public class DataSet {
     public void print(final Path path) throws IOException {
 
         try (final Writer writer = Files.newBufferedWriter(path)) {
-            print(writer);
+            print(writer, FlushPolicy.AT_END);
         }
     }
 
+    /**
+     * Writes a binary snapshot of this dataset to the given file. The snapshot
+     * can be loaded with {@link #readSnapshot(Path)} much faster than the
+     * equivalent CSV file, and gives a dataset with the same column labels,
+     * records and storage layout. Columns with few distinct values are
+     * dictionary-encoded in the snapshot.
+     *
+     * @param path the path of the snapshot file
+     * @throws IOException if the snapshot cannot be written
+     */
+    @SuppressWarnings("unused")
+    public void writeSnapshot(final Path path) throws IOException {
+
+        Snapshot.write(getColumnLabels(), getRecords(), path);
+    }
+
+    /**
+     * Reads a dataset from a binary snapshot file written by
+     * {@link #writeSnapshot(Path)}.
+     *
+     * @param path the path of the snapshot file
+     * @return the dataset
+     * @throws IOException if the snapshot cannot be read
+     */
+    @SuppressWarnings("unused")
+    public static DataSet readSnapshot(final Path path) throws IOException {
+
+        return Snapshot.read(path);
+    }
+
     @SuppressWarnings("NonFinalFieldReferenceInEquals")
     @Override
     public boolean equals(final Object o) {
@@ -327,15 +849,15 @@ public class DataSet {
 
         final DataSet other_dataset = (DataSet) o;
 
-        return labels.equals(other_dataset.labels) && records.equals(other_dataset.records);
+        return getColumnLabels().equals(other_dataset.getColumnLabels()) && getRecords().equals(other_dataset.getRecords());
     }
 
     @SuppressWarnings("NonFinalFieldReferencedInHashCode")
     @Override
     public int hashCode() {
 
-        int result = labels.hashCode();
-        result = 31 * result + records.hashCode();
+        int result = getColumnLabels().hashCode();
+        result = 31 * result + getRecords().hashCode();
         return result;
     }
 
@@ -344,15 +866,53 @@ public class DataSet {
         this(new ArrayList<>(), new ArrayList<>());
     }
 
-    private DataSet(final List<String> labels, final List<List<String>> records) {
+    DataSet(final List<String> labels, final List<List<String>> records) {
 
         init(labels, records);
     }
 
-    private void init(final List<String> labels, final List<List<String>> records) {
+    private DataSet(final List<String> labels, final Plan plan) {
+
+        this.labels = labels;
+        this.plan = plan;
+    }
+
+    private void load(final InputStream reader, final CSVFormat input_format, final Function<List<String>, List<List<String>>> make_store) {
+
+        try (final CSVParser parser = new CSVParser(new InputStreamReader(reader, getCharset()), input_format.builder().setHeader().setSkipHeaderRecord(true).build())) {
+
+            final List<String> column_labels = getColumnLabels(parser);
+            init(column_labels, make_store.apply(column_labels));
+
+            for (final CSVRecord record : parser) {
+
+                final List<String> items = csvRecordToList(record);
+
+                // Don't add row if the line was empty.
+                if (!isEmptyRecord(items)) {
+                    records.add(items);
+                }
+            }
+
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Initialises this dataset with the given column labels and store of
+     * records.
+     *
+     * @param labels  the column labels
+     * @param records the records
+     */
+    protected void init(final List<String> labels, final List<List<String>> records) {
 
         this.labels = labels;
         this.records = records;
+        plan = null;
+        schema = null;
+        deferred_contents = null;
     }
 
     protected void init(final DataSet existing_records) {
@@ -360,45 +920,105 @@ public class DataSet {
         init(existing_records.getColumnLabels(), existing_records.getRecords());
     }
 
-    private List<List<String>> filterRecords(final Selector selector) {
+    /**
+     * Initialises this dataset with contents that are obtained from the given
+     * supplier when the column labels or records are first needed. The
+     * supplier is called at most once, even if this dataset is accessed
+     * concurrently by several threads. If the supplied dataset has not yet
+     * been evaluated, its records are in turn computed only when first needed,
+     * so the column labels can be obtained without computing any records.
+     *
+     * @param contents the supplier of the contents
+     */
+    protected void initLazily(final Supplier<DataSet> contents) {
+
+        labels = null;
+        records = null;
+        plan = null;
+        schema = null;
+        deferred_contents = contents;
+    }
+
+    /**
+     * Obtains the contents deferred by {@link #initLazily(Supplier)} from the
+     * given supplier instead, if they have not already been obtained. This
+     * dataset is locked in the same way as when the deferred contents are
+     * obtained on first access, so at most one of the suppliers is called.
+     *
+     * @param contents the supplier of the contents
+     * @return true if the given supplier was called, or false if the contents
+     * had already been obtained
+     */
+    protected boolean resolveWith(final Supplier<DataSet> contents) {
+
+        synchronized (this) {
 
-        return records.stream().filter(record -> selector.select(record, this)).collect(Collectors.toList());
+            if (deferred_contents == null) {
+                return false;
+            }
+            adopt(contents.get());
+            return true;
+        }
     }
 
-    private List<List<String>> projectRecords(final Projector projector) {
+    private void resolve() {
 
-        return records.stream().map(record -> project(record, projector.getProjectedColumnLabels())).collect(Collectors.toList());
+        if (deferred_contents != null) {
+            synchronized (this) {
+
+                final Supplier<DataSet> contents = deferred_contents;
+                if (contents != null) {
+                    adopt(contents.get());
+                }
+            }
+        }
     }
 
-    private List<List<String>> mapRecords(final Mapper mapper) {
+    private void adopt(final DataSet data_set) {
+
+        // Take over the plan of an unevaluated dataset rather than evaluating it.
+        synchronized (data_set) {
+            data_set.resolve();
+            labels = data_set.labels;
+            records = data_set.records;
+            plan = data_set.plan;
+        }
+        deferred_contents = null;
+    }
 
-        final Function<List<String>, List<String>> map_function = record -> mapper.mapRecord(record, labels);
+    private int getColumnIndex(final String label) {
 
-        return records.stream().map(map_function).collect(Collectors.toList());
+        return getSchema().getHandle(label).getIndex();
     }
 
-    private List<String> extendLabels(final Extender extender) {
+    private DataSet derive(final List<String> new_labels, final Operation operation) {
 
-        final List<String> extended_labels = new ArrayList<>(labels);
-        extended_labels.addAll(extender.getColumnLabels());
-        return extended_labels;
+        final DataSet derived = new DataSet(new_labels, getPlan().then(operation));
+        derived.execution_mode = execution_mode;
+        return derived;
     }
 
-    private List<List<String>> extendRecords(final Extender extender) {
+    private Plan getPlan() {
 
-        final List<List<String>> result = new ArrayList<>();
+        // Continue the plan of an unevaluated dataset, so that the operations are fused.
+        resolve();
+        final Plan current_plan = plan;
+        return current_plan != null ? current_plan : new Plan(this);
+    }
 
-        for (final List<String> record : records) {
+    private List<String> extendLabels(final PositionalExtender extender) {
 
-            final List<String> new_record = new ArrayList<>(record);
-            new_record.addAll(extender.getAdditionalValues(record, this));
-            result.add(new_record);
-        }
+        final List<String> extended_labels = new ArrayList<>(getColumnLabels());
+        extended_labels.addAll(extender.getColumnLabels());
+        return extended_labels;
+    }
 
-        return result;
+    private static List<List<String>> makeStore(final int number_of_columns, final StorageLayout layout) {
+
+        return layout == StorageLayout.COLUMN ? new ColumnStore(number_of_columns) : new ArrayList<>();
     }
 
-    private static List<String> getColumnLabels(final CSVParser parser) {
+    static List<String> getColumnLabels(final CSVParser parser) {
 
         final Map<String, Integer> header_map = parser.getHeaderMap();
         final List<String> labels = new ArrayList<>(header_map.size());
@@ -408,28 +1028,45 @@ public class DataSet {
         return labels;
     }
 
-    private static List<String> csvRecordToList(final CSVRecord record) {
+    static List<List<String>> gatherRecords(final List<List<String>> records, final int[] positions) {
 
-        final List<String> list = new ArrayList<>();
-        for (final String value : record) {
-            list.add(value);
+        if (records instanceof ColumnStore) {
+            return ((ColumnStore) records).gather(positions, positions.length);
         }
-        return list;
+
+        final List<List<String>> result = new ArrayList<>(positions.length);
+        for (final int position : positions) {
+            result.add(records.get(position));
+        }
+        return result;
     }
 
-    private List<String> project(final List<String> record, final List<String> projected_columns) {
+    static int[] getKeyIndices(final Schema schema, final List<String> key_labels) {
+
+        if (key_labels == null) {
+            return null;
+        }
 
-        if (containsDuplicates(projected_columns)) {
-            // Can't throw checked exception because this is used in a stream map operation.
-            throw new RuntimeException("duplicate column labels in projection");
+        final int[] key_indices = new int[key_labels.size()];
+        for (int i = 0; i < key_indices.length; i++) {
+            key_indices[i] = schema.getHandle(key_labels.get(i)).getIndex();
         }
+        return key_indices;
+    }
+
+    static List<String> csvRecordToList(final CSVRecord record) {
 
-        return projected_columns.stream().map(projected_column_label -> getValue(record, projected_column_label)).collect(Collectors.toList());
+        final List<String> list = new ArrayList<>();
+        for (final String value : record) {
+            list.add(value);
+        }
+        return list;
     }
 
-    private static boolean containsDuplicates(final List<String> strings) {
+    static boolean isEmptyRecord(final List<String> items) {
 
-        return new HashSet<>(strings).size() < strings.size();
+        final int size = items.size();
+        return size == 0 || (size == 1 && items.get(0).length() == 0);
     }
 
     protected static Charset getCharset() {
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Finds the distinct records in a sequence, comparing either whole records or
+ * a subset of key columns. Records are hashed field by field into an
+ * open-addressing table of record positions, and a hash match is confirmed by
+ * comparing the fields of the stored record, so no copy of any record or
+ * value is made.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+class Deduplicator {
+
+    private static final int EMPTY = -1;
+
+    private final List<List<String>> records;
+    private final int[] key_indices;
+
+    /**
+     * @param records     the records
+     * @param key_indices the positions of the key columns, or null if whole
+     *                    records are compared
+     */
+    Deduplicator(final List<List<String>> records, final int[] key_indices) {
+
+        this.records = records;
+        this.key_indices = key_indices;
+    }
+
+    /**
+     * Gets the positions of the records that are retained.
+     *
+     * @param retention which of each set of duplicates is retained
+     * @return the positions of the retained records, in ascending order
+     */
+    int[] getDistinctPositions(final DuplicateRetention retention) {
+
+        final int number_of_records = records.size();
+        final int[] table = new int[getTableSize(number_of_records)];
+        Arrays.fill(table, EMPTY);
+
+        final int[] distinct = new int[number_of_records];
+        int count = 0;
+
+        for (int i = 0; i < number_of_records; i++) {
+
+            final int position = retention == DuplicateRetention.FIRST ? i : number_of_records - 1 - i;
+            if (insert(table, position)) {
+                distinct[count++] = position;
+            }
+        }
+
+        final int[] result = Arrays.copyOf(distinct, count);
+
+        if (retention == DuplicateRetention.LAST) {
+            reverse(result);
+        }
+        return result;
+    }
+
+    /**
+     * Adds a record to the table, unless an equal record is already present.
+     *
+     * @return true if the record was added
+     */
+    private boolean insert(final int[] table, final int position) {
+
+        final List<String> record = records.get(position);
+        final int mask = table.length - 1;
+
+        int slot = hash(record) & mask;
+
+        while (table[slot] != EMPTY) {
+
+            if (keysEqual(records.get(table[slot]), record)) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        table[slot] = position;
+        return true;
+    }
+
+    private int hash(final List<String> record) {
+
+        int hash;
+
+        if (key_indices == null) {
+            hash = record.hashCode();
+
+        } else {
+            hash = 1;
+            for (final int key_index : key_indices) {
+                hash = 31 * hash + Objects.hashCode(record.get(key_index));
+            }
+        }
+
+        // Spread the high bits, since the table size is a power of two.
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean keysEqual(final List<String> record1, final List<String> record2) {
+
+        if (key_indices == null) {
+            return record1.equals(record2);
+        }
+
+        for (final int key_index : key_indices) {
+            if (!Objects.equals(record1.get(key_index), record2.get(key_index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets a power of two at least twice the number of entries, so that the
+     * table is at most half full.
+     */
+    private static int getTableSize(final int number_of_entries) {
+
+        return Integer.highestOneBit(Math.max(number_of_entries, 1) * 2 - 1) * 2;
+    }
+
+    private static void reverse(final int[] values) {
+
+        for (int i = 0, j = values.length - 1; i < j; i++, j--) {
+            final int temp = values[i];
+            values[i] = values[j];
+            values[j] = temp;
+        }
+    }
+}
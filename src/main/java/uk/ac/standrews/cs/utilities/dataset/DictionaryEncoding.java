@@ -0,0 +1,99 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Specifies which columns of a dataset with {@link StorageLayout#COLUMN} layout
+ * are dictionary-encoded when it is loaded. Each distinct value in an encoded
+ * column is held once, and each cell holds an integer code, which greatly
+ * reduces memory use for columns with few distinct values. Selection with a
+ * {@link ValueSelector} on an encoded column compares codes rather than
+ * strings.
+ * <p>
+ * Columns may be listed explicitly, in which case they are always encoded, and
+ * a threshold may be given for the remaining columns, in which case each is
+ * encoded until the number of distinct values exceeds the threshold.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+public final class DictionaryEncoding {
+
+    /**
+     * No columns are encoded.
+     */
+    @SuppressWarnings("unused")
+    public static final DictionaryEncoding NONE = new DictionaryEncoding(0, Collections.emptySet());
+
+    private final int max_distinct_values;
+    private final Set<String> encoded_labels;
+
+    /**
+     * Creates an encoding in which each column is encoded if it has no more
+     * than a given number of distinct values.
+     *
+     * @param max_distinct_values the maximum number of distinct values
+     */
+    @SuppressWarnings("unused")
+    public DictionaryEncoding(final int max_distinct_values) {
+
+        this(max_distinct_values, Collections.emptySet());
+    }
+
+    /**
+     * Creates an encoding in which the given columns are encoded.
+     *
+     * @param encoded_labels the labels of the columns to be encoded
+     */
+    @SuppressWarnings("unused")
+    public DictionaryEncoding(final Collection<String> encoded_labels) {
+
+        this(0, encoded_labels);
+    }
+
+    /**
+     * Creates an encoding in which the given columns are encoded, and each
+     * other column is encoded if it has no more than a given number of distinct
+     * values.
+     *
+     * @param max_distinct_values the maximum number of distinct values
+     * @param encoded_labels      the labels of the columns to be encoded
+     */
+    @SuppressWarnings("WeakerAccess")
+    public DictionaryEncoding(final int max_distinct_values, final Collection<String> encoded_labels) {
+
+        this.max_distinct_values = max_distinct_values;
+        this.encoded_labels = new HashSet<>(encoded_labels);
+    }
+
+    /**
+     * Gets the maximum number of distinct values that a column may have while
+     * remaining encoded.
+     *
+     * @param label the label of the column
+     * @return the maximum number of distinct values, or zero if the column is
+     * not encoded
+     */
+    int getMaxDictionarySize(final String label) {
+
+        return encoded_labels.contains(label) ? Integer.MAX_VALUE : max_distinct_values;
+    }
+}
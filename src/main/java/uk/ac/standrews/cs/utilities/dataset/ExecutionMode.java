@@ -0,0 +1,41 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+/**
+ * The ways in which the operations defining a derived dataset can be
+ * evaluated.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+public enum ExecutionMode {
+
+    /**
+     * Records are processed one at a time, in order, on the calling thread.
+     */
+    SEQUENTIAL,
+
+    /**
+     * Records are divided into chunks that are processed concurrently on
+     * multiple cores. The order of the records in the result is the same as
+     * for sequential evaluation. Selectors, mappers and extenders must be safe
+     * to call from multiple threads at once; see {@link
+     * uk.ac.standrews.cs.utilities.dataset.derived.PositionalExtender} for
+     * generating values that depend on record position.
+     */
+    PARALLEL
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+/**
+ * Specifies how often output is flushed when a dataset is printed. Flushing
+ * after every record makes output visible promptly, but when printing to a
+ * file it causes a write to the file for every record; flushing less often
+ * allows the output to be buffered.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+public final class FlushPolicy {
+
+    /**
+     * Output is flushed after each record.
+     */
+    public static final FlushPolicy EACH_RECORD = new FlushPolicy(1, 0);
+
+    /**
+     * Output is flushed only after the last record.
+     */
+    public static final FlushPolicy AT_END = new FlushPolicy(0, 0);
+
+    private final int records_between_flushes;
+    private final long characters_between_flushes;
+
+    private FlushPolicy(final int records_between_flushes, final long characters_between_flushes) {
+
+        this.records_between_flushes = records_between_flushes;
+        this.characters_between_flushes = characters_between_flushes;
+    }
+
+    /**
+     * Gets a policy under which output is flushed after every given number of
+     * records, and after the last record.
+     *
+     * @param number_of_records the number of records between flushes
+     * @return the policy
+     */
+    @SuppressWarnings("unused")
+    public static FlushPolicy everyRecords(final int number_of_records) {
+
+        if (number_of_records < 1) {
+            throw new RuntimeException("number of records must be positive");
+        }
+        return new FlushPolicy(number_of_records, 0);
+    }
+
+    /**
+     * Gets a policy under which output is flushed after the first record that
+     * takes the output since the last flush to a given number of characters,
+     * and after the last record. For single-byte encodings the number of
+     * characters is also the number of bytes.
+     *
+     * @param number_of_characters the number of characters between flushes
+     * @return the policy
+     */
+    @SuppressWarnings("unused")
+    public static FlushPolicy everyCharacters(final long number_of_characters) {
+
+        if (number_of_characters < 1) {
+            throw new RuntimeException("number of characters must be positive");
+        }
+        return new FlushPolicy(0, number_of_characters);
+    }
+
+    boolean countsCharacters() {
+
+        return characters_between_flushes > 0;
+    }
+
+    /**
+     * Tests whether output should be flushed after a record.
+     *
+     * @param records_since_flush    the number of records printed since the last flush
+     * @param characters_since_flush the number of characters printed since the last flush
+     * @return true if output should be flushed
+     */
+    boolean shouldFlush(final int records_since_flush, final long characters_since_flush) {
+
+        return (records_between_flushes > 0 && records_since_flush >= records_between_flushes) ||
+                (characters_between_flushes > 0 && characters_since_flush >= characters_between_flushes);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Groups the records of a dataset by the values in a set of key columns, and
+ * computes aggregates over each group. In parallel execution mode the records
+ * are divided into chunks, each chunk is aggregated into its own hash table of
+ * partial states, and the partial states are then merged in chunk order, so the
+ * result is the same as for sequential execution.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+class GroupBy {
+
+    private final List<String> key_labels;
+    private final List<Aggregate> aggregates;
+    private final int[] key_indices;
+    private final int[] input_indices;
+
+    GroupBy(final Schema schema, final List<String> key_labels, final List<Aggregate> aggregates) {
+
+        this.key_labels = key_labels;
+        this.aggregates = aggregates;
+
+        key_indices = DataSet.getKeyIndices(schema, key_labels);
+        input_indices = new int[aggregates.size()];
+
+        for (int i = 0; i < input_indices.length; i++) {
+            final String input_label = aggregates.get(i).getInputLabel();
+            input_indices[i] = input_label == null ? -1 : schema.getHandle(input_label).getIndex();
+        }
+    }
+
+    /**
+     * Gets the column labels of the result: the key labels followed by the
+     * labels of the aggregates.
+     *
+     * @return the labels
+     */
+    List<String> getColumnLabels() {
+
+        final List<String> labels = new ArrayList<>(key_labels);
+        for (final Aggregate aggregate : aggregates) {
+
+            final String label = aggregate.getOutputLabel();
+            if (labels.contains(label)) {
+                throw new RuntimeException("duplicate column label in group by: " + label);
+            }
+            labels.add(label);
+        }
+        return labels;
+    }
+
+    /**
+     * Computes a record for each group, with the groups in order of their
+     * first occurrence.
+     *
+     * @param records the records
+     * @param mode    the execution mode
+     * @return the result records
+     */
+    List<List<String>> execute(final List<List<String>> records, final ExecutionMode mode) {
+
+        final Map<List<String>, Aggregate.State[]> groups;
+
+        if (mode == ExecutionMode.PARALLEL && records.size() > Plan.MIN_CHUNK_SIZE) {
+
+            final List<Map<List<String>, Aggregate.State[]>> partial_groups = Plan.split(records).parallelStream().
+                    map(this::aggregate).
+                    collect(Collectors.toList());
+
+            groups = partial_groups.get(0);
+            for (int i = 1; i < partial_groups.size(); i++) {
+                merge(groups, partial_groups.get(i));
+            }
+
+        } else {
+            groups = aggregate(records);
+        }
+
+        final List<List<String>> result = new ArrayList<>(groups.size());
+
+        for (final Map.Entry<List<String>, Aggregate.State[]> group : groups.entrySet()) {
+
+            final List<String> record = new ArrayList<>(group.getKey());
+            for (final Aggregate.State state : group.getValue()) {
+                record.add(state.getResult());
+            }
+            result.add(record);
+        }
+        return result;
+    }
+
+    private Map<List<String>, Aggregate.State[]> aggregate(final List<List<String>> records) {
+
+        final Map<List<String>, Aggregate.State[]> groups = new LinkedHashMap<>();
+
+        for (final List<String> record : records) {
+
+            final Aggregate.State[] states = groups.computeIfAbsent(getKey(record), key -> newStates());
+
+            for (int i = 0; i < states.length; i++) {
+                states[i].add(input_indices[i] < 0 ? null : record.get(input_indices[i]));
+            }
+        }
+        return groups;
+    }
+
+    private void merge(final Map<List<String>, Aggregate.State[]> groups, final Map<List<String>, Aggregate.State[]> later_groups) {
+
+        for (final Map.Entry<List<String>, Aggregate.State[]> group : later_groups.entrySet()) {
+
+            final Aggregate.State[] states = groups.get(group.getKey());
+
+            if (states == null) {
+                groups.put(group.getKey(), group.getValue());
+
+            } else {
+                final Aggregate.State[] later_states = group.getValue();
+                for (int i = 0; i < states.length; i++) {
+                    states[i].merge(later_states[i]);
+                }
+            }
+        }
+    }
+
+    private List<String> getKey(final List<String> record) {
+
+        final String[] key = new String[key_indices.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = record.get(key_indices[i]);
+        }
+        return Arrays.asList(key);
+    }
+
+    private Aggregate.State[] newStates() {
+
+        final Aggregate.State[] states = new Aggregate.State[aggregates.size()];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = aggregates.get(i).newState();
+        }
+        return states;
+    }
+}
@@ -0,0 +1,520 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import uk.ac.standrews.cs.utilities.dataset.derived.ExternalSort;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Joins two datasets on key columns. Matching records are found either with a
+ * hash table of record positions built on the smaller dataset, or by sorting
+ * the key values and positions of the records of both datasets with an
+ * {@link ExternalSort} and merging them. In either case the records themselves
+ * are not copied until the output is assembled.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+class Join {
+
+    private static final int EMPTY = -1;
+
+    /**
+     * The proportion of the maximum heap size used as the memory budget for
+     * each side of a sort-merge join, if none is specified.
+     */
+    private static final int DEFAULT_MEMORY_BUDGET_DIVISOR = 4;
+
+    private static final Comparator<String> KEY_VALUE_ORDER = Comparator.nullsFirst(Comparator.naturalOrder());
+
+    private final DataSet left;
+    private final DataSet right;
+    private final List<String> left_key_labels;
+    private final List<String> right_key_labels;
+    private final JoinType type;
+
+    private final List<List<String>> left_records;
+    private final List<List<String>> right_records;
+    private final int[] left_key_indices;
+    private final int[] right_key_indices;
+
+    // Positions of the right columns included in combined records.
+    private final int[] right_value_indices;
+
+    Join(final DataSet left, final DataSet right, final List<String> left_key_labels, final List<String> right_key_labels, final JoinType type) {
+
+        if (left_key_labels.size() != right_key_labels.size()) {
+            throw new RuntimeException("join has " + left_key_labels.size() + " left key columns but " + right_key_labels.size() + " right key columns");
+        }
+
+        this.left = left;
+        this.right = right;
+        this.left_key_labels = left_key_labels;
+        this.right_key_labels = right_key_labels;
+        this.type = type;
+
+        left_records = left.getRecords();
+        right_records = right.getRecords();
+        left_key_indices = DataSet.getKeyIndices(left.getSchema(), left_key_labels);
+        right_key_indices = DataSet.getKeyIndices(right.getSchema(), right_key_labels);
+        right_value_indices = getRightValueIndices();
+    }
+
+    /**
+     * Gets the column labels of the result: those of the left dataset,
+     * followed for inner and outer joins by those of the right dataset other
+     * than its key columns.
+     *
+     * @return the column labels
+     * @throws RuntimeException if a right column label is also a left column
+     *                          label
+     */
+    List<String> getColumnLabels() {
+
+        final List<String> left_labels = left.getColumnLabels();
+
+        if (!combinesRecords()) {
+            return left_labels;
+        }
+
+        final List<String> labels = new ArrayList<>(left_labels);
+        final Set<String> existing_labels = new HashSet<>(left_labels);
+
+        for (final int index : right_value_indices) {
+
+            final String label = right.getColumnLabels().get(index);
+            if (!existing_labels.add(label)) {
+                throw new RuntimeException("duplicate column label in join: " + label);
+            }
+            labels.add(label);
+        }
+        return labels;
+    }
+
+    /**
+     * Finds the matching records and assembles the result. A sort-merge join
+     * uses a memory budget of a quarter of the maximum heap size.
+     *
+     * @param strategy the way in which matching records are found
+     * @return the records of the result
+     * @throws UncheckedIOException if the temporary files for a sort-merge
+     *                              join cannot be written or read
+     */
+    List<List<String>> execute(final JoinStrategy strategy) {
+
+        if (strategy == JoinStrategy.SORT_MERGE) {
+            try {
+                return executeSortMerge(Runtime.getRuntime().maxMemory() / DEFAULT_MEMORY_BUDGET_DIVISOR);
+
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        final Matches matches = new Matches();
+
+        if (right_records.size() <= left_records.size()) {
+            hashOnRight(matches);
+
+        } else {
+            hashOnLeft(matches);
+        }
+
+        return assemble(matches);
+    }
+
+    /**
+     * Finds the matching records by sorting and merging, and assembles the
+     * result.
+     *
+     * @param memory_budget the approximate number of bytes of key values to be
+     *                      held in memory at once by the sort of each dataset
+     * @return the records of the result
+     * @throws IOException if the temporary files cannot be written or read
+     */
+    List<List<String>> executeSortMerge(final long memory_budget) throws IOException {
+
+        final Matches matches = new Matches();
+        sortMerge(matches, memory_budget);
+        return assemble(matches);
+    }
+
+    private boolean combinesRecords() {
+
+        return type == JoinType.INNER || type == JoinType.LEFT_OUTER;
+    }
+
+    private int[] getRightValueIndices() {
+
+        final Set<Integer> key_indices = new HashSet<>();
+        for (final int index : right_key_indices) {
+            key_indices.add(index);
+        }
+
+        return IntStream.range(0, right.getColumnLabels().size()).filter(index -> !key_indices.contains(index)).toArray();
+    }
+
+    /**
+     * Builds a table on the right records and probes it with each left record
+     * in turn.
+     */
+    private void hashOnRight(final Matches matches) {
+
+        final PositionTable table = new PositionTable(right_records, right_key_indices);
+
+        for (int left_position = 0; left_position < left_records.size(); left_position++) {
+
+            final List<String> left_record = left_records.get(left_position);
+            int right_position = table.getFirst(left_record, left_key_indices);
+
+            matches.startLeft();
+            while (right_position != EMPTY && matches.add(left_position, right_position)) {
+                right_position = table.getNext(right_position);
+            }
+            matches.endLeft(left_position);
+        }
+    }
+
+    /**
+     * Builds a table on the left records and probes it with each right record,
+     * then orders the matches by left position.
+     */
+    private void hashOnLeft(final Matches matches) {
+
+        final PositionTable table = new PositionTable(left_records, left_key_indices);
+
+        long[] pairs = new long[16];
+        int number_of_pairs = 0;
+
+        for (int right_position = 0; right_position < right_records.size(); right_position++) {
+
+            int left_position = table.getFirst(right_records.get(right_position), right_key_indices);
+            while (left_position != EMPTY) {
+
+                if (number_of_pairs == pairs.length) {
+                    pairs = Arrays.copyOf(pairs, number_of_pairs * 2);
+                }
+                pairs[number_of_pairs++] = (long) left_position << 32 | right_position;
+                left_position = table.getNext(left_position);
+            }
+        }
+
+        final long[] ordered_pairs = Arrays.copyOf(pairs, number_of_pairs);
+
+        // Ordered by left position, then right position.
+        Arrays.parallelSort(ordered_pairs);
+
+        int pair_index = 0;
+        for (int left_position = 0; left_position < left_records.size(); left_position++) {
+
+            matches.startLeft();
+            while (pair_index < ordered_pairs.length && (int) (ordered_pairs[pair_index] >>> 32) == left_position) {
+                matches.add(left_position, (int) ordered_pairs[pair_index++]);
+            }
+            matches.endLeft(left_position);
+        }
+    }
+
+    /**
+     * Sorts the key values and positions of the records on each side, and
+     * merges them. Only the positions of the right records with the current
+     * key are held in memory during the merge.
+     */
+    private void sortMerge(final Matches matches, final long memory_budget) throws IOException {
+
+        try (final ExternalSort.SortedRecords left_entries = sortEntries(left_records, left_key_indices, memory_budget);
+             final ExternalSort.SortedRecords right_entries = sortEntries(right_records, right_key_indices, memory_budget)) {
+
+            // Positions of the right records with the same key as the current left record.
+            final List<Integer> right_group = new ArrayList<>();
+            List<String> right_group_entry = null;
+            List<String> right_entry = nextOrNull(right_entries);
+
+            while (left_entries.hasNext()) {
+
+                final List<String> left_entry = left_entries.next();
+                final int left_position = getPosition(left_entry);
+
+                if (right_group_entry == null || compareKeys(left_entry, right_group_entry) != 0) {
+
+                    right_group.clear();
+                    right_group_entry = null;
+
+                    // Skip right records with smaller keys.
+                    while (right_entry != null && compareKeys(left_entry, right_entry) > 0) {
+                        right_entry = nextOrNull(right_entries);
+                    }
+
+                    if (right_entry != null && compareKeys(left_entry, right_entry) == 0) {
+
+                        right_group_entry = right_entry;
+                        while (right_entry != null && compareKeys(right_group_entry, right_entry) == 0) {
+                            right_group.add(getPosition(right_entry));
+                            right_entry = nextOrNull(right_entries);
+                        }
+                    }
+                }
+
+                matches.startLeft();
+                for (final int right_position : right_group) {
+                    if (!matches.add(left_position, right_position)) {
+                        break;
+                    }
+                }
+                matches.endLeft(left_position);
+            }
+
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Sorts the key values of records, each followed by the position of the
+     * record. The sort is stable, so records with equal keys remain in order
+     * of position.
+     */
+    private static ExternalSort.SortedRecords sortEntries(final List<List<String>> records, final int[] key_indices, final long memory_budget) throws IOException {
+
+        final Iterable<List<String>> entries = () -> IntStream.range(0, records.size()).mapToObj(position -> {
+
+            final List<String> record = records.get(position);
+            final List<String> entry = new ArrayList<>(key_indices.length + 1);
+
+            for (final int key_index : key_indices) {
+                entry.add(record.get(key_index));
+            }
+            entry.add(String.valueOf(position));
+            return entry;
+        }).iterator();
+
+        return new ExternalSort(memory_budget, DataSet.getCharset(), Join::compareKeys).sort(entries);
+    }
+
+    /**
+     * Compares the key values of two sort entries in the same order as
+     * {@link SortKey.Ordering#LEXICAL}.
+     */
+    private static int compareKeys(final List<String> entry1, final List<String> entry2) {
+
+        for (int i = 0; i < entry1.size() - 1; i++) {
+
+            final int comparison = KEY_VALUE_ORDER.compare(entry1.get(i), entry2.get(i));
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return 0;
+    }
+
+    private static int getPosition(final List<String> entry) {
+
+        return Integer.parseInt(entry.get(entry.size() - 1));
+    }
+
+    private static List<String> nextOrNull(final ExternalSort.SortedRecords entries) {
+
+        return entries.hasNext() ? entries.next() : null;
+    }
+
+    private List<List<String>> assemble(final Matches matches) {
+
+        if (!combinesRecords()) {
+            return DataSet.gatherRecords(left_records, matches.getLeftPositions());
+        }
+
+        final int[] left_positions = matches.getLeftPositions();
+        final int[] right_positions = matches.getRightPositions();
+        final List<List<String>> result = new ArrayList<>(left_positions.length);
+
+        for (int i = 0; i < left_positions.length; i++) {
+
+            final List<String> record = new ArrayList<>(left_records.get(left_positions[i]));
+
+            if (right_positions[i] == EMPTY) {
+                record.addAll(Collections.nCopies(right_value_indices.length, ""));
+
+            } else {
+                final List<String> right_record = right_records.get(right_positions[i]);
+                for (final int index : right_value_indices) {
+                    record.add(right_record.get(index));
+                }
+            }
+            result.add(record);
+        }
+        return result;
+    }
+
+    /**
+     * Accumulates the pairs of positions that make up the result, according to
+     * the join type.
+     */
+    private class Matches {
+
+        private int[] left_positions = new int[16];
+        private int[] right_positions = new int[16];
+        private int count = 0;
+        private boolean matched;
+
+        void startLeft() {
+
+            matched = false;
+        }
+
+        /**
+         * Records a match.
+         *
+         * @return true if further matches for the same left record are needed
+         */
+        boolean add(final int left_position, final int right_position) {
+
+            matched = true;
+
+            switch (type) {
+                case INNER:
+                case LEFT_OUTER:
+                    append(left_position, right_position);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        void endLeft(final int left_position) {
+
+            if (type == JoinType.SEMI && matched) {
+                append(left_position, EMPTY);
+            }
+            if ((type == JoinType.ANTI || type == JoinType.LEFT_OUTER) && !matched) {
+                append(left_position, EMPTY);
+            }
+        }
+
+        int[] getLeftPositions() {
+
+            return Arrays.copyOf(left_positions, count);
+        }
+
+        int[] getRightPositions() {
+
+            return Arrays.copyOf(right_positions, count);
+        }
+
+        private void append(final int left_position, final int right_position) {
+
+            if (count == left_positions.length) {
+                left_positions = Arrays.copyOf(left_positions, count * 2);
+                right_positions = Arrays.copyOf(right_positions, count * 2);
+            }
+            left_positions[count] = left_position;
+            right_positions[count] = right_position;
+            count++;
+        }
+    }
+
+    /**
+     * Hash table of record positions keyed on the values of given columns.
+     * Records with equal keys are chained, in ascending order of position.
+     */
+    private static class PositionTable {
+
+        private final List<List<String>> records;
+        private final int[] key_indices;
+        private final int[] table;
+        private final int[] next;
+
+        PositionTable(final List<List<String>> records, final int[] key_indices) {
+
+            this.records = records;
+            this.key_indices = key_indices;
+
+            table = new int[Integer.highestOneBit(Math.max(records.size(), 1) * 2 - 1) * 2];
+            next = new int[records.size()];
+            Arrays.fill(table, EMPTY);
+
+            // Insert in reverse order, adding each record at the head of its chain.
+            for (int position = records.size() - 1; position >= 0; position--) {
+
+                final List<String> record = records.get(position);
+                final int slot = findSlot(record, key_indices);
+
+                next[position] = table[slot];
+                table[slot] = position;
+            }
+        }
+
+        /**
+         * Gets the first position of a record with the same key as the given
+         * record.
+         *
+         * @return the position, or -1 if there is none
+         */
+        int getFirst(final List<String> record, final int[] record_key_indices) {
+
+            return table[findSlot(record, record_key_indices)];
+        }
+
+        int getNext(final int position) {
+
+            return next[position];
+        }
+
+        /**
+         * Finds the slot holding the chain for the key of the given record, or
+         * the empty slot where it would be added.
+         */
+        private int findSlot(final List<String> record, final int[] record_key_indices) {
+
+            final int mask = table.length - 1;
+            int slot = hash(record, record_key_indices) & mask;
+
+            while (table[slot] != EMPTY && !keysEqual(records.get(table[slot]), record, record_key_indices)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private boolean keysEqual(final List<String> stored_record, final List<String> record, final int[] record_key_indices) {
+
+            for (int i = 0; i < key_indices.length; i++) {
+                if (!Objects.equals(stored_record.get(key_indices[i]), record.get(record_key_indices[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int hash(final List<String> record, final int[] key_indices) {
+
+            int hash = 1;
+            for (final int key_index : key_indices) {
+                hash = 31 * hash + Objects.hashCode(record.get(key_index));
+            }
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+/**
+ * The ways in which matching records are found when two datasets are joined.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+public enum JoinStrategy {
+
+    /**
+     * A hash table of record positions is built on the smaller dataset and
+     * probed with the records of the other. The result is in the order of the
+     * left records, with matches for each in the order of the right records.
+     */
+    HASH,
+
+    /**
+     * The key values and positions of the records of each dataset are sorted
+     * within a memory budget, with sorted runs beyond the budget written to
+     * temporary files and merged as for
+     * {@link uk.ac.standrews.cs.utilities.dataset.derived.ExternalSort}; the
+     * two sorted sequences are then merged, so no hash table is needed. Apart
+     * from the sorts, only the positions of the right records sharing the
+     * current key and the positions of the matches are held in memory, so
+     * this suits datasets whose keys are too large to sort or hash in memory,
+     * such as mapped datasets. The result is in ascending lexical order of the
+     * keys; records with equal keys are in their original order.
+     */
+    SORT_MERGE
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+/**
+ * The kinds of join between two datasets.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ * @see DataSet#join(DataSet, java.util.List, java.util.List, JoinType)
+ */
+public enum JoinType {
+
+    /**
+     * Each pair of matching records gives a combined record.
+     */
+    INNER,
+
+    /**
+     * As {@link #INNER}, and each left record with no match gives a combined
+     * record with empty values for the right columns.
+     */
+    LEFT_OUTER,
+
+    /**
+     * Each left record with at least one match is retained, once, with the
+     * left columns only.
+     */
+    SEMI,
+
+    /**
+     * Each left record with no match is retained, with the left columns only.
+     */
+    ANTI
+}
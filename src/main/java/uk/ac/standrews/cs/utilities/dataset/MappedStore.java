@@ -0,0 +1,375 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import org.apache.commons.csv.CSVFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Store for the records of a dataset that reads them directly from a
+ * memory-mapped CSV file. The file is tokenized once, recording the position
+ * and length of each value within the mapped bytes; values are only decoded
+ * into strings when they are read, and are not retained. Records added after
+ * loading are held separately in memory.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+class MappedStore extends AbstractList<List<String>> implements RandomAccess, AppendOnlyRecords {
+
+    /**
+     * The largest part of the file mapped as a single buffer. Each part starts
+     * at a record boundary.
+     */
+    private static final long MAX_SEGMENT_SIZE = 1 << 30;
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    // Outside the range of byte values, so never matches.
+    private static final int NO_QUOTE = 256;
+
+    private static final byte NEWLINE = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    private final Charset charset;
+    private final byte delimiter;
+    private final int quote;
+
+    private final List<ByteBuffer> segments = new ArrayList<>();
+
+    // Position of each value within its segment.
+    private int[] value_offsets = new int[DEFAULT_CAPACITY];
+
+    // Length of each value, excluding enclosing quotes. Negated and offset by one if the value contains escaped quotes.
+    private int[] value_lengths = new int[DEFAULT_CAPACITY];
+    private int number_of_values = 0;
+
+    // Index of the first value of each record, with an additional entry marking the end of the last record.
+    private int[] record_starts = new int[DEFAULT_CAPACITY + 1];
+    private int[] record_segments = new int[DEFAULT_CAPACITY];
+    private int number_of_records = 0;
+
+    private final List<List<String>> added_records = new ArrayList<>();
+
+    private MappedStore(final CSVFormat input_format, final Charset charset) {
+
+        this.charset = charset;
+
+        delimiter = (byte) input_format.getDelimiterString().charAt(0);
+        quote = input_format.isQuoteCharacterSet() ? input_format.getQuoteCharacter() : NO_QUOTE;
+    }
+
+    /**
+     * Tests whether files in a given format and encoding can be read by this
+     * store. In addition to the restrictions imposed by
+     * {@link ParallelCSVLoader#canSplit(CSVFormat, Charset)}, values must not
+     * be trimmed or converted to null.
+     *
+     * @param input_format the format
+     * @param charset      the encoding
+     * @return true if files can be read
+     */
+    static boolean canMap(final CSVFormat input_format, final Charset charset) {
+
+        return ParallelCSVLoader.canSplit(input_format, charset) && !input_format.getTrim() && input_format.getNullString() == null;
+    }
+
+    /**
+     * Maps a CSV file and tokenizes its records. The first record gives the
+     * column labels, and is not included in the store.
+     *
+     * @param path         the path of the file
+     * @param input_format the format
+     * @param charset      the encoding
+     * @param labels       a list to which the column labels are added
+     * @return the new store
+     * @throws IOException if the file cannot be read
+     */
+    static MappedStore load(final Path path, final CSVFormat input_format, final Charset charset, final List<String> labels) throws IOException {
+
+        final MappedStore store = new MappedStore(input_format, charset);
+
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            store.tokenize(channel);
+        }
+
+        if (store.number_of_records > 0) {
+            labels.addAll(store.get(0));
+            store.removeHeader();
+        }
+        return store;
+    }
+
+    @Override
+    public List<String> get(final int index) {
+
+        if (index >= number_of_records) {
+            return added_records.get(index - number_of_records);
+        }
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        return new Record(index);
+    }
+
+    @Override
+    public int size() {
+
+        return number_of_records + added_records.size();
+    }
+
+    @Override
+    public boolean add(final List<String> record) {
+
+        modCount++;
+        return added_records.add(record);
+    }
+
+    private void tokenize(final FileChannel channel) throws IOException {
+
+        final long file_size = channel.size();
+        long segment_start = 0;
+
+        while (segment_start < file_size) {
+
+            final long segment_end = Math.min(segment_start + MAX_SEGMENT_SIZE, file_size);
+            final ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, segment_start, segment_end - segment_start);
+
+            final int processed = tokenize(segment, segments.size(), segment_end == file_size);
+
+            if (processed == 0) {
+                throw new RuntimeException("record at position " + segment_start + " exceeds maximum size");
+            }
+            segments.add(segment);
+            segment_start += processed;
+        }
+    }
+
+    /**
+     * Tokenizes the complete records in a segment.
+     *
+     * @return the number of bytes processed
+     */
+    private int tokenize(final ByteBuffer segment, final int segment_index, final boolean last_segment) {
+
+        int position = 0;
+        final int limit = segment.limit();
+
+        while (position < limit) {
+
+            final int record_end = tokenizeRecord(segment, position, last_segment);
+
+            if (record_end < 0) {
+                // Incomplete record at the end of the segment; it will be tokenized again from the next segment.
+                break;
+            }
+
+            addRecord(segment_index);
+            position = record_end;
+        }
+        return position;
+    }
+
+    /**
+     * Tokenizes a single record, adding its values.
+     *
+     * @return the position following the record, or -1 if the record is not
+     * complete within the segment
+     */
+    private int tokenizeRecord(final ByteBuffer segment, int position, final boolean last_segment) {
+
+        final int first_value = number_of_values;
+        final int limit = segment.limit();
+
+        while (true) {
+
+            final int value_start;
+            final int value_length;
+
+            if (position < limit && segment.get(position) == quote) {
+
+                // Quoted value: scan to the closing quote, skipping escaped quotes.
+                value_start = position + 1;
+                boolean escaped = false;
+                position = value_start;
+
+                while (true) {
+                    if (position >= limit) {
+                        if (last_segment) throw new RuntimeException("EOF reached before encapsulated token finished");
+                        number_of_values = first_value;
+                        return -1;
+                    }
+                    if (segment.get(position) == quote) {
+                        if (position + 1 < limit && segment.get(position + 1) == quote) {
+                            escaped = true;
+                            position += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    position++;
+                }
+
+                value_length = escaped ? -(position - value_start) - 1 : position - value_start;
+                position++;
+
+                if (position < limit && !isSeparator(segment.get(position))) {
+                    throw new RuntimeException("invalid char between encapsulated token and delimiter");
+                }
+
+            } else {
+
+                value_start = position;
+                while (position < limit && !isSeparator(segment.get(position))) {
+                    position++;
+                }
+                value_length = position - value_start;
+            }
+
+            if (position >= limit && !last_segment) {
+                number_of_values = first_value;
+                return -1;
+            }
+
+            addValue(value_start, value_length);
+
+            if (position >= limit) {
+                return position;
+            }
+
+            final byte separator = segment.get(position++);
+
+            if (separator == CARRIAGE_RETURN) {
+                if (position >= limit && !last_segment) {
+                    number_of_values = first_value;
+                    return -1;
+                }
+                if (position < limit && segment.get(position) == NEWLINE) {
+                    position++;
+                }
+                return position;
+            }
+            if (separator == NEWLINE) {
+                return position;
+            }
+        }
+    }
+
+    private boolean isSeparator(final byte b) {
+
+        return b == delimiter || b == NEWLINE || b == CARRIAGE_RETURN;
+    }
+
+    private void addValue(final int offset, final int length) {
+
+        if (number_of_values == value_offsets.length) {
+            value_offsets = Arrays.copyOf(value_offsets, number_of_values * 2);
+            value_lengths = Arrays.copyOf(value_lengths, number_of_values * 2);
+        }
+        value_offsets[number_of_values] = offset;
+        value_lengths[number_of_values] = length;
+        number_of_values++;
+    }
+
+    private void addRecord(final int segment_index) {
+
+        final int first_value = record_starts[number_of_records];
+
+        // Don't add record if the line was empty.
+        if (number_of_values - first_value == 1 && getLength(value_lengths[first_value]) == 0) {
+            number_of_values = first_value;
+            return;
+        }
+
+        if (number_of_records + 1 == record_segments.length) {
+            record_starts = Arrays.copyOf(record_starts, record_segments.length * 2 + 1);
+            record_segments = Arrays.copyOf(record_segments, record_segments.length * 2);
+        }
+        record_segments[number_of_records] = segment_index;
+        number_of_records++;
+        record_starts[number_of_records] = number_of_values;
+    }
+
+    private void removeHeader() {
+
+        number_of_records--;
+        System.arraycopy(record_starts, 1, record_starts, 0, number_of_records + 1);
+        System.arraycopy(record_segments, 1, record_segments, 0, number_of_records);
+    }
+
+    private String decode(final int segment_index, final int value_index) {
+
+        final int encoded_length = value_lengths[value_index];
+        final byte[] bytes = new byte[getLength(encoded_length)];
+
+        final ByteBuffer view = segments.get(segment_index).duplicate();
+        view.position(value_offsets[value_index]);
+        view.get(bytes);
+
+        final String value = new String(bytes, charset);
+        return encoded_length < 0 ? unescape(value) : value;
+    }
+
+    private String unescape(final String value) {
+
+        final String quote_string = String.valueOf((char) quote);
+        return value.replace(quote_string + quote_string, quote_string);
+    }
+
+    private static int getLength(final int encoded_length) {
+
+        return encoded_length < 0 ? -encoded_length - 1 : encoded_length;
+    }
+
+    /**
+     * View of a single record, decoding each value on access.
+     */
+    private class Record extends AbstractList<String> implements RandomAccess {
+
+        private final int record_index;
+
+        Record(final int record_index) {
+
+            this.record_index = record_index;
+        }
+
+        @Override
+        public String get(final int index) {
+
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            return decode(record_segments[record_index], record_starts[record_index] + index);
+        }
+
+        @Override
+        public int size() {
+
+            return record_starts[record_index + 1] - record_starts[record_index];
+        }
+    }
+}
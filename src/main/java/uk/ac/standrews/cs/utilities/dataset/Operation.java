@@ -0,0 +1,501 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import uk.ac.standrews.cs.utilities.dataset.derived.Mapper;
+import uk.ac.standrews.cs.utilities.dataset.derived.PositionalExtender;
+import uk.ac.standrews.cs.utilities.dataset.derived.Selector;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * A relational-style operation applied to one record at a time. Operations
+ * are used to process records without building an intermediate dataset for
+ * each step.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+abstract class Operation {
+
+    /**
+     * Prepares this operation for an evaluation over a sequence of records.
+     * Called once before each evaluation. Any state resulting from binding is
+     * held by the returned operation, so that this operation and the
+     * user-supplied objects it applies can be shared by datasets evaluated
+     * concurrently.
+     *
+     * @return an operation bound for a single evaluation, which may be this
+     * operation if it holds no state
+     */
+    Operation bind() {
+
+        return this;
+    }
+
+    /**
+     * Applies this operation to a record. The result may be a view over the
+     * input record.
+     *
+     * @param record       the input record
+     * @param record_index the position of the record within the input to this
+     *                     operation
+     * @return the output record, or null if the record is not selected
+     */
+    abstract List<String> apply(List<String> record, int record_index);
+
+    /**
+     * Tests whether the result of this operation depends on the position of
+     * each record.
+     *
+     * @return true if the result depends on record positions
+     */
+    boolean usesPosition() {
+
+        return false;
+    }
+
+    /**
+     * Tests whether this operation may omit records, so that the positions of
+     * records in its output differ from those in its input.
+     *
+     * @return true if record positions may change
+     */
+    boolean changesPositions() {
+
+        return false;
+    }
+
+    /**
+     * Prepares a sequence of operations for an evaluation over a sequence of
+     * records.
+     *
+     * @param operations the operations
+     * @return the bound operations
+     */
+    static List<Operation> bindAll(final List<Operation> operations) {
+
+        final List<Operation> bound_operations = new ArrayList<>(operations.size());
+        for (final Operation operation : operations) {
+            bound_operations.add(operation.bind());
+        }
+        return bound_operations;
+    }
+
+    /**
+     * A pass of a sequence of operations over consecutive records, tracking
+     * the position of each record within the input to each operation.
+     */
+    static class Pass {
+
+        private final List<Operation> operations;
+        private final int[] positions;
+
+        /**
+         * @param operations     the operations, already bound
+         * @param first_position the position of the first record to be
+         *                       processed, within the input to the first
+         *                       operation
+         */
+        Pass(final List<Operation> operations, final int first_position) {
+
+            this.operations = operations;
+            positions = new int[operations.size()];
+            Arrays.fill(positions, first_position);
+        }
+
+        /**
+         * Applies the operations to the next record.
+         *
+         * @param record the input record
+         * @return the output record, or null if the record is not selected by
+         * one of the operations
+         */
+        List<String> apply(final List<String> record) {
+
+            final List<String> output_record = applyAsView(record);
+
+            // Don't let views over intermediate records escape.
+            return output_record instanceof ProjectedRecord ? new ArrayList<>(output_record) : output_record;
+        }
+
+        /**
+         * Tests whether the next record is selected by all of the operations,
+         * without copying the output record.
+         *
+         * @param record the input record
+         * @return true if the record is selected
+         */
+        boolean selects(final List<String> record) {
+
+            return applyAsView(record) != null;
+        }
+
+        private List<String> applyAsView(List<String> record) {
+
+            for (int i = 0; i < positions.length; i++) {
+
+                record = operations.get(i).apply(record, positions[i]++);
+                if (record == null) {
+                    return null;
+                }
+            }
+            return record;
+        }
+    }
+
+    static class Selection extends Operation {
+
+        private final Selector selector;
+        private final DataSet input;
+        private final Selector bound_selector;
+
+        /**
+         * @param selector the selector
+         * @param input    the dataset passed to the selector as the context for
+         *                 each record
+         */
+        Selection(final Selector selector, final DataSet input) {
+
+            this(selector, input, selector);
+        }
+
+        private Selection(final Selector selector, final DataSet input, final Selector bound_selector) {
+
+            this.selector = selector;
+            this.input = input;
+            this.bound_selector = bound_selector;
+        }
+
+        @Override
+        Operation bind() {
+
+            return new Selection(selector, input, selector.bind(input.getSchema()));
+        }
+
+        Selector getSelector() {
+
+            return selector;
+        }
+
+        DataSet getInput() {
+
+            return input;
+        }
+
+        @Override
+        boolean changesPositions() {
+
+            return true;
+        }
+
+        @Override
+        List<String> apply(final List<String> record, final int record_index) {
+
+            return bound_selector.select(record, input) ? record : null;
+        }
+    }
+
+    static class Projection extends Operation {
+
+        private final int[] column_indices;
+
+        Projection(final int[] column_indices) {
+
+            this.column_indices = column_indices;
+        }
+
+        int[] getColumnIndices() {
+
+            return column_indices;
+        }
+
+        /**
+         * Creates a projection equivalent to applying this projection followed
+         * by another.
+         *
+         * @param next the projection to be applied after this one
+         * @return the combined projection
+         */
+        Projection then(final Projection next) {
+
+            final int[] combined = new int[next.column_indices.length];
+            for (int i = 0; i < combined.length; i++) {
+                combined[i] = column_indices[next.column_indices[i]];
+            }
+            return new Projection(combined);
+        }
+
+        @Override
+        List<String> apply(final List<String> record, final int record_index) {
+
+            return new ProjectedRecord(record, column_indices);
+        }
+    }
+
+    static class Deduplication extends Operation {
+
+        private final int[] key_indices;
+        private final Set<List<String>> seen_keys = new HashSet<>();
+
+        /**
+         * @param key_indices the positions of the key columns, or null if whole
+         *                    records are compared
+         */
+        Deduplication(final int[] key_indices) {
+
+            this.key_indices = key_indices;
+        }
+
+        @Override
+        Operation bind() {
+
+            return new Deduplication(key_indices);
+        }
+
+        @Override
+        boolean changesPositions() {
+
+            return true;
+        }
+
+        @Override
+        List<String> apply(final List<String> record, final int record_index) {
+
+            return seen_keys.add(getKey(record)) ? record : null;
+        }
+
+        private List<String> getKey(final List<String> record) {
+
+            if (key_indices == null) {
+                return new ArrayList<>(record);
+            }
+
+            final List<String> key = new ArrayList<>(key_indices.length);
+            for (final int key_index : key_indices) {
+                key.add(record.get(key_index));
+            }
+            return key;
+        }
+    }
+
+    static class Mapping extends Operation {
+
+        private final Mapper mapper;
+        private final DataSet input;
+        private final Mapper bound_mapper;
+
+        Mapping(final Mapper mapper, final DataSet input) {
+
+            this(mapper, input, mapper);
+        }
+
+        private Mapping(final Mapper mapper, final DataSet input, final Mapper bound_mapper) {
+
+            this.mapper = mapper;
+            this.input = input;
+            this.bound_mapper = bound_mapper;
+        }
+
+        @Override
+        Operation bind() {
+
+            return new Mapping(mapper, input, mapper.bind(input.getSchema()));
+        }
+
+        @Override
+        List<String> apply(final List<String> record, final int record_index) {
+
+            return bound_mapper.mapRecord(record, input.getColumnLabels());
+        }
+    }
+
+    static class Extension extends Operation {
+
+        private final PositionalExtender extender;
+        private final DataSet input;
+        private final PositionalExtender bound_extender;
+
+        Extension(final PositionalExtender extender, final DataSet input) {
+
+            this(extender, input, extender);
+        }
+
+        private Extension(final PositionalExtender extender, final DataSet input, final PositionalExtender bound_extender) {
+
+            this.extender = extender;
+            this.input = input;
+            this.bound_extender = bound_extender;
+        }
+
+        /**
+         * Gets the number of columns in the records to which this extension is
+         * applied.
+         *
+         * @return the number of input columns
+         */
+        int getInputWidth() {
+
+            return input.getColumnLabels().size();
+        }
+
+        List<String> getAdditionalValues(final List<String> record, final int record_index) {
+
+            return bound_extender.getAdditionalValues(record, record_index, input);
+        }
+
+        @Override
+        Extension bind() {
+
+            return new Extension(extender, input, extender.bind(input.getSchema()));
+        }
+
+        @Override
+        boolean usesPosition() {
+
+            return true;
+        }
+
+        @Override
+        List<String> apply(final List<String> record, final int record_index) {
+
+            final List<String> additional_values = getAdditionalValues(record, record_index);
+
+            final List<String> extended_record = new ArrayList<>(record.size() + additional_values.size());
+            extended_record.addAll(record);
+            extended_record.addAll(additional_values);
+            return extended_record;
+        }
+    }
+
+    /**
+     * Numbers records from 1 in order of position, with the number either
+     * placed ahead of the existing values or replacing the first value.
+     */
+    static class Numbering extends Operation {
+
+        private final boolean replace_first_column;
+
+        Numbering(final boolean replace_first_column) {
+
+            this.replace_first_column = replace_first_column;
+        }
+
+        boolean replacesFirstColumn() {
+
+            return replace_first_column;
+        }
+
+        @Override
+        boolean usesPosition() {
+
+            return true;
+        }
+
+        @Override
+        List<String> apply(final List<String> record, final int record_index) {
+
+            final int first_retained = replace_first_column ? 1 : 0;
+
+            final List<String> numbered_record = new ArrayList<>(record.size() + 1 - first_retained);
+            numbered_record.add(String.valueOf(record_index + 1));
+
+            for (int i = first_retained; i < record.size(); i++) {
+                numbered_record.add(record.get(i));
+            }
+            return numbered_record;
+        }
+    }
+
+    /**
+     * An extension followed by a projection, evaluated without building the
+     * full extended record.
+     */
+    static class ProjectedExtension extends Operation {
+
+        private final Extension extension;
+        private final int[] column_indices;
+
+        ProjectedExtension(final Extension extension, final int[] column_indices) {
+
+            this.extension = extension;
+            this.column_indices = column_indices;
+        }
+
+        ProjectedExtension then(final Projection next) {
+
+            return new ProjectedExtension(extension, new Projection(column_indices).then(next).getColumnIndices());
+        }
+
+        @Override
+        Operation bind() {
+
+            return new ProjectedExtension(extension.bind(), column_indices);
+        }
+
+        @Override
+        boolean usesPosition() {
+
+            return true;
+        }
+
+        @Override
+        List<String> apply(final List<String> record, final int record_index) {
+
+            final List<String> additional_values = extension.getAdditionalValues(record, record_index);
+            final int input_width = extension.getInputWidth();
+
+            final List<String> projected_record = new ArrayList<>(column_indices.length);
+            for (final int column_index : column_indices) {
+                projected_record.add(column_index < input_width ? record.get(column_index) : additional_values.get(column_index - input_width));
+            }
+            return projected_record;
+        }
+    }
+
+    /**
+     * Read-only view of selected columns of a record.
+     */
+    private static class ProjectedRecord extends AbstractList<String> implements RandomAccess {
+
+        private final List<String> record;
+        private final int[] column_indices;
+
+        ProjectedRecord(final List<String> record, final int[] column_indices) {
+
+            this.record = record;
+            this.column_indices = column_indices;
+        }
+
+        @Override
+        public String get(final int index) {
+
+            return record.get(column_indices[index]);
+        }
+
+        @Override
+        public int size() {
+
+            return column_indices.length;
+        }
+    }
+}
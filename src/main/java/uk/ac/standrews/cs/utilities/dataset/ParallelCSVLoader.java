@@ -0,0 +1,372 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Loads a CSV file by dividing it into byte ranges that start and end on
+ * record boundaries, and parsing the ranges concurrently.
+ * <p>
+ * Boundaries are found with a small state machine that tracks whether each
+ * byte falls within a quoted field, so that newlines embedded in quoted fields
+ * are not mistaken for record separators. The state at the start of each range
+ * depends on all the preceding bytes; to avoid a sequential scan, each range is
+ * first scanned concurrently from every possible starting state, and the
+ * resulting transitions are then chained together from the start of the file.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+class ParallelCSVLoader {
+
+    /**
+     * Files smaller than this are not worth dividing.
+     */
+    private static final long MIN_RANGE_SIZE = 1 << 20;
+
+    /**
+     * The largest range that can be mapped as a single buffer.
+     */
+    private static final long MAX_RANGE_SIZE = 1 << 30;
+
+    /**
+     * The number of ranges per available thread, to balance load between
+     * threads.
+     */
+    private static final int RANGES_PER_THREAD = 4;
+
+    // States of the boundary scanner.
+    private static final int FIELD_START = 0;
+    private static final int UNQUOTED = 1;
+    private static final int QUOTED = 2;
+    private static final int QUOTE_IN_QUOTED = 3;
+    private static final int NUMBER_OF_STATES = 4;
+
+    // Outside the range of byte values, so never matches.
+    private static final int NO_QUOTE = 256;
+
+    private static final byte NEWLINE = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    private final FileChannel channel;
+    private final CSVFormat input_format;
+    private final Charset charset;
+    private final byte delimiter;
+    private final int quote;
+
+    private ParallelCSVLoader(final FileChannel channel, final CSVFormat input_format, final Charset charset) {
+
+        this.channel = channel;
+        this.input_format = input_format;
+        this.charset = charset;
+
+        delimiter = (byte) input_format.getDelimiterString().charAt(0);
+        quote = input_format.isQuoteCharacterSet() ? input_format.getQuoteCharacter() : NO_QUOTE;
+    }
+
+    /**
+     * Tests whether files in a given format and encoding can be divided at
+     * record boundaries by this loader. This requires single-byte delimiter and
+     * quote characters that cannot occur within multi-byte characters, and no
+     * escape character, comment marker or surrounding space handling.
+     *
+     * @param input_format the format
+     * @param charset      the encoding
+     * @return true if files can be divided
+     */
+    static boolean canSplit(final CSVFormat input_format, final Charset charset) {
+
+        final String delimiter = input_format.getDelimiterString();
+
+        return delimiter.length() == 1 && isAscii(delimiter.charAt(0)) &&
+                (!input_format.isQuoteCharacterSet() || isAscii(input_format.getQuoteCharacter())) &&
+                !input_format.isEscapeCharacterSet() &&
+                !input_format.isCommentMarkerSet() &&
+                !input_format.getIgnoreSurroundingSpaces() &&
+                (charset.equals(StandardCharsets.UTF_8) || charset.newEncoder().maxBytesPerChar() == 1);
+    }
+
+    /**
+     * Loads a dataset from a CSV file, with the first record giving the column
+     * labels. The result is the same as that of loading the file sequentially.
+     *
+     * @param path         the path of the file
+     * @param input_format the format
+     * @param charset      the encoding
+     * @param layout       the storage layout of the new dataset
+     * @return the new dataset
+     * @throws IOException if the file cannot be read
+     */
+    static DataSet load(final Path path, final CSVFormat input_format, final Charset charset, final StorageLayout layout) throws IOException {
+
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new ParallelCSVLoader(channel, input_format, charset).load(layout);
+        }
+    }
+
+    private DataSet load(final StorageLayout layout) throws IOException {
+
+        final long size = channel.size();
+        final long header_end = findHeaderEnd(size);
+
+        final DataSet data_set = new DataSet(parseLabels(header_end), layout);
+
+        final List<List<List<String>>> parsed_ranges = getBoundaries(header_end, size).stream().
+                parallel().
+                map(this::parseRange).
+                collect(Collectors.toList());
+
+        for (final List<List<String>> records : parsed_ranges) {
+            for (final List<String> record : records) {
+                data_set.addRow(record);
+            }
+        }
+        return data_set;
+    }
+
+    private long findHeaderEnd(final long size) throws IOException {
+
+        long start = 0;
+        int state = FIELD_START;
+
+        while (start < size) {
+
+            final long end = Math.min(start + MIN_RANGE_SIZE, size);
+            final long boundary = findFirstBoundary(map(start, end), start, state);
+
+            if (boundary >= 0) {
+                return boundary;
+            }
+            state = getTransitions(start, end)[state];
+            start = end;
+        }
+        return size;
+    }
+
+    private List<String> parseLabels(final long header_end) throws IOException {
+
+        try (final CSVParser parser = new CSVParser(new InputStreamReader(new BufferInputStream(map(0, header_end)), charset), input_format.builder().setHeader().setSkipHeaderRecord(true).build())) {
+            return DataSet.getColumnLabels(parser);
+        }
+    }
+
+    /**
+     * Divides the data following the header into ranges starting on record
+     * boundaries.
+     *
+     * @return a list of ranges, each represented as a start and end position
+     */
+    private List<long[]> getBoundaries(final long start, final long end) throws IOException {
+
+        final long length = end - start;
+        final int number_of_ranges = (int) Math.max(1, Math.min(length / MIN_RANGE_SIZE, Math.max((long) ForkJoinPool.getCommonPoolParallelism() * RANGES_PER_THREAD, length / MAX_RANGE_SIZE + 1)));
+
+        final long[] range_starts = new long[number_of_ranges + 1];
+        for (int i = 0; i <= number_of_ranges; i++) {
+            range_starts[i] = start + length * i / number_of_ranges;
+        }
+
+        // Find the state transitions over each range, for every possible starting state.
+        final int[][] transitions = IntStream.range(0, number_of_ranges).parallel().
+                mapToObj(i -> getTransitions(range_starts[i], range_starts[i + 1])).
+                toArray(int[][]::new);
+
+        // Chain the transitions to find the actual state at the start of each range.
+        final int[] states = new int[number_of_ranges];
+        for (int i = 1; i < number_of_ranges; i++) {
+            states[i] = transitions[i - 1][states[i - 1]];
+        }
+
+        // Move the start of each range forward to the next record boundary.
+        final long[] boundaries = IntStream.range(0, number_of_ranges).parallel().
+                mapToLong(i -> i == 0 ? start : findFirstBoundary(range_starts[i], range_starts[i + 1], states[i])).
+                toArray();
+
+        final List<long[]> ranges = new ArrayList<>();
+        long range_start = start;
+
+        for (int i = 1; i < number_of_ranges; i++) {
+
+            // No boundary is found within a range that lies entirely inside a single record.
+            if (boundaries[i] > range_start) {
+                ranges.add(new long[]{range_start, boundaries[i]});
+                range_start = boundaries[i];
+            }
+        }
+        if (end > range_start) {
+            ranges.add(new long[]{range_start, end});
+        }
+        return ranges;
+    }
+
+    private int[] getTransitions(final long start, final long end) {
+
+        final ByteBuffer buffer = mapUnchecked(start, end);
+
+        final int[] transitions = new int[NUMBER_OF_STATES];
+        for (int state = 0; state < NUMBER_OF_STATES; state++) {
+
+            int current_state = state;
+            for (int i = 0; i < buffer.limit(); i++) {
+                current_state = next(current_state, buffer.get(i));
+            }
+            transitions[state] = current_state;
+        }
+        return transitions;
+    }
+
+    private long findFirstBoundary(final long start, final long end, final int state) {
+
+        final long boundary = findFirstBoundary(mapUnchecked(start, end), start, state);
+        return boundary >= 0 ? boundary : end;
+    }
+
+    /**
+     * Finds the position following the first newline that is not within a
+     * quoted field.
+     *
+     * @return the position, or -1 if there is no such newline
+     */
+    private long findFirstBoundary(final ByteBuffer buffer, final long start, int state) {
+
+        for (int i = 0; i < buffer.limit(); i++) {
+
+            final byte b = buffer.get(i);
+            if (b == NEWLINE && state != QUOTED) {
+                return start + i + 1;
+            }
+            state = next(state, b);
+        }
+        return -1;
+    }
+
+    private int next(final int state, final byte b) {
+
+        switch (state) {
+
+            case QUOTED:
+                return b == quote ? QUOTE_IN_QUOTED : QUOTED;
+
+            case QUOTE_IN_QUOTED:
+                // A repeated quote is an escaped quote within the field.
+                if (b == quote) {
+                    return QUOTED;
+                }
+                return b == delimiter || b == NEWLINE || b == CARRIAGE_RETURN ? FIELD_START : UNQUOTED;
+
+            case FIELD_START:
+                if (b == quote) {
+                    return QUOTED;
+                }
+                return b == delimiter || b == NEWLINE || b == CARRIAGE_RETURN ? FIELD_START : UNQUOTED;
+
+            default:
+                return b == delimiter || b == NEWLINE || b == CARRIAGE_RETURN ? FIELD_START : UNQUOTED;
+        }
+    }
+
+    private List<List<String>> parseRange(final long[] range) {
+
+        final CSVFormat range_format = input_format.builder().setHeader((String[]) null).setSkipHeaderRecord(false).build();
+        final List<List<String>> records = new ArrayList<>();
+
+        try (final CSVParser parser = new CSVParser(new InputStreamReader(new BufferInputStream(map(range[0], range[1])), charset), range_format)) {
+
+            for (final CSVRecord record : parser) {
+
+                final List<String> items = DataSet.csvRecordToList(record);
+
+                // Don't add row if the line was empty.
+                if (!DataSet.isEmptyRecord(items)) {
+                    records.add(items);
+                }
+            }
+            return records;
+
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ByteBuffer map(final long start, final long end) throws IOException {
+
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    }
+
+    private ByteBuffer mapUnchecked(final long start, final long end) {
+
+        try {
+            return map(start, end);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean isAscii(final char c) {
+
+        return c < 128;
+    }
+
+    /**
+     * Input stream reading from a byte buffer.
+     */
+    private static class BufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        BufferInputStream(final ByteBuffer buffer) {
+
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            final int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A deferred sequence of operations over the records of a source dataset.
+ * Consecutive operations are fused so that they are applied in a single pass
+ * over the source, and projections are combined with preceding projections
+ * and extensions so that columns that are later discarded are not computed.
+ * <p>
+ * For parallel evaluation the source records are divided into chunks that are
+ * processed concurrently. Where an extension follows a selection, the
+ * positions of the records reaching the extension are not known until the
+ * preceding chunks have been processed, so the operations are divided into
+ * segments at that point and the positions in each chunk are offset by the
+ * total size of the preceding chunks.
+ * <p>
+ * A plan consisting only of selections and projections over records stored
+ * by row gives a {@link RecordView} over the source records, recording the
+ * positions of the selected records and the positions of the projected
+ * columns, rather than new records.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+class Plan {
+
+    /**
+     * The smallest number of records processed as a single chunk in parallel
+     * evaluation.
+     */
+    static final int MIN_CHUNK_SIZE = 1024;
+
+    /**
+     * The number of chunks per available thread, to balance load between
+     * threads.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final DataSet source;
+    private final List<Operation> operations;
+
+    /**
+     * Creates a new plan with no operations.
+     *
+     * @param source the source dataset
+     */
+    Plan(final DataSet source) {
+
+        this(source, Collections.emptyList());
+    }
+
+    private Plan(final DataSet source, final List<Operation> operations) {
+
+        this.source = source;
+        this.operations = operations;
+    }
+
+    DataSet getSource() {
+
+        return source;
+    }
+
+    List<Operation> getOperations() {
+
+        return operations;
+    }
+
+    /**
+     * Creates a new plan with a further operation appended.
+     *
+     * @param operation the operation
+     * @return the new plan
+     */
+    Plan then(final Operation operation) {
+
+        return new Plan(source, then(operations, operation));
+    }
+
+    /**
+     * Creates a new sequence of operations with a further operation appended,
+     * fused where possible with the preceding operations.
+     *
+     * @param operations the existing operations
+     * @param operation  the operation to be appended
+     * @return the new sequence of operations
+     */
+    static List<Operation> then(final List<Operation> operations, final Operation operation) {
+
+        final List<Operation> new_operations = new ArrayList<>(operations);
+        append(new_operations, operation);
+        return new_operations;
+    }
+
+    /**
+     * Runs this plan.
+     *
+     * @param number_of_output_columns the number of columns in the result
+     * @param mode                     the execution mode
+     * @return the resulting records
+     */
+    List<List<String>> execute(final int number_of_output_columns, final ExecutionMode mode) {
+
+        final List<List<String>> source_records = source.getRecords();
+        final boolean parallel = mode == ExecutionMode.PARALLEL && source_records.size() > MIN_CHUNK_SIZE;
+
+        if (source_records instanceof ColumnStore) {
+            return parallel ?
+                    executeInParallel(source_records, new ColumnStore(number_of_output_columns)) :
+                    executeOnColumns((ColumnStore) source_records, number_of_output_columns);
+        }
+
+        if (canExecuteAsView()) {
+            return executeAsView(source_records, parallel);
+        }
+
+        return parallel ?
+                executeInParallel(source_records, new ArrayList<>(source_records.size())) :
+                executeOnRows(source_records, new ArrayList<>());
+    }
+
+    /**
+     * Gets the storage layout of the records that running this plan produces.
+     * Operations over a column store produce a new column store; otherwise the
+     * records are produced by row, including those derived from a mapped
+     * dataset.
+     *
+     * @return the storage layout
+     */
+    StorageLayout getResultLayout() {
+
+        return source.getStorageLayout() == StorageLayout.COLUMN ? StorageLayout.COLUMN : StorageLayout.ROW;
+    }
+
+    private boolean canExecuteAsView() {
+
+        return operations.stream().allMatch(operation -> operation instanceof Operation.Selection || operation instanceof Operation.Projection);
+    }
+
+    private List<List<String>> executeAsView(final List<List<String>> source_records, final boolean parallel) {
+
+        final List<Operation> bound_operations = Operation.bindAll(operations);
+
+        int[] selected = null;
+
+        if (operations.stream().anyMatch(operation -> operation instanceof Operation.Selection)) {
+
+            if (parallel) {
+
+                final List<List<List<String>>> chunks = split(source_records);
+                final int[] offsets = getOffsets(chunks);
+
+                final int[][] selected_in_chunks = IntStream.range(0, chunks.size()).parallel().
+                        mapToObj(i -> getSelectedPositions(bound_operations, chunks.get(i), offsets[i])).
+                        toArray(int[][]::new);
+
+                selected = IntStream.range(0, selected_in_chunks.length).flatMap(i -> IntStream.of(selected_in_chunks[i])).toArray();
+
+            } else {
+                selected = getSelectedPositions(bound_operations, source_records, 0);
+            }
+        }
+
+        return RecordView.of(source_records, selected, getProjectedColumnIndices());
+    }
+
+    private static int[] getSelectedPositions(final List<Operation> operations, final List<List<String>> records, final int first_position) {
+
+        final Operation.Pass pass = new Operation.Pass(operations, first_position);
+
+        final int[] selected = new int[records.size()];
+        int count = 0;
+
+        for (int i = 0; i < records.size(); i++) {
+            if (pass.selects(records.get(i))) {
+                selected[count++] = first_position + i;
+            }
+        }
+        return Arrays.copyOf(selected, count);
+    }
+
+    /**
+     * Gets the combined effect of the projections in this plan.
+     *
+     * @return the positions of the source columns retained, or null if there
+     * are no projections
+     */
+    private int[] getProjectedColumnIndices() {
+
+        Operation.Projection combined = null;
+
+        for (final Operation operation : operations) {
+            if (operation instanceof Operation.Projection) {
+
+                final Operation.Projection projection = (Operation.Projection) operation;
+                combined = combined == null ? projection : combined.then(projection);
+            }
+        }
+        return combined != null ? combined.getColumnIndices() : null;
+    }
+
+    private List<List<String>> executeOnRows(final List<List<String>> source_records, final List<List<String>> result) {
+
+        return run(Operation.bindAll(operations), source_records, 0, result);
+    }
+
+    private List<List<String>> executeInParallel(final List<List<String>> source_records, final List<List<String>> result) {
+
+        List<List<List<String>>> chunks = split(source_records);
+
+        for (final List<Operation> segment : getSegments(Operation.bindAll(operations))) {
+
+            final List<List<List<String>>> input_chunks = chunks;
+            final int[] offsets = getOffsets(input_chunks);
+
+            chunks = IntStream.range(0, input_chunks.size()).parallel().
+                    mapToObj(i -> run(segment, input_chunks.get(i), offsets[i], new ArrayList<>(input_chunks.get(i).size()))).
+                    collect(Collectors.toList());
+        }
+
+        for (final List<List<String>> chunk : chunks) {
+            result.addAll(chunk);
+        }
+        return result;
+    }
+
+    private static List<List<String>> run(final List<Operation> operations, final List<List<String>> records, final int first_position, final List<List<String>> result) {
+
+        final Operation.Pass pass = new Operation.Pass(operations, first_position);
+
+        for (final List<String> record : records) {
+
+            final List<String> output_record = pass.apply(record);
+            if (output_record != null) {
+                result.add(output_record);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Divides records into consecutive chunks for parallel processing.
+     *
+     * @param records the records
+     * @return views of the chunks, in order
+     */
+    static List<List<List<String>>> split(final List<List<String>> records) {
+
+        final int number_of_chunks = ForkJoinPool.getCommonPoolParallelism() * CHUNKS_PER_THREAD;
+        final int chunk_size = Math.max(MIN_CHUNK_SIZE, (records.size() + number_of_chunks - 1) / number_of_chunks);
+
+        final List<List<List<String>>> chunks = new ArrayList<>();
+        for (int start = 0; start < records.size(); start += chunk_size) {
+            chunks.add(records.subList(start, Math.min(start + chunk_size, records.size())));
+        }
+        return chunks;
+    }
+
+    private static int[] getOffsets(final List<List<List<String>>> chunks) {
+
+        final int[] offsets = new int[chunks.size()];
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] = offsets[i - 1] + chunks.get(i - 1).size();
+        }
+        return offsets;
+    }
+
+    /**
+     * Divides a sequence of operations so that no operation that depends on
+     * record positions follows an operation that may omit records within the
+     * same segment.
+     */
+    private static List<List<Operation>> getSegments(final List<Operation> operations) {
+
+        final List<List<Operation>> segments = new ArrayList<>();
+        List<Operation> segment = new ArrayList<>();
+        boolean positions_changed = false;
+
+        for (final Operation operation : operations) {
+
+            if (operation.usesPosition() && positions_changed) {
+
+                segments.add(segment);
+                segment = new ArrayList<>();
+                positions_changed = false;
+            }
+
+            segment.add(operation);
+            positions_changed = positions_changed || operation.changesPositions();
+        }
+
+        segments.add(segment);
+        return segments;
+    }
+
+    private List<List<String>> executeOnColumns(final ColumnStore source_records, final int number_of_output_columns) {
+
+        if (operations.size() == 1 && operations.get(0) instanceof Operation.Projection) {
+
+            // Copy whole columns.
+            return source_records.project(((Operation.Projection) operations.get(0)).getColumnIndices());
+        }
+
+        if (operations.stream().allMatch(operation -> operation instanceof Operation.Selection)) {
+
+            // Record the positions of the selected rows, then assemble the result column by column.
+            final List<Operation> remaining_operations = new ArrayList<>();
+            final List<IntPredicate> code_tests = new ArrayList<>();
+
+            for (final Operation operation : operations) {
+
+                final IntPredicate code_test = getCodeTest((Operation.Selection) operation, source_records);
+                if (code_test != null) {
+                    code_tests.add(code_test);
+                } else {
+                    remaining_operations.add(operation);
+                }
+            }
+
+            final Operation.Pass pass = new Operation.Pass(Operation.bindAll(remaining_operations), 0);
+
+            final int[] selected = new int[source_records.size()];
+            int count = 0;
+
+            for (int i = 0; i < source_records.size(); i++) {
+                if (allMatch(code_tests, i) && (remaining_operations.isEmpty() || pass.apply(source_records.get(i)) != null)) {
+                    selected[count++] = i;
+                }
+            }
+            return source_records.gather(selected, count);
+        }
+
+        if (operations.size() == 1 && operations.get(0) instanceof Operation.Numbering) {
+
+            // Generate the number column and copy the others whole.
+            return source_records.number(((Operation.Numbering) operations.get(0)).replacesFirstColumn());
+        }
+
+        if (operations.size() == 1 && operations.get(0) instanceof Operation.Extension) {
+
+            // Keep the existing columns and append the generated ones.
+            final Operation.Extension extension = ((Operation.Extension) operations.get(0)).bind();
+
+            final List<List<String>> additional_values = new ArrayList<>(source_records.size());
+            for (int i = 0; i < source_records.size(); i++) {
+                additional_values.add(extension.getAdditionalValues(source_records.get(i), i));
+            }
+            return source_records.extend(number_of_output_columns - extension.getInputWidth(), additional_values);
+        }
+
+        return executeOnRows(source_records, new ColumnStore(number_of_output_columns));
+    }
+
+    /**
+     * Gets a test on record positions equivalent to a given selection, if it
+     * tests for a value in a dictionary-encoded column.
+     *
+     * @return the test, or null if the selection must be applied to each record
+     */
+    private static IntPredicate getCodeTest(final Operation.Selection selection, final ColumnStore source_records) {
+
+        if (selection.getSelector() instanceof ValueSelector) {
+
+            final ValueSelector selector = (ValueSelector) selection.getSelector();
+            final int column_index = selection.getInput().getSchema().indexOf(selector.getLabel());
+
+            if (column_index >= 0 && source_records.getStoredColumn(column_index) instanceof Column.Dictionary) {
+
+                final Column.Dictionary column = (Column.Dictionary) source_records.getStoredColumn(column_index);
+                final int code = column.getCode(selector.getValue());
+
+                return row_index -> column.getCode(row_index) == code;
+            }
+        }
+        return null;
+    }
+
+    private static boolean allMatch(final List<IntPredicate> tests, final int row_index) {
+
+        for (final IntPredicate test : tests) {
+            if (!test.test(row_index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void append(final List<Operation> operations, final Operation operation) {
+
+        final Operation previous = operations.isEmpty() ? null : operations.get(operations.size() - 1);
+
+        if (operation instanceof Operation.Projection) {
+
+            final Operation.Projection projection = (Operation.Projection) operation;
+
+            if (previous instanceof Operation.Projection) {
+
+                operations.remove(operations.size() - 1);
+                append(operations, ((Operation.Projection) previous).then(projection));
+                return;
+            }
+
+            if (previous instanceof Operation.ProjectedExtension) {
+
+                operations.set(operations.size() - 1, ((Operation.ProjectedExtension) previous).then(projection));
+                return;
+            }
+
+            if (previous instanceof Operation.Extension) {
+
+                final Operation.Extension extension = (Operation.Extension) previous;
+                operations.remove(operations.size() - 1);
+
+                if (usesOnlyInputColumns(projection, extension.getInputWidth())) {
+
+                    // None of the generated columns are retained, so the extension can be omitted.
+                    append(operations, projection);
+
+                } else {
+                    operations.add(new Operation.ProjectedExtension(extension, projection.getColumnIndices()));
+                }
+                return;
+            }
+        }
+
+        operations.add(operation);
+    }
+
+    private static boolean usesOnlyInputColumns(final Operation.Projection projection, final int input_width) {
+
+        for (final int column_index : projection.getColumnIndices()) {
+            if (column_index >= input_width) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
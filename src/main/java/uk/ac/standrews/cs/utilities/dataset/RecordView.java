@@ -0,0 +1,309 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Store for the records of a dataset that is a view over selected records and
+ * columns of another dataset's records, represented by a selection vector of
+ * record positions and a mapping of column positions. No record is copied
+ * when the view is created: unprojected records are the records of the
+ * underlying dataset, and projected records are read through the column
+ * mapping. A projected record is copied only when it is modified. Records
+ * added after creation are held separately in memory.
+ * <p>
+ * Positions are only retained into stores whose existing records never move,
+ * which are marked as {@link AppendOnlyRecords}. Other lists, such as the
+ * records of a dataset with {@link StorageLayout#ROW} layout, may later be
+ * sorted or have records inserted or removed, so for these the view instead
+ * holds a list of the selected records themselves, and is unaffected by such
+ * changes.
+ * <p>
+ * The view can also be modified as a list, for example by replacing, removing
+ * or sorting records. The first such modification replaces the view with a
+ * list of its records, with projected records copied, after which the view
+ * behaves as an {@link ArrayList}.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+class RecordView extends AbstractList<List<String>> implements RandomAccess {
+
+    private final List<List<String>> source_records;
+    private final int[] positions;
+    private final int[] column_indices;
+    private final int number_of_records;
+
+    private final List<List<String>> added_records = new ArrayList<>();
+
+    // Created when the first projected record is modified.
+    private volatile AtomicReferenceArray<List<String>> copied_records;
+
+    // Created when the view is first modified as a list, after which all operations use it.
+    private volatile List<List<String>> detached_records;
+
+    /**
+     * @param source_records the underlying records
+     * @param positions         the positions of the selected records, or null
+     *                          if the initial records are selected
+     * @param column_indices    the positions of the selected columns, or null
+     *                          if whole records are selected
+     * @param number_of_records the number of selected records
+     */
+    private RecordView(final List<List<String>> source_records, final int[] positions, final int[] column_indices, final int number_of_records) {
+
+        this.source_records = source_records;
+        this.positions = positions;
+        this.column_indices = column_indices;
+        this.number_of_records = number_of_records;
+    }
+
+    /**
+     * Creates a view over selected records and columns. A view over another
+     * view refers directly to the records underlying that view, so that chains
+     * of views do not accumulate levels of indirection.
+     *
+     * @param records        the records
+     * @param positions      the positions of the selected records, or null if
+     *                       all the current records are selected
+     * @param column_indices the positions of the selected columns, or null if
+     *                       whole records are selected
+     * @return the view
+     */
+    static RecordView of(final List<List<String>> records, final int[] positions, final int[] column_indices) {
+
+        if (records instanceof RecordView) {
+
+            final RecordView view = (RecordView) records;
+
+            if (view.isUnmodified()) {
+                return new RecordView(view.source_records, compose(view.positions, positions), compose(view.column_indices, column_indices), positions != null ? positions.length : view.number_of_records);
+            }
+        }
+
+        final int number_of_records = positions != null ? positions.length : records.size();
+
+        if (keepsPositions(records)) {
+            return new RecordView(records, positions, column_indices, number_of_records);
+        }
+        return new RecordView(positions != null ? DataSet.gatherRecords(records, positions) : new ArrayList<>(records), null, column_indices, number_of_records);
+    }
+
+    /**
+     * Creates a list containing an independent copy of each record in this
+     * view.
+     *
+     * @return the copies
+     */
+    List<List<String>> copy() {
+
+        final List<List<String>> copies = new ArrayList<>(size());
+        for (final List<String> record : this) {
+            copies.add(new ArrayList<>(record));
+        }
+        return copies;
+    }
+
+    @Override
+    public List<String> get(final int index) {
+
+        final List<List<String>> detached = detached_records;
+        if (detached != null) {
+            return detached.get(index);
+        }
+
+        if (index >= number_of_records) {
+            return added_records.get(index - number_of_records);
+        }
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+
+        final List<String> record = source_records.get(positions != null ? positions[index] : index);
+
+        if (column_indices == null) {
+            return record;
+        }
+
+        final List<String> copied_record = getCopiedRecord(index);
+        return copied_record != null ? copied_record : new ViewRecord(record, index);
+    }
+
+    @Override
+    public int size() {
+
+        final List<List<String>> detached = detached_records;
+        return detached != null ? detached.size() : number_of_records + added_records.size();
+    }
+
+    @Override
+    public boolean add(final List<String> record) {
+
+        modCount++;
+
+        final List<List<String>> detached = detached_records;
+        return detached != null ? detached.add(record) : added_records.add(record);
+    }
+
+    @Override
+    public void add(final int index, final List<String> record) {
+
+        modCount++;
+        detach().add(index, record);
+    }
+
+    @Override
+    public List<String> set(final int index, final List<String> record) {
+
+        return detach().set(index, record);
+    }
+
+    @Override
+    public List<String> remove(final int index) {
+
+        modCount++;
+        return detach().remove(index);
+    }
+
+    @Override
+    public void sort(final Comparator<? super List<String>> comparator) {
+
+        modCount++;
+        detach().sort(comparator);
+    }
+
+    /**
+     * Tests whether the existing records in a list always remain at the same
+     * positions.
+     *
+     * @param records the records
+     * @return true if the records cannot be reordered, replaced or removed
+     */
+    private static boolean keepsPositions(final List<List<String>> records) {
+
+        return records instanceof AppendOnlyRecords;
+    }
+
+    private boolean isUnmodified() {
+
+        return added_records.isEmpty() && copied_records == null && detached_records == null;
+    }
+
+    /**
+     * Replaces this view with a list of its records, so that it can be
+     * modified as a list.
+     *
+     * @return the list
+     */
+    private synchronized List<List<String>> detach() {
+
+        if (detached_records == null) {
+
+            final List<List<String>> records = new ArrayList<>(size());
+            for (int i = 0; i < size(); i++) {
+
+                final List<String> record = get(i);
+                records.add(record instanceof ViewRecord ? new ArrayList<>(record) : record);
+            }
+            detached_records = records;
+        }
+        return detached_records;
+    }
+
+    private List<String> getCopiedRecord(final int index) {
+
+        final AtomicReferenceArray<List<String>> copies = copied_records;
+        return copies != null ? copies.get(index) : null;
+    }
+
+    private List<String> copyOnWrite(final int index, final List<String> record) {
+
+        AtomicReferenceArray<List<String>> copies = copied_records;
+
+        if (copies == null) {
+            synchronized (this) {
+
+                copies = copied_records;
+                if (copies == null) {
+                    copies = new AtomicReferenceArray<>(number_of_records);
+                    copied_records = copies;
+                }
+            }
+        }
+
+        // Another thread may copy the record concurrently, in which case its copy is used.
+        copies.compareAndSet(index, null, new ArrayList<>(record));
+        return copies.get(index);
+    }
+
+    private static int[] compose(final int[] outer, final int[] inner) {
+
+        if (outer == null) {
+            return inner;
+        }
+        if (inner == null) {
+            return outer;
+        }
+
+        final int[] composed = new int[inner.length];
+        for (int i = 0; i < composed.length; i++) {
+            composed[i] = outer[inner[i]];
+        }
+        return composed;
+    }
+
+    /**
+     * View of the selected columns of a record, which is replaced by a copy
+     * when modified.
+     */
+    private class ViewRecord extends AbstractList<String> implements RandomAccess {
+
+        private final List<String> record;
+        private final int index;
+
+        ViewRecord(final List<String> record, final int index) {
+
+            this.record = record;
+            this.index = index;
+        }
+
+        @Override
+        public String get(final int column_index) {
+
+            final List<String> copied_record = getCopiedRecord(index);
+            return copied_record != null ? copied_record.get(column_index) : record.get(column_indices[column_index]);
+        }
+
+        @Override
+        public String set(final int column_index, final String value) {
+
+            return copyOnWrite(index, this).set(column_index, value);
+        }
+
+        @Override
+        public int size() {
+
+            final List<String> copied_record = getCopiedRecord(index);
+            return copied_record != null ? copied_record.size() : column_indices.length;
+        }
+    }
+}
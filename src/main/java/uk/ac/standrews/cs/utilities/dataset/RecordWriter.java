@@ -0,0 +1,128 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Prints records in CSV format, flushing according to a given policy.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+class RecordWriter {
+
+    /**
+     * The size of the buffer used when printing to an output stream.
+     */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    private RecordWriter() {
+    }
+
+    /**
+     * Prints a header line followed by a sequence of records.
+     *
+     * @param labels        the column labels
+     * @param records       the records
+     * @param output_format the output format
+     * @param out           the output object
+     * @param flush_policy  the flush policy
+     * @throws IOException if the records cannot be printed
+     */
+    static void print(final List<String> labels, final Iterable<List<String>> records, final CSVFormat output_format, final Appendable out, final FlushPolicy flush_policy) throws IOException {
+
+        final CountingAppendable counter = flush_policy.countsCharacters() ? new CountingAppendable(out) : null;
+
+        final String[] header_array = labels.toArray(new String[0]);
+        @SuppressWarnings("resource") final CSVPrinter printer = new CSVPrinter(counter != null ? counter : out, output_format.builder().setHeader(header_array).build());
+
+        int records_since_flush = 0;
+        boolean flushed = false;
+
+        for (final List<String> record : records) {
+
+            printer.printRecord(record);
+            records_since_flush++;
+
+            if (flush_policy.shouldFlush(records_since_flush, counter != null ? counter.count : 0)) {
+
+                printer.flush();
+                flushed = true;
+                records_since_flush = 0;
+                if (counter != null) {
+                    counter.count = 0;
+                }
+            }
+        }
+
+        // Flush any output since the last flush, including the header if there were no records.
+        if (records_since_flush > 0 || !flushed) {
+            printer.flush();
+        }
+    }
+
+    /**
+     * Appendable that counts the characters passed to an underlying appendable.
+     */
+    private static class CountingAppendable implements Appendable, Flushable {
+
+        private final Appendable out;
+        private long count = 0;
+
+        CountingAppendable(final Appendable out) {
+
+            this.out = out;
+        }
+
+        @Override
+        public Appendable append(final CharSequence sequence) throws IOException {
+
+            out.append(sequence);
+            count += sequence == null ? 4 : sequence.length();
+            return this;
+        }
+
+        @Override
+        public Appendable append(final CharSequence sequence, final int start, final int end) throws IOException {
+
+            out.append(sequence, start, end);
+            count += end - start;
+            return this;
+        }
+
+        @Override
+        public Appendable append(final char c) throws IOException {
+
+            out.append(c);
+            count++;
+            return this;
+        }
+
+        @Override
+        public void flush() throws IOException {
+
+            if (out instanceof Flushable) {
+                ((Flushable) out).flush();
+            }
+        }
+    }
+}
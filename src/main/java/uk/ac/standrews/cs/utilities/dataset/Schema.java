@@ -0,0 +1,146 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import java.util.*;
+
+/**
+ * The column labels of a dataset, with hashed resolution of labels to column
+ * positions. A schema is built once per dataset, so that operations can
+ * resolve the columns they need before scanning the records.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+public final class Schema {
+
+    private final List<String> labels;
+    private final Map<String, Integer> indices;
+
+    /**
+     * Creates a new schema.
+     *
+     * @param labels the column labels
+     */
+    public Schema(final List<String> labels) {
+
+        this.labels = Collections.unmodifiableList(new ArrayList<>(labels));
+        indices = new HashMap<>();
+
+        for (int i = 0; i < labels.size(); i++) {
+            indices.putIfAbsent(labels.get(i), i);
+        }
+    }
+
+    /**
+     * Gets the column labels.
+     *
+     * @return the column labels
+     */
+    public List<String> getLabels() {
+
+        return labels;
+    }
+
+    /**
+     * Gets the number of columns.
+     *
+     * @return the number of columns
+     */
+    public int size() {
+
+        return labels.size();
+    }
+
+    /**
+     * Tests whether a given label is present.
+     *
+     * @param label the label
+     * @return true if the label is present
+     */
+    @SuppressWarnings("unused")
+    public boolean contains(final String label) {
+
+        return indices.containsKey(label);
+    }
+
+    /**
+     * Gets the position of the column with a given label.
+     *
+     * @param label the label
+     * @return the position of the column, or -1 if the label is not present
+     */
+    public int indexOf(final String label) {
+
+        final Integer index = indices.get(label);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Gets a handle for the column with a given label.
+     *
+     * @param label the label
+     * @return the handle
+     * @throws RuntimeException if the specified label is not present
+     */
+    public ColumnHandle getHandle(final String label) {
+
+        return new ColumnHandle(label, getIndex(label));
+    }
+
+    /**
+     * Gets the positions of the columns with the given labels, checking that
+     * each label is present and that no label is repeated.
+     *
+     * @param selected_labels the labels
+     * @return the positions of the columns, in the same order as the labels
+     * @throws RuntimeException if a label is not present or is repeated
+     */
+    public int[] getIndices(final List<String> selected_labels) {
+
+        if (new HashSet<>(selected_labels).size() < selected_labels.size()) {
+            throw new RuntimeException("duplicate column labels in projection");
+        }
+
+        final int[] result = new int[selected_labels.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = getIndex(selected_labels.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+
+        return this == o || (o instanceof Schema && labels.equals(((Schema) o).labels));
+    }
+
+    @Override
+    public int hashCode() {
+
+        return labels.hashCode();
+    }
+
+    private int getIndex(final String label) {
+
+        final int index = indexOf(label);
+
+        if (index == -1) {
+            throw new RuntimeException("Unknown label: " + label);
+        }
+        return index;
+    }
+}
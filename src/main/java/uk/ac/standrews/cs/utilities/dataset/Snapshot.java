@@ -0,0 +1,401 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes datasets in a binary snapshot format, which can be loaded
+ * much faster than CSV since no parsing is required.
+ * <p>
+ * A snapshot holds the column labels followed by the values. Where every
+ * record has one value per column, the values are held column by column, and
+ * columns with few distinct values are dictionary-encoded, with each record
+ * holding a code of one, two or four bytes. Otherwise the values are held
+ * record by record. Each string is held as its length followed by its UTF-8
+ * encoding, with length -1 representing null.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+class Snapshot {
+
+    private static final int MAGIC_NUMBER = 0x43535653;
+    private static final int VERSION = 1;
+
+    private static final byte ROW_LAYOUT = 0;
+    private static final byte COLUMN_LAYOUT = 1;
+
+    private static final byte BY_COLUMN = 0;
+    private static final byte BY_RECORD = 1;
+
+    private static final byte PLAIN = 0;
+    private static final byte DICTIONARY = 1;
+
+    /**
+     * The maximum number of distinct values in a column that is
+     * dictionary-encoded, unless it is already encoded in memory.
+     */
+    private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Writes a snapshot of a dataset.
+     *
+     * @param labels  the column labels
+     * @param records the records
+     * @param path    the path of the snapshot file
+     * @throws IOException if the snapshot cannot be written
+     */
+    static void write(final List<String> labels, final List<List<String>> records, final Path path) throws IOException {
+
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE))) {
+
+            out.writeInt(MAGIC_NUMBER);
+            out.writeInt(VERSION);
+            out.writeByte(records instanceof ColumnStore ? COLUMN_LAYOUT : ROW_LAYOUT);
+
+            out.writeInt(labels.size());
+            for (final String label : labels) {
+                writeString(out, label);
+            }
+
+            out.writeInt(records.size());
+
+            if (isRectangular(labels.size(), records)) {
+
+                out.writeByte(BY_COLUMN);
+                for (int column_index = 0; column_index < labels.size(); column_index++) {
+                    writeColumn(out, records, column_index);
+                }
+
+            } else {
+
+                out.writeByte(BY_RECORD);
+                for (final List<String> record : records) {
+
+                    out.writeInt(record.size());
+                    for (final String value : record) {
+                        writeString(out, value);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a snapshot of a dataset.
+     *
+     * @param path the path of the snapshot file
+     * @return the dataset
+     * @throws IOException if the snapshot cannot be read
+     */
+    static DataSet read(final Path path) throws IOException {
+
+        try (final Input in = new Input(FileChannel.open(path, StandardOpenOption.READ))) {
+
+            if (in.readInt() != MAGIC_NUMBER) {
+                throw new RuntimeException("not a dataset snapshot: " + path);
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new RuntimeException("unsupported snapshot version: " + version);
+            }
+
+            final byte layout = in.readByte();
+
+            final int number_of_columns = in.readInt();
+            final List<String> labels = new ArrayList<>(number_of_columns);
+            for (int i = 0; i < number_of_columns; i++) {
+                labels.add(in.readString());
+            }
+
+            final int number_of_records = in.readInt();
+
+            if (in.readByte() == BY_RECORD) {
+                return new DataSet(labels, readRecords(in, number_of_records));
+            }
+
+            final Column[] columns = new Column[number_of_columns];
+            for (int column_index = 0; column_index < number_of_columns; column_index++) {
+                columns[column_index] = readColumn(in, number_of_records);
+            }
+
+            final ColumnStore store = new ColumnStore(columns, number_of_records);
+            return new DataSet(labels, layout == COLUMN_LAYOUT ? store : toRows(store));
+        }
+    }
+
+    private static boolean isRectangular(final int number_of_columns, final List<List<String>> records) {
+
+        if (records instanceof ColumnStore) {
+            return true;
+        }
+        for (final List<String> record : records) {
+            if (record.size() != number_of_columns) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeColumn(final DataOutputStream out, final List<List<String>> records, final int column_index) throws IOException {
+
+        final Column.Dictionary dictionary_column = getDictionaryColumn(records, column_index);
+
+        if (dictionary_column != null) {
+
+            out.writeByte(DICTIONARY);
+
+            final List<String> dictionary = dictionary_column.getDictionary();
+            out.writeInt(dictionary.size());
+            for (final String value : dictionary) {
+                writeString(out, value);
+            }
+
+            final int code_width = getCodeWidth(dictionary.size());
+            out.writeByte(code_width);
+
+            for (int row_index = 0; row_index < records.size(); row_index++) {
+                writeCode(out, dictionary_column.getCode(row_index), code_width);
+            }
+
+        } else {
+
+            out.writeByte(PLAIN);
+            for (final List<String> record : records) {
+                writeString(out, record.get(column_index));
+            }
+        }
+    }
+
+    /**
+     * Gets a dictionary-encoded form of a column: the stored form if the column
+     * is already encoded, or a new encoding if the column has few distinct
+     * values.
+     *
+     * @return the encoded column, or null if the column is not worth encoding
+     */
+    private static Column.Dictionary getDictionaryColumn(final List<List<String>> records, final int column_index) {
+
+        if (records instanceof ColumnStore) {
+
+            final Column column = ((ColumnStore) records).getStoredColumn(column_index);
+            if (column instanceof Column.Dictionary) {
+                return (Column.Dictionary) column;
+            }
+        }
+
+        final int max_dictionary_size = Math.min(MAX_DICTIONARY_SIZE, records.size() / 2);
+        if (max_dictionary_size == 0) {
+            return null;
+        }
+
+        final Column.Dictionary column = new Column.Dictionary(records.size(), max_dictionary_size);
+
+        for (int row_index = 0; row_index < records.size(); row_index++) {
+            if (!column.set(row_index, records.get(row_index).get(column_index))) {
+                return null;
+            }
+        }
+        return column;
+    }
+
+    private static Column readColumn(final Input in, final int number_of_records) throws IOException {
+
+        if (in.readByte() == DICTIONARY) {
+
+            final int dictionary_size = in.readInt();
+            final List<String> dictionary = new ArrayList<>(dictionary_size);
+            for (int i = 0; i < dictionary_size; i++) {
+                dictionary.add(in.readString());
+            }
+
+            final int code_width = in.readByte();
+            final int[] codes = new int[Math.max(number_of_records, 1)];
+            for (int row_index = 0; row_index < number_of_records; row_index++) {
+                codes[row_index] = in.readCode(code_width);
+            }
+            return new Column.Dictionary(codes, dictionary);
+
+        } else {
+
+            final String[] values = new String[Math.max(number_of_records, 1)];
+            for (int row_index = 0; row_index < number_of_records; row_index++) {
+                values[row_index] = in.readString();
+            }
+            return new Column.Plain(values);
+        }
+    }
+
+    private static List<List<String>> readRecords(final Input in, final int number_of_records) throws IOException {
+
+        final List<List<String>> records = new ArrayList<>(number_of_records);
+
+        for (int row_index = 0; row_index < number_of_records; row_index++) {
+
+            final int size = in.readInt();
+            final List<String> record = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                record.add(in.readString());
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static List<List<String>> toRows(final ColumnStore store) {
+
+        final List<List<String>> records = new ArrayList<>(store.size());
+        for (final List<String> record : store) {
+            records.add(new ArrayList<>(record));
+        }
+        return records;
+    }
+
+    private static int getCodeWidth(final int dictionary_size) {
+
+        if (dictionary_size <= 1 << 8) {
+            return 1;
+        }
+        return dictionary_size <= 1 << 16 ? 2 : 4;
+    }
+
+    private static void writeCode(final DataOutputStream out, final int code, final int code_width) throws IOException {
+
+        switch (code_width) {
+            case 1:
+                out.writeByte(code);
+                break;
+            case 2:
+                out.writeShort(code);
+                break;
+            default:
+                out.writeInt(code);
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+
+        if (value == null) {
+            out.writeInt(-1);
+
+        } else {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads from a file channel with bulk reads into a buffer.
+     */
+    private static class Input implements AutoCloseable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Input(final FileChannel channel) {
+
+            this.channel = channel;
+            buffer.limit(0);
+        }
+
+        byte readByte() throws IOException {
+
+            require(1);
+            return buffer.get();
+        }
+
+        int readInt() throws IOException {
+
+            require(4);
+            return buffer.getInt();
+        }
+
+        int readCode(final int code_width) throws IOException {
+
+            require(code_width);
+
+            switch (code_width) {
+                case 1:
+                    return buffer.get() & 0xff;
+                case 2:
+                    return buffer.getShort() & 0xffff;
+                default:
+                    return buffer.getInt();
+            }
+        }
+
+        String readString() throws IOException {
+
+            final int length = readInt();
+            if (length < 0) {
+                return null;
+            }
+
+            final byte[] bytes = new byte[length];
+            int position = 0;
+
+            while (position < length) {
+
+                require(1);
+                final int count = Math.min(length - position, buffer.remaining());
+                buffer.get(bytes, position, count);
+                position += count;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Ensures that at least the given number of bytes are available in the
+         * buffer.
+         */
+        private void require(final int number_of_bytes) throws IOException {
+
+            if (buffer.remaining() < number_of_bytes) {
+
+                buffer.compact();
+                while (buffer.position() < number_of_bytes) {
+                    if (channel.read(buffer) < 0) {
+                        throw new RuntimeException("snapshot is truncated");
+                    }
+                }
+                buffer.flip();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            channel.close();
+        }
+    }
+}
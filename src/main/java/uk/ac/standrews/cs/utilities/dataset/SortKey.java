@@ -0,0 +1,124 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+/**
+ * A column on which the records of a dataset are sorted, with the direction
+ * and the way in which values are compared.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ * @see DataSet#sort(SortKey...)
+ */
+public final class SortKey {
+
+    /**
+     * The direction of sorting.
+     */
+    public enum Direction {
+        ASCENDING, DESCENDING
+    }
+
+    /**
+     * The way in which values are compared.
+     */
+    public enum Ordering {
+
+        /**
+         * Values are compared as strings, with null before any other value.
+         */
+        LEXICAL,
+
+        /**
+         * Values are compared as decimal numbers. Values that cannot be parsed
+         * as numbers are treated as greater than any number, and equal to each
+         * other.
+         */
+        NUMERIC
+    }
+
+    private final String label;
+    private final Direction direction;
+    private final Ordering ordering;
+
+    /**
+     * Creates a key that sorts values in ascending lexical order.
+     *
+     * @param label the label of the column
+     */
+    @SuppressWarnings("unused")
+    public SortKey(final String label) {
+
+        this(label, Direction.ASCENDING, Ordering.LEXICAL);
+    }
+
+    /**
+     * Creates a key that sorts values in lexical order in the given direction.
+     *
+     * @param label     the label of the column
+     * @param direction the direction
+     */
+    @SuppressWarnings("unused")
+    public SortKey(final String label, final Direction direction) {
+
+        this(label, direction, Ordering.LEXICAL);
+    }
+
+    /**
+     * Creates a key.
+     *
+     * @param label     the label of the column
+     * @param direction the direction
+     * @param ordering  the way in which values are compared
+     */
+    @SuppressWarnings("WeakerAccess")
+    public SortKey(final String label, final Direction direction, final Ordering ordering) {
+
+        this.label = label;
+        this.direction = direction;
+        this.ordering = ordering;
+    }
+
+    /**
+     * Gets the label of the column.
+     *
+     * @return the label
+     */
+    public String getLabel() {
+
+        return label;
+    }
+
+    /**
+     * Gets the direction.
+     *
+     * @return the direction
+     */
+    public Direction getDirection() {
+
+        return direction;
+    }
+
+    /**
+     * Gets the way in which values are compared.
+     *
+     * @return the ordering
+     */
+    public Ordering getOrdering() {
+
+        return ordering;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Sorts the records of a dataset on a sequence of keys. The values of each key
+ * column are first extracted into an array, and numeric values parsed, so
+ * that each comparison is a lookup by record position. A permutation of record
+ * positions is then sorted, and the records gathered in that order.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+class Sorter {
+
+    private Sorter() {
+    }
+
+    /**
+     * Sorts records. The sort is stable, so records with equal keys remain in
+     * their original order.
+     *
+     * @param records the records
+     * @param schema  the schema of the records
+     * @param keys    the keys, in order of precedence
+     * @return the sorted records
+     */
+    static List<List<String>> sort(final List<List<String>> records, final Schema schema, final List<SortKey> keys) {
+
+        return DataSet.gatherRecords(records, getSortedPositions(records, schema, keys));
+    }
+
+    /**
+     * Gets the positions of records in sorted order, without moving the
+     * records.
+     *
+     * @param records the records
+     * @param schema  the schema of the records
+     * @param keys    the keys, in order of precedence
+     * @return the positions of the records in sorted order
+     */
+    static int[] getSortedPositions(final List<List<String>> records, final Schema schema, final List<SortKey> keys) {
+
+        final int number_of_records = records.size();
+
+        Comparator<Integer> comparator = (position1, position2) -> 0;
+        for (final SortKey key : keys) {
+            comparator = comparator.thenComparing(makeComparator(records, schema.getHandle(key.getLabel()).getIndex(), key));
+        }
+
+        final Integer[] permutation = new Integer[number_of_records];
+        Arrays.setAll(permutation, i -> i);
+
+        // Uses multiple threads for large arrays, and is stable.
+        Arrays.parallelSort(permutation, comparator);
+
+        final int[] positions = new int[number_of_records];
+        for (int i = 0; i < number_of_records; i++) {
+            positions[i] = permutation[i];
+        }
+        return positions;
+    }
+
+    private static Comparator<Integer> makeComparator(final List<List<String>> records, final int column_index, final SortKey key) {
+
+        final String[] values = new String[records.size()];
+        IntStream.range(0, values.length).parallel().forEach(i -> values[i] = records.get(i).get(column_index));
+
+        final Comparator<Integer> comparator;
+
+        if (key.getOrdering() == SortKey.Ordering.NUMERIC) {
+
+            final double[] numbers = new double[values.length];
+            IntStream.range(0, values.length).parallel().forEach(i -> numbers[i] = parse(values[i]));
+
+            comparator = (position1, position2) -> Double.compare(numbers[position1], numbers[position2]);
+
+        } else {
+
+            final Comparator<String> value_comparator = Comparator.nullsFirst(Comparator.naturalOrder());
+            comparator = (position1, position2) -> value_comparator.compare(values[position1], values[position2]);
+        }
+
+        return key.getDirection() == SortKey.Direction.DESCENDING ? comparator.reversed() : comparator;
+    }
+
+    /**
+     * Parses a numeric value.
+     *
+     * @return the number, or NaN if the value is not a number, which
+     * {@link Double#compare(double, double)} places after all numbers
+     */
+    private static double parse(final String value) {
+
+        if (value == null) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (final NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
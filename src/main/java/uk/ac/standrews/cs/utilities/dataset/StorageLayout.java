@@ -0,0 +1,50 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+/**
+ * The ways in which the records of a dataset can be held in memory.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+public enum StorageLayout {
+
+    /**
+     * Each record is held as a separate list of strings.
+     */
+    ROW,
+
+    /**
+     * Each column is held as a single contiguous array, with records presented
+     * as views over the column arrays. This reduces the number of objects
+     * allocated for large datasets, and allows operations that scan a single
+     * column to read it sequentially. Every record must contain one value for
+     * each column label. Columns may also be dictionary-encoded when loaded;
+     * see {@link DictionaryEncoding}.
+     */
+    COLUMN,
+
+    /**
+     * Records are read directly from a memory-mapped file, and each value is
+     * decoded into a string only when it is read. This avoids decoding and
+     * copying the whole of a large file that is only partly used. It applies
+     * only to datasets loaded from a file path; otherwise, and for input
+     * formats that cannot be tokenized directly, {@link #ROW} is used. Datasets
+     * derived from a mapped dataset use {@link #ROW}.
+     */
+    MAPPED
+}
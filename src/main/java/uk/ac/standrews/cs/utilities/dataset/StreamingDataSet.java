@@ -0,0 +1,396 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import uk.ac.standrews.cs.utilities.FileManipulation;
+import uk.ac.standrews.cs.utilities.dataset.derived.Mapper;
+import uk.ac.standrews.cs.utilities.dataset.derived.PositionalExtender;
+import uk.ac.standrews.cs.utilities.dataset.derived.Projector;
+import uk.ac.standrews.cs.utilities.dataset.derived.Selector;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Forward-only counterpart to {@link DataSet}, for data too large to be held in
+ * memory. Records are pulled from the underlying CSV parser one at a time,
+ * passed through any select, project, map and extend operations, and then
+ * written out or passed to the caller. Memory use does not depend on the size
+ * of the input.
+ * <p>
+ * The operations return new streaming datasets sharing the same input, and do
+ * no work until the records are consumed by {@link #print(Appendable)} or by
+ * iteration. The input can only be consumed once. The dataset passed to a
+ * selector or extender contains the column labels of its input but no
+ * records.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+public class StreamingDataSet implements Iterable<List<String>>, Closeable {
+
+    private final Source source;
+    private final List<String> labels;
+    private final List<Operation> operations;
+
+    private CSVFormat output_format = DataSet.DEFAULT_CSV_FORMAT;
+
+    /**
+     * Creates a new streaming dataset reading column labels and data from a
+     * file with the given path.
+     *
+     * @param path the path of the file to read column labels and data from
+     * @throws IOException if the file cannot be read
+     */
+    @SuppressWarnings("unused")
+    public StreamingDataSet(final Path path) throws IOException {
+
+        this(FileManipulation.getInputStream(path));
+    }
+
+    /**
+     * Creates a new streaming dataset reading column labels and data from the
+     * given input stream, using the default delimiter.
+     *
+     * @param reader the input stream to read column labels and data from
+     */
+    public StreamingDataSet(final InputStream reader) {
+
+        this(reader, DataSet.DEFAULT_DELIMITER.charAt(0));
+    }
+
+    /**
+     * Creates a new streaming dataset reading column labels and data from the
+     * given input stream, using the default CSV input format and a specified
+     * delimiter.
+     *
+     * @param reader    the input stream to read column labels and data from
+     * @param delimiter the delimiter for labels and values
+     */
+    @SuppressWarnings("WeakerAccess")
+    public StreamingDataSet(final InputStream reader, final char delimiter) {
+
+        this(reader, DataSet.DEFAULT_CSV_FORMAT.builder().setDelimiter(delimiter).build());
+    }
+
+    /**
+     * Creates a new streaming dataset reading column labels and data from the
+     * given input stream, using a specified input format. The column labels
+     * are read immediately.
+     *
+     * @param reader       the input stream to read column labels and data from
+     * @param input_format the format
+     */
+    @SuppressWarnings("WeakerAccess")
+    public StreamingDataSet(final InputStream reader, final CSVFormat input_format) {
+
+        try {
+            final CSVParser parser = new CSVParser(new InputStreamReader(reader, DataSet.getCharset()), input_format.builder().setHeader().setSkipHeaderRecord(true).build());
+
+            source = new Source(parser);
+            labels = DataSet.getColumnLabels(parser);
+            operations = Collections.emptyList();
+
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private StreamingDataSet(final StreamingDataSet input, final List<String> labels, final Operation operation) {
+
+        source = input.source;
+        this.labels = labels;
+        output_format = input.output_format;
+        operations = Plan.then(input.operations, operation);
+    }
+
+    /**
+     * Creates a new streaming dataset from this one, with the same column
+     * labels and selected rows.
+     *
+     * @param selector a selector to determine which rows should be included
+     * @return the new streaming dataset
+     */
+    @SuppressWarnings("unused")
+    public StreamingDataSet select(final Selector selector) {
+
+        return new StreamingDataSet(this, labels, new Operation.Selection(selector, makeContext()));
+    }
+
+    /**
+     * Creates a new streaming dataset from this one, with specified columns.
+     *
+     * @param projector a projector to determine which columns should be
+     *                  included
+     * @return the new streaming dataset
+     */
+    @SuppressWarnings("unused")
+    public StreamingDataSet project(final Projector projector) {
+
+        final List<String> projected_labels = projector.bind(getSchema()).getProjectedColumnLabels();
+        return new StreamingDataSet(this, projected_labels, new Operation.Projection(getSchema().getIndices(projected_labels)));
+    }
+
+    /**
+     * Creates a new streaming dataset from this one, with each row transformed
+     * in a specified way.
+     *
+     * @param mapper a mapper to transform each row into a new row
+     * @return the new streaming dataset
+     */
+    @SuppressWarnings("unused")
+    public StreamingDataSet map(final Mapper mapper) {
+
+        return new StreamingDataSet(this, mapper.mapColumnLabels(labels), new Operation.Mapping(mapper, makeContext()));
+    }
+
+    /**
+     * Creates a new streaming dataset from this one, with additional generated
+     * columns.
+     *
+     * @param extender an extender to generate additional column labels and
+     *                 values
+     * @return the new streaming dataset
+     */
+    @SuppressWarnings("unused")
+    public StreamingDataSet extend(final PositionalExtender extender) {
+
+        final List<String> extended_labels = new ArrayList<>(labels);
+        extended_labels.addAll(extender.getColumnLabels());
+
+        return new StreamingDataSet(this, extended_labels, new Operation.Extension(extender, makeContext()));
+    }
+
+    /**
+     * Creates a new streaming dataset from this one, with the same column
+     * labels and only the first of each set of records that have the same
+     * values in the given key columns. The key values of each distinct record
+     * are retained while the records are consumed, but no other values.
+     *
+     * @param key_labels the labels of the key columns, or null if whole
+     *                   records are compared
+     * @return the new streaming dataset
+     * @throws RuntimeException if a key label is not present
+     */
+    @SuppressWarnings("unused")
+    public StreamingDataSet removeDuplicates(final List<String> key_labels) {
+
+        return new StreamingDataSet(this, labels, new Operation.Deduplication(DataSet.getKeyIndices(getSchema(), key_labels)));
+    }
+
+    /**
+     * Gets the column labels of this streaming dataset.
+     *
+     * @return the labels
+     */
+    public List<String> getColumnLabels() {
+
+        return labels;
+    }
+
+    /**
+     * Gets the schema of this streaming dataset.
+     *
+     * @return the schema
+     */
+    public Schema getSchema() {
+
+        return new Schema(labels);
+    }
+
+    /**
+     * Sets the output format used by {@link #print(Appendable)}.
+     *
+     * @param output_format the output format
+     */
+    @SuppressWarnings("unused")
+    public void setOutputFormat(final CSVFormat output_format) {
+
+        this.output_format = output_format;
+    }
+
+    /**
+     * Gets an iterator over the records of this streaming dataset, consuming
+     * the underlying input.
+     *
+     * @return the iterator
+     * @throws IllegalStateException if the input has already been consumed
+     */
+    @Override
+    public Iterator<List<String>> iterator() {
+
+        final Iterator<CSVRecord> input = source.consume();
+
+        return new RecordIterator(input, Operation.bindAll(operations));
+    }
+
+    /**
+     * Prints this streaming dataset to the given output object, consuming the
+     * underlying input. The output is the same as would be produced by
+     * {@link DataSet#print(Appendable)} for the equivalent in-memory dataset.
+     *
+     * @param out the output object
+     * @throws IOException if the dataset cannot be printed to the given output
+     *                     object
+     */
+    public void print(final Appendable out) throws IOException {
+
+        print(out, FlushPolicy.AT_END);
+    }
+
+    /**
+     * Prints this streaming dataset to the given output object, consuming the
+     * underlying input, and flushing the output according to the given policy.
+     *
+     * @param out          the output object
+     * @param flush_policy the flush policy
+     * @throws IOException if the dataset cannot be printed to the given output
+     *                     object
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void print(final Appendable out, final FlushPolicy flush_policy) throws IOException {
+
+        try {
+            RecordWriter.print(labels, this, output_format, out, flush_policy);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Prints this streaming dataset to the given file, consuming the
+     * underlying input.
+     *
+     * @param path the path of the output file
+     * @throws IOException if the dataset cannot be printed to the given file
+     */
+    @SuppressWarnings("unused")
+    public void print(final Path path) throws IOException {
+
+        try (final Writer writer = Files.newBufferedWriter(path)) {
+            print(writer);
+        }
+    }
+
+    /**
+     * Reads all the records of this streaming dataset into memory, consuming
+     * the underlying input.
+     *
+     * @return an in-memory dataset with the same column labels and records
+     * @throws IOException if the underlying input cannot be closed
+     */
+    @SuppressWarnings("unused")
+    public DataSet toDataSet() throws IOException {
+
+        final DataSet data_set = new DataSet(labels);
+
+        try {
+            for (final List<String> record : this) {
+                data_set.addRow(record);
+            }
+        } finally {
+            close();
+        }
+        return data_set;
+    }
+
+    /**
+     * Closes the underlying input.
+     *
+     * @throws IOException if the input cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+
+        source.parser.close();
+    }
+
+    private DataSet makeContext() {
+
+        return new DataSet(labels);
+    }
+
+    private static class Source {
+
+        private final CSVParser parser;
+        private boolean consumed = false;
+
+        Source(final CSVParser parser) {
+
+            this.parser = parser;
+        }
+
+        synchronized Iterator<CSVRecord> consume() {
+
+            if (consumed) {
+                throw new IllegalStateException("streaming dataset has already been consumed");
+            }
+            consumed = true;
+            return parser.iterator();
+        }
+    }
+
+    private static class RecordIterator implements Iterator<List<String>> {
+
+        private final Iterator<CSVRecord> input;
+        private final Operation.Pass pass;
+        private List<String> next_record;
+
+        RecordIterator(final Iterator<CSVRecord> input, final List<Operation> operations) {
+
+            this.input = input;
+            pass = new Operation.Pass(operations, 0);
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            return next_record != null;
+        }
+
+        @Override
+        public List<String> next() {
+
+            if (next_record == null) {
+                throw new NoSuchElementException();
+            }
+
+            final List<String> record = next_record;
+            advance();
+            return record;
+        }
+
+        private void advance() {
+
+            next_record = null;
+
+            while (next_record == null && input.hasNext()) {
+
+                final List<String> items = DataSet.csvRecordToList(input.next());
+
+                if (!DataSet.isEmptyRecord(items)) {
+                    next_record = pass.apply(items);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import uk.ac.standrews.cs.utilities.dataset.derived.Selector;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Selects the records in which a given column has a given value. When applied
+ * to a dictionary-encoded column, the value is resolved to its code once, and
+ * each record is tested by comparing codes.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ * @see DictionaryEncoding
+ */
+public final class ValueSelector implements Selector {
+
+    private final String label;
+    private final String value;
+    private final ColumnHandle column;
+
+    /**
+     * Creates a new selector.
+     *
+     * @param label the label of the column
+     * @param value the required value
+     */
+    public ValueSelector(final String label, final String value) {
+
+        this(label, value, null);
+    }
+
+    private ValueSelector(final String label, final String value, final ColumnHandle column) {
+
+        this.label = label;
+        this.value = value;
+        this.column = column;
+    }
+
+    /**
+     * Gets the label of the column tested.
+     *
+     * @return the label
+     */
+    public String getLabel() {
+
+        return label;
+    }
+
+    /**
+     * Gets the required value.
+     *
+     * @return the value
+     */
+    public String getValue() {
+
+        return value;
+    }
+
+    @Override
+    public Selector bind(final Schema schema) {
+
+        return new ValueSelector(label, value, schema.getHandle(label));
+    }
+
+    @Override
+    public boolean select(final List<String> record, final DataSet data_set) {
+
+        return Objects.equals(value, column != null ? column.getValue(record) : data_set.getValue(record, label));
+    }
+}
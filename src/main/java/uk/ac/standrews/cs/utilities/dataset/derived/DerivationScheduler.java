@@ -0,0 +1,260 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset.derived;
+
+import uk.ac.standrews.cs.utilities.dataset.DataSet;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Materialises a set of derived datasets concurrently, on a bounded number of
+ * threads. The dependency graph is discovered by obtaining the source of each
+ * derived dataset; where a source is itself a derived dataset, it is scheduled
+ * in the same way. Each derivation starts as soon as its source is available,
+ * and its records are evaluated as part of the derivation, so independent
+ * derivations run in parallel.
+ * <p>
+ * Sources are shared according to {@link DerivedDataSet#getSourceKey()}: a
+ * source with a given key is obtained only once, however many derived datasets
+ * depend on it. Where a shared source is itself a derived dataset, it is also
+ * derived only once.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+@SuppressWarnings("unused")
+public class DerivationScheduler {
+
+    private final int number_of_threads;
+    private final Object lock = new Object();
+
+    private final Map<Object, CompletableFuture<DataSet>> sources = new HashMap<>();
+    private final Map<DerivedDataSet, CompletableFuture<DataSet>> derivations = new IdentityHashMap<>();
+    private final List<Timing> timings = Collections.synchronizedList(new ArrayList<>());
+
+    private ExecutorService executor;
+
+    /**
+     * Creates a scheduler using a given number of threads.
+     *
+     * @param number_of_threads the number of threads
+     */
+    public DerivationScheduler(final int number_of_threads) {
+
+        this.number_of_threads = number_of_threads;
+    }
+
+    /**
+     * Creates a scheduler using a thread for each available processor.
+     */
+    public DerivationScheduler() {
+
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Materialises the given derived datasets, and any derived datasets on
+     * which they depend, returning when all have been computed.
+     *
+     * @param data_sets the derived datasets
+     * @throws IOException if a source or derived dataset cannot be obtained
+     */
+    public synchronized void run(final Collection<? extends DerivedDataSet> data_sets) throws IOException {
+
+        executor = Executors.newFixedThreadPool(number_of_threads);
+
+        try {
+            final List<CompletableFuture<DataSet>> futures = new ArrayList<>();
+            for (final DerivedDataSet data_set : data_sets) {
+                futures.add(schedule(data_set));
+            }
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+        } catch (final CompletionException e) {
+
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+
+        } finally {
+            executor.shutdown();
+            executor = null;
+            sources.clear();
+            derivations.clear();
+        }
+    }
+
+    /**
+     * Materialises the given derived datasets.
+     *
+     * @param data_sets the derived datasets
+     * @throws IOException if a source or derived dataset cannot be obtained
+     * @see #run(Collection)
+     */
+    public void run(final DerivedDataSet... data_sets) throws IOException {
+
+        run(Arrays.asList(data_sets));
+    }
+
+    /**
+     * Gets the time taken to obtain each source dataset and to compute each
+     * derived dataset, in order of completion.
+     *
+     * @return the timings
+     */
+    public List<Timing> getTimings() {
+
+        synchronized (timings) {
+            return new ArrayList<>(timings);
+        }
+    }
+
+    private CompletableFuture<DataSet> schedule(final DataSet data_set) {
+
+        if (!(data_set instanceof DerivedDataSet)) {
+            return CompletableFuture.completedFuture(data_set);
+        }
+
+        final DerivedDataSet derived_data_set = (DerivedDataSet) data_set;
+
+        synchronized (lock) {
+
+            CompletableFuture<DataSet> future = derivations.get(derived_data_set);
+            if (future != null) {
+                return future;
+            }
+
+            future = getSource(derived_data_set).
+                    thenCompose(this::schedule).
+                    thenApplyAsync(source -> deriveFrom(derived_data_set, source), executor);
+
+            derivations.put(derived_data_set, future);
+            return future;
+        }
+    }
+
+    private CompletableFuture<DataSet> getSource(final DerivedDataSet data_set) {
+
+        final Object source_key = data_set.getSourceKey();
+        if (source_key == null) {
+            return obtainSource(data_set);
+        }
+        synchronized (lock) {
+            return sources.computeIfAbsent(source_key, key -> obtainSource(data_set));
+        }
+    }
+
+    private CompletableFuture<DataSet> obtainSource(final DerivedDataSet data_set) {
+
+        return CompletableFuture.supplyAsync(() -> {
+
+            final long start_time = System.nanoTime();
+            try {
+                final DataSet source = data_set.getSourceDataSet();
+                timings.add(new Timing("source of " + getName(data_set), System.nanoTime() - start_time));
+                return source;
+
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    private DataSet deriveFrom(final DerivedDataSet data_set, final DataSet source) {
+
+        final long start_time = System.nanoTime();
+        try {
+            if (data_set.deriveFrom(source)) {
+
+                // The derivation yields an unevaluated plan, so evaluate it here, on this thread and within the timing.
+                data_set.getRecords();
+                timings.add(new Timing(getName(data_set), System.nanoTime() - start_time));
+            }
+            return data_set;
+
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String getName(final DerivedDataSet data_set) {
+
+        return data_set.getClass().getName();
+    }
+
+    /**
+     * The time taken by a single step of a scheduled derivation.
+     */
+    public static final class Timing {
+
+        private final String name;
+        private final long elapsed_nanos;
+
+        Timing(final String name, final long elapsed_nanos) {
+
+            this.name = name;
+            this.elapsed_nanos = elapsed_nanos;
+        }
+
+        /**
+         * Gets the name of the step: the class name of a derived dataset, or
+         * "source of" followed by the class name for the source of a derived
+         * dataset.
+         *
+         * @return the name
+         */
+        public String getName() {
+
+            return name;
+        }
+
+        /**
+         * Gets the elapsed time of the step.
+         *
+         * @return the elapsed time in nanoseconds
+         */
+        public long getElapsedNanos() {
+
+            return elapsed_nanos;
+        }
+
+        @Override
+        public String toString() {
+
+            return name + ": " + elapsed_nanos / 1000000 + "ms";
+        }
+    }
+}
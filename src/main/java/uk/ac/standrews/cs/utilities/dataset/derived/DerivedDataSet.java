@@ -16,10 +16,11 @@
  */
 package uk.ac.standrews.cs.utilities.dataset.derived;
 
-import uk.ac.standrews.cs.utilities.archive.QuickSort;
 import uk.ac.standrews.cs.utilities.dataset.DataSet;
+import uk.ac.standrews.cs.utilities.dataset.StreamingDataSet;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -36,9 +37,25 @@ public abstract class DerivedDataSet extends DataSet {
     @SuppressWarnings("WeakerAccess")
     protected static final String ID_COLUMN_LABEL = "ID";
 
+    /**
+     * Creates a derived dataset. The source dataset is obtained and the
+     * derivation performed only when the column labels or records are first
+     * needed, and then only once. An {@link IOException} thrown by
+     * {@link #getSourceDataSet()} or {@link #getDerivedDataSet(DataSet)} is
+     * then rethrown as an {@link UncheckedIOException}.
+     *
+     * @throws IOException not thrown, retained for compatibility with
+     *                     subclass constructors
+     */
     protected DerivedDataSet() throws IOException {
 
-        init(getDerivedDataSet(getSourceDataSet()));
+        initLazily(() -> {
+            try {
+                return derive(getSourceDataSet());
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
     }
 
     /**
@@ -59,18 +76,99 @@ public abstract class DerivedDataSet extends DataSet {
      */
     protected abstract DataSet getDerivedDataSet(DataSet source_data_set) throws IOException;
 
+    /**
+     * Gets the directory in which derived datasets are cached. If a directory
+     * is given, the derived dataset is stored there as a snapshot, keyed by
+     * this class, its derivation version and a fingerprint of the contents of
+     * the source dataset. When a matching snapshot already exists, it is loaded
+     * instead of calling {@link #getDerivedDataSet(DataSet)}. Caching is
+     * disabled by default.
+     *
+     * @return the cache directory, or null if results are not cached
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected Path getCacheDirectory() {
+
+        return null;
+    }
+
+    /**
+     * Gets an identifier for the version of the derivation performed by
+     * {@link #getDerivedDataSet(DataSet)}. Subclasses that cache their results
+     * should change this whenever the derivation changes, so that results
+     * cached by earlier versions are not used.
+     *
+     * @return the version identifier
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected String getDerivationVersion() {
+
+        return "";
+    }
+
+    /**
+     * Gets a key identifying the source dataset, used by
+     * {@link DerivationScheduler} to avoid obtaining the same source more than
+     * once. Derived datasets with equal non-null source keys are assumed to
+     * have the same source. A suitable key might be the path of a source file,
+     * or the class of a derived source dataset. By default sources are not
+     * shared.
+     *
+     * @return the source key, or null if the source is not shared
+     */
     @SuppressWarnings("WeakerAccess")
-    public static Extender addIdColumn() {
+    protected Object getSourceKey() {
+
+        return null;
+    }
+
+    /**
+     * Computes the contents of this dataset from a given source dataset, in
+     * place of the deferred computation, unless the contents have already been
+     * computed.
+     *
+     * @param source_data_set the source dataset
+     * @return true if the contents were computed, or false if they had
+     * already been computed
+     * @throws IOException if the derived dataset cannot be obtained
+     */
+    boolean deriveFrom(final DataSet source_data_set) throws IOException {
+
+        try {
+            return resolveWith(() -> {
+                try {
+                    return derive(source_data_set);
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private DataSet derive(final DataSet source_data_set) throws IOException {
 
-        return new Extender() {
+        final Path cache_directory = getCacheDirectory();
 
-            int record_count = 1;
+        if (cache_directory == null) {
+            return getDerivedDataSet(source_data_set);
+        }
+        return new ResultCache(cache_directory).get(getClass(), getDerivationVersion(), source_data_set, this::getDerivedDataSet);
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public static PositionalExtender addIdColumn() {
+
+        return new PositionalExtender() {
 
             @Override
-            public List<String> getAdditionalValues(final List<String> record, final DataSet data_set) {
+            public List<String> getAdditionalValues(final List<String> record, final int record_index, final DataSet data_set) {
 
+                // Derived from the record position rather than a counter, so that numbering is the same for parallel evaluation.
                 final List<String> result = new ArrayList<>();
-                result.add(String.valueOf(record_count++));
+                result.add(String.valueOf(record_index + 1));
                 return result;
             }
 
@@ -95,79 +193,101 @@ public abstract class DerivedDataSet extends DataSet {
         };
     }
 
+    /**
+     * Replaces the values in the first column of a dataset, which is assumed to
+     * be an ID column, with consecutive numbers from 1.
+     *
+     * @param data_set the dataset
+     * @return the renumbered dataset
+     * @see DataSet#renumber()
+     */
     public static DataSet renumber(final DataSet data_set) {
 
-        final List<String> source_labels = data_set.getColumnLabels();
-        return data_set.project(removeFirstColumn(source_labels)).extend(addIdColumn()).project(moveIdColumnToFirst(source_labels));
+        return data_set.renumber();
     }
 
+    /**
+     * Removes duplicate records from a dataset, retaining the first of each
+     * set of duplicates.
+     *
+     * @param data_set the dataset
+     * @return a new dataset without duplicate records
+     */
     public static DataSet removeDuplicates(final DataSet data_set) {
 
-        final DataSet result = new DataSet(data_set.getColumnLabels());
-
-        final Set<String> processed_rows = new HashSet<>();
-
-        for (final List<String> record : data_set.getRecords()) {
-
-            final String flattened = flatten(record);
-            if (!processed_rows.contains(flattened)) {
-                result.addRow(record);
-                processed_rows.add(flattened);
-            }
-        }
-
-        return result;
+        return data_set.removeDuplicates();
     }
 
+    /**
+     * Sorts the records of a dataset by the concatenation of their values.
+     * Records that compare equal remain in their original order.
+     *
+     * @param data_set the dataset
+     * @return a new dataset containing the sorted records
+     */
     public static DataSet sort(final DataSet data_set) {
 
         final DataSet result = new DataSet(data_set.getColumnLabels());
 
-        // Make a map from flattened records to records.
-        final Map<String, Pair<Integer, List<String>>> map = new HashMap<>();
+        final List<List<String>> sorted = new ArrayList<>(data_set.getRecords());
+        sorted.sort(ExternalSort.FLATTENED_ORDER);
 
-        for (final List<String> record : data_set.getRecords()) {
-
-            final String flattened = flatten(record);
-            if (!map.containsKey(flattened)) {
-                map.put(flattened, new Pair<>(0, record));
-            }
-            map.get(flattened).x++;
-        }
-
-        // Sort the flattened records.
-        final List<String> sorted = new ArrayList<>(map.keySet());
-        new QuickSort<>(sorted, String::compareTo).sort();
-
-        // Retrieve the structured records.
-        for (final String flattened : sorted) {
-            final Pair<Integer, List<String>> pair = map.get(flattened);
-            for (int i = 0; i < pair.x; i++) {
-                result.addRow(pair.y);
-            }
+        for (final List<String> record : sorted) {
+            result.addRow(record);
         }
 
         return result;
     }
 
-    static class Pair<X, Y> {
-
-        X x;
-        final Y y;
+    /**
+     * Sorts the records of a dataset in the same order as {@link #sort(DataSet)},
+     * holding no more than a given amount of record data in memory at once
+     * for the sort. Records beyond the budget are sorted in runs written to
+     * temporary files, which are then merged; in that case the result is read
+     * from a temporary file with
+     * {@link uk.ac.standrews.cs.utilities.dataset.StorageLayout#MAPPED} layout,
+     * and any null values are read back as empty strings.
+     * <p>
+     * The records of the given dataset are already in memory and remain so
+     * while they are sorted, so the budget limits the additional memory used
+     * rather than the total. To sort data that does not fit in memory, use
+     * {@link #sort(StreamingDataSet, long)}.
+     *
+     * @param data_set      the dataset
+     * @param memory_budget the approximate number of bytes of records to be
+     *                      held in memory at once
+     * @return a new dataset containing the sorted records
+     * @throws IOException if the temporary files cannot be written or read
+     */
+    public static DataSet sort(final DataSet data_set, final long memory_budget) throws IOException {
 
-        Pair(final X x, final Y y) {
-            this.x = x;
-            this.y = y;
-        }
+        return new ExternalSort(memory_budget, getCharset()).sort(data_set.getColumnLabels(), data_set);
     }
 
-    private static String flatten(final List<String> record) {
-
-        return String.join("",record);
-    }
+    /**
+     * Sorts the records of a streaming dataset in the same order as
+     * {@link #sort(DataSet)}, consuming its input. Records are read one at a
+     * time and only those in the current run are held in memory, so the
+     * amount of data that can be sorted is limited by the space available for
+     * temporary files rather than by the heap. As for
+     * {@link #sort(DataSet, long)}, null values are read back as empty strings
+     * if the records do not fit within the budget.
+     *
+     * @param data_set      the streaming dataset
+     * @param memory_budget the approximate number of bytes of records to be
+     *                      held in memory at once
+     * @return a new dataset containing the sorted records
+     * @throws IOException if the input or the temporary files cannot be read,
+     *                     or the temporary files cannot be written
+     */
+    @SuppressWarnings("unused")
+    public static DataSet sort(final StreamingDataSet data_set, final long memory_budget) throws IOException {
 
-    private static Projector removeFirstColumn(final List<String> labels) {
+        try {
+            return new ExternalSort(memory_budget, getCharset()).sort(data_set.getColumnLabels(), data_set);
 
-        return () -> labels.subList(1, labels.size());
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 }
@@ -17,15 +17,25 @@
 package uk.ac.standrews.cs.utilities.dataset.derived;
 
 import uk.ac.standrews.cs.utilities.dataset.DataSet;
+import uk.ac.standrews.cs.utilities.dataset.Schema;
 
 import java.util.List;
 
 /**
- * Interface for creating new columns for a dataset.
+ * Interface for creating new columns for a dataset, with values that depend
+ * only on each record and not on its position.
+ * <p>
+ * When a dataset is evaluated with
+ * {@link uk.ac.standrews.cs.utilities.dataset.ExecutionMode#PARALLEL}, the
+ * methods generating values may be called concurrently for different records,
+ * and not in record order. Implementations should therefore not depend on
+ * mutable state; values that depend on the position of a record, such as
+ * sequence numbers, should be generated by a {@link PositionalExtender}
+ * instead.
  *
  * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
  */
-public interface Extender {
+public interface Extender extends PositionalExtender {
 
     /**
      * Gets the additional values to be appended to a given record. The containing
@@ -41,9 +51,36 @@ public interface Extender {
     List<String> getAdditionalValues(List<String> record, DataSet data_set);
 
     /**
-     * Gets the labels for the new columns.
+     * Gets the additional values to be appended to the record at a given
+     * position. This implementation ignores the position and calls
+     * {@link #getAdditionalValues(List, DataSet)}.
      *
-     * @return the labels for the new columns
+     * @param record       the existing record
+     * @param record_index the position of the record within the dataset being
+     *                     extended, starting from zero
+     * @param data_set     the dataset within which the record occurs
+     * @return a list of new values to be appended to the record in the extended
+     * dataset
+     */
+    @Override
+    default List<String> getAdditionalValues(final List<String> record, final int record_index, final DataSet data_set) {
+
+        return getAdditionalValues(record, data_set);
+    }
+
+    /**
+     * Called once with the schema of the dataset before each scan of its
+     * records, to obtain the extender used for that scan. An implementation
+     * may return an extender that has resolved the columns it needs, so that
+     * each call to {@link #getAdditionalValues(List, DataSet)} can access
+     * values by position. This extender should not itself be modified.
+     *
+     * @param schema the schema of the dataset about to be scanned
+     * @return the extender to be used for the scan; by default, this extender
      */
-    List<String> getColumnLabels();
+    @Override
+    default Extender bind(final Schema schema) {
+
+        return this;
+    }
 }
@@ -0,0 +1,469 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset.derived;
+
+import org.apache.commons.csv.CSVPrinter;
+import uk.ac.standrews.cs.utilities.dataset.DataSet;
+import uk.ac.standrews.cs.utilities.dataset.StorageLayout;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Sorts records that may not fit in memory. Records are gathered into runs
+ * that fit within a memory budget; each run is sorted and written to a
+ * temporary file, and the runs are then merged. The sort is stable: records
+ * that compare equal remain in their original order. By default records are
+ * compared by the concatenation of their values, giving the same order as
+ * {@link DerivedDataSet#sort(DataSet)}.
+ * <p>
+ * If the records fit within the budget, they are sorted in memory. Otherwise
+ * the sorted records are either read back from the runs as they are merged,
+ * or, for a sorted dataset, written to a temporary CSV file, which is mapped
+ * into memory as the result, so that the sorted values are not held on the
+ * heap. CSV cannot distinguish a null value from an empty string, so in that
+ * case null values are read back as empty strings; the order is unaffected,
+ * and is the same as if they had been retained.
+ * <p>
+ * The budget only bounds the records held by the sort itself. Heap use is
+ * bounded overall only if the records are read from a source that does not
+ * retain them, such as a {@link uk.ac.standrews.cs.utilities.dataset.StreamingDataSet};
+ * records of a {@link DataSet} remain reachable from the dataset while they
+ * are sorted.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+public class ExternalSort {
+
+    /**
+     * The maximum number of runs merged at once.
+     */
+    private static final int MAX_RUNS_PER_MERGE = 64;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Approximate heap sizes used to estimate the memory occupied by a run.
+    private static final int RECORD_OVERHEAD = 48;
+    private static final int VALUE_OVERHEAD = 48;
+
+    /**
+     * Compares records by the concatenation of their values, without
+     * constructing the concatenations.
+     */
+    static final Comparator<List<String>> FLATTENED_ORDER = ExternalSort::compareFlattened;
+
+    private final long memory_budget;
+    private final Charset charset;
+    private final Comparator<List<String>> order;
+
+    /**
+     * @param memory_budget the approximate number of bytes of records to be
+     *                      held in memory at once
+     * @param charset       the charset used for the sorted CSV file
+     */
+    ExternalSort(final long memory_budget, final Charset charset) {
+
+        this(memory_budget, charset, FLATTENED_ORDER);
+    }
+
+    /**
+     * Creates a sort in a given order.
+     *
+     * @param memory_budget the approximate number of bytes of records to be
+     *                      held in memory at once
+     * @param charset       the charset used for the sorted CSV file
+     * @param order         the order of the records
+     */
+    public ExternalSort(final long memory_budget, final Charset charset, final Comparator<List<String>> order) {
+
+        this.memory_budget = memory_budget;
+        this.charset = charset;
+        this.order = order;
+    }
+
+    /**
+     * Sorts a sequence of records into a new dataset.
+     *
+     * @param labels  the column labels
+     * @param records the records, which are read once
+     * @return a new dataset containing the sorted records
+     * @throws IOException if the temporary files cannot be written or read
+     */
+    @SuppressWarnings("WeakerAccess")
+    public DataSet sort(final List<String> labels, final Iterable<List<String>> records) throws IOException {
+
+        try (final SortedRecords sorted = sort(records)) {
+
+            if (sorted.isSpilled()) {
+                return mergeToDataSet(labels, sorted);
+            }
+
+            final DataSet result = new DataSet(labels);
+            while (sorted.hasNext()) {
+                result.addRow(sorted.next());
+            }
+            return result;
+
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Sorts a sequence of records, giving the sorted records in order. If the
+     * records do not fit within the budget, only the first remaining record of
+     * each run is held in memory while the result is read.
+     *
+     * @param records the records, which are read once
+     * @return the sorted records, which must be closed to delete any
+     * temporary files
+     * @throws IOException if the temporary files cannot be written or read
+     */
+    @SuppressWarnings("WeakerAccess")
+    public SortedRecords sort(final Iterable<List<String>> records) throws IOException {
+
+        final List<Path> runs = new ArrayList<>();
+        final List<List<String>> run = new ArrayList<>();
+        long run_size = 0;
+
+        try {
+            for (final List<String> record : records) {
+
+                run.add(record);
+                run_size += estimateSize(record);
+
+                if (run_size >= memory_budget) {
+                    runs.add(writeRun(run));
+                    run.clear();
+                    run_size = 0;
+                }
+            }
+
+            if (runs.isEmpty()) {
+
+                // Everything fits in memory.
+                run.sort(order);
+                return new SortedRecords(run);
+            }
+
+            if (!run.isEmpty()) {
+                runs.add(writeRun(run));
+                run.clear();
+            }
+
+            // Merge in passes, combining consecutive runs so that equal records keep their order.
+            while (runs.size() > MAX_RUNS_PER_MERGE) {
+
+                final List<Path> merged_runs = new ArrayList<>();
+
+                for (int start = 0; start < runs.size(); start += MAX_RUNS_PER_MERGE) {
+
+                    final List<Path> group = new ArrayList<>(runs.subList(start, Math.min(start + MAX_RUNS_PER_MERGE, runs.size())));
+                    final Path merged_run = createTempFile(".run");
+                    merged_runs.add(merged_run);
+
+                    // Closing the merged group deletes its runs.
+                    try (final DataOutputStream out = openRun(merged_run);
+                         final SortedRecords merged = new SortedRecords(group, order)) {
+
+                        while (merged.hasNext()) {
+                            writeRecord(out, merged.next());
+                        }
+                    }
+                }
+                runs.clear();
+                runs.addAll(merged_runs);
+            }
+
+            return new SortedRecords(runs, order);
+
+        } catch (final IOException | RuntimeException e) {
+            deleteAll(runs);
+            throw e;
+        }
+    }
+
+    private DataSet mergeToDataSet(final List<String> labels, final SortedRecords sorted) throws IOException {
+
+        final Path sorted_path = createTempFile(".csv");
+
+        try {
+            try (final Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(sorted_path), charset), BUFFER_SIZE);
+                 final CSVPrinter printer = new CSVPrinter(writer, DataSet.DEFAULT_CSV_FORMAT.builder().setHeader(labels.toArray(new String[0])).build())) {
+
+                while (sorted.hasNext()) {
+                    printer.printRecord(sorted.next());
+                }
+            }
+
+            return new DataSet(sorted_path, StorageLayout.MAPPED);
+
+        } finally {
+            delete(sorted_path);
+        }
+    }
+
+    private Path writeRun(final List<List<String>> run) throws IOException {
+
+        run.sort(order);
+
+        final Path path = createTempFile(".run");
+        try (final DataOutputStream out = openRun(path)) {
+            for (final List<String> record : run) {
+                writeRecord(out, record);
+            }
+        }
+        return path;
+    }
+
+    private static DataOutputStream openRun(final Path path) throws IOException {
+
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE));
+    }
+
+    private static void writeRecord(final DataOutputStream out, final List<String> record) throws IOException {
+
+        out.writeInt(record.size());
+
+        for (final String value : record) {
+
+            if (value == null) {
+                out.writeInt(-1);
+            } else {
+                final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Reads the next record from a run.
+     *
+     * @return the record, or null if the end of the run has been reached
+     */
+    private static List<String> readRecord(final DataInputStream in) throws IOException {
+
+        final int size;
+        try {
+            size = in.readInt();
+        } catch (final EOFException e) {
+            return null;
+        }
+
+        final List<String> record = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+
+            final int length = in.readInt();
+            if (length < 0) {
+                record.add(null);
+            } else {
+                final byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                record.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+        return record;
+    }
+
+    private static long estimateSize(final List<String> record) {
+
+        long size = RECORD_OVERHEAD;
+        for (final String value : record) {
+            size += VALUE_OVERHEAD + (value == null ? 0 : 2L * value.length());
+        }
+        return size;
+    }
+
+    /**
+     * Compares two records in the same way as the concatenations of their
+     * values would be compared by {@link String#compareTo(String)}, with null
+     * values treated as "null" as by {@link String#join(CharSequence, Iterable)}.
+     */
+    private static int compareFlattened(final List<String> record1, final List<String> record2) {
+
+        int value_index1 = 0, char_index1 = 0;
+        int value_index2 = 0, char_index2 = 0;
+
+        while (true) {
+
+            while (value_index1 < record1.size() && char_index1 >= getValue(record1, value_index1).length()) {
+                value_index1++;
+                char_index1 = 0;
+            }
+            while (value_index2 < record2.size() && char_index2 >= getValue(record2, value_index2).length()) {
+                value_index2++;
+                char_index2 = 0;
+            }
+
+            final boolean end1 = value_index1 >= record1.size();
+            final boolean end2 = value_index2 >= record2.size();
+
+            if (end1 || end2) {
+                return end1 ? (end2 ? 0 : -1) : 1;
+            }
+
+            final char c1 = getValue(record1, value_index1).charAt(char_index1++);
+            final char c2 = getValue(record2, value_index2).charAt(char_index2++);
+
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+    }
+
+    private static String getValue(final List<String> record, final int index) {
+
+        return String.valueOf(record.get(index));
+    }
+
+    private static Path createTempFile(final String suffix) throws IOException {
+
+        return Files.createTempFile("sort", suffix);
+    }
+
+    private static void deleteAll(final List<Path> paths) {
+
+        for (final Path path : paths) {
+            delete(path);
+        }
+    }
+
+    private static void delete(final Path path) {
+
+        try {
+            Files.deleteIfExists(path);
+        } catch (final IOException e) {
+            // The file may still be mapped on some platforms.
+            path.toFile().deleteOnExit();
+        }
+    }
+
+    /**
+     * The records resulting from a sort, in order. If the records did not fit
+     * in memory, they are read from the runs as the runs are merged, and the
+     * runs are deleted when this is closed. A failure to read a run while
+     * iterating is reported as an {@link UncheckedIOException}.
+     */
+    public static class SortedRecords implements Iterator<List<String>>, Closeable {
+
+        private final Iterator<List<String>> in_memory_records;
+        private final List<Path> runs;
+        private final List<DataInputStream> inputs = new ArrayList<>();
+        private final PriorityQueue<Head> heads;
+
+        private SortedRecords(final List<List<String>> records) {
+
+            in_memory_records = records.iterator();
+            runs = Collections.emptyList();
+            heads = null;
+        }
+
+        private SortedRecords(final List<Path> runs, final Comparator<List<String>> order) throws IOException {
+
+            in_memory_records = null;
+            this.runs = runs;
+
+            // Ties between runs are broken by run order, so the merge is stable.
+            heads = new PriorityQueue<>((head1, head2) -> {
+                final int comparison = order.compare(head1.record, head2.record);
+                return comparison != 0 ? comparison : Integer.compare(head1.run_index, head2.run_index);
+            });
+
+            try {
+                for (int run_index = 0; run_index < runs.size(); run_index++) {
+
+                    final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(runs.get(run_index)), BUFFER_SIZE));
+                    inputs.add(in);
+
+                    final List<String> record = readRecord(in);
+                    if (record != null) {
+                        heads.add(new Head(record, run_index));
+                    }
+                }
+
+            } catch (final IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            return isSpilled() ? !heads.isEmpty() : in_memory_records.hasNext();
+        }
+
+        @Override
+        public List<String> next() {
+
+            if (!isSpilled()) {
+                return in_memory_records.next();
+            }
+
+            final Head head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+
+            try {
+                final List<String> next = readRecord(inputs.get(head.run_index));
+                if (next != null) {
+                    heads.add(new Head(next, head.run_index));
+                }
+
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return head.record;
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            try {
+                for (final DataInputStream in : inputs) {
+                    in.close();
+                }
+            } finally {
+                deleteAll(runs);
+            }
+        }
+
+        private boolean isSpilled() {
+
+            return in_memory_records == null;
+        }
+    }
+
+    private static class Head {
+
+        final List<String> record;
+        final int run_index;
+
+        Head(final List<String> record, final int run_index) {
+
+            this.record = record;
+            this.run_index = run_index;
+        }
+    }
+}
@@ -16,10 +16,18 @@
  */
 package uk.ac.standrews.cs.utilities.dataset.derived;
 
+import uk.ac.standrews.cs.utilities.dataset.Schema;
+
 import java.util.List;
 
 /**
  * Interface for transforming records in a dataset.
+ * <p>
+ * When a dataset is evaluated with
+ * {@link uk.ac.standrews.cs.utilities.dataset.ExecutionMode#PARALLEL},
+ * {@link #mapRecord(List, List)} may be called concurrently for different
+ * records, and not in record order, so implementations should not depend on
+ * mutable state.
  *
  * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
  */
@@ -37,4 +45,19 @@ public interface Mapper {
     List<String> mapRecord(List<String> record, List<String> labels);
 
     List<String> mapColumnLabels(List<String> labels);
+
+    /**
+     * Called once with the schema of the dataset before each scan of its
+     * records, to obtain the mapper used for that scan. An implementation may
+     * return a mapper that has resolved the columns it needs, so that each
+     * call to {@link #mapRecord(List, List)} can access values by position.
+     * This mapper should not itself be modified.
+     *
+     * @param schema the schema of the dataset about to be scanned
+     * @return the mapper to be used for the scan; by default, this mapper
+     */
+    default Mapper bind(final Schema schema) {
+
+        return this;
+    }
 }
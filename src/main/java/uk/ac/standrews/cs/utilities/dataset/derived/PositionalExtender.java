@@ -0,0 +1,76 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset.derived;
+
+import uk.ac.standrews.cs.utilities.dataset.DataSet;
+import uk.ac.standrews.cs.utilities.dataset.Schema;
+
+import java.util.List;
+
+/**
+ * Interface for creating new columns for a dataset, with values that may
+ * depend on the position of each record. Extenders whose values depend only
+ * on the record itself can implement the simpler {@link Extender}.
+ * <p>
+ * When a dataset is evaluated with
+ * {@link uk.ac.standrews.cs.utilities.dataset.ExecutionMode#PARALLEL},
+ * {@link #getAdditionalValues(List, int, DataSet)} may be called concurrently
+ * for different records, and not in record order. Implementations should
+ * therefore not depend on mutable state; values such as sequence numbers
+ * should be derived from the position passed.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+public interface PositionalExtender {
+
+    /**
+     * Gets the additional values to be appended to the record at a given
+     * position in the dataset being extended. The containing dataset is also
+     * made available in case the extender logic needs access to the column
+     * labels.
+     *
+     * @param record       the existing record
+     * @param record_index the position of the record within the dataset being
+     *                     extended, starting from zero
+     * @param data_set     the dataset within which the record occurs
+     * @return a list of new values to be appended to the record in the extended
+     * dataset
+     */
+    List<String> getAdditionalValues(List<String> record, int record_index, DataSet data_set);
+
+    /**
+     * Gets the labels for the new columns.
+     *
+     * @return the labels for the new columns
+     */
+    List<String> getColumnLabels();
+
+    /**
+     * Called once with the schema of the dataset before each scan of its
+     * records, to obtain the extender used for that scan. An implementation
+     * may return an extender that has resolved the columns it needs, so that
+     * each call to {@link #getAdditionalValues(List, int, DataSet)} can access
+     * values by position. This extender should not itself be modified.
+     *
+     * @param schema the schema of the dataset about to be scanned
+     * @return the extender to be used for the scan; by default, this extender
+     */
+    default PositionalExtender bind(final Schema schema) {
+
+        return this;
+    }
+}
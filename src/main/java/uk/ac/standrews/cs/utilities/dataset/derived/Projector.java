@@ -16,6 +16,8 @@
  */
 package uk.ac.standrews.cs.utilities.dataset.derived;
 
+import uk.ac.standrews.cs.utilities.dataset.Schema;
+
 import java.util.List;
 
 /**
@@ -31,4 +33,20 @@ public interface Projector {
      * @return the labels of the projected columns
      */
     List<String> getProjectedColumnLabels();
+
+    /**
+     * Called once with the schema of the dataset before it is projected, to
+     * obtain the projector giving the projected labels. The
+     * projected labels are resolved to column positions once per projection,
+     * so an implementation only needs this if the projected labels depend on
+     * the schema.
+     *
+     * @param schema the schema of the dataset about to be projected
+     * @return the projector giving the projected labels; by default, this
+     * projector
+     */
+    default Projector bind(final Schema schema) {
+
+        return this;
+    }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset.derived;
+
+import uk.ac.standrews.cs.utilities.dataset.DataSet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Stores derived datasets on disk as binary snapshots, keyed by the class and
+ * version of the derivation and a fingerprint of the contents of the source
+ * dataset, so that a derivation is only repeated when one of these changes.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+class ResultCache {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String FILE_SUFFIX = ".snapshot";
+
+    private final Path directory;
+
+    /**
+     * The computation of a derived dataset from a source dataset.
+     */
+    interface Derivation {
+
+        DataSet derive(DataSet source_data_set) throws IOException;
+    }
+
+    ResultCache(final Path directory) {
+
+        this.directory = directory;
+    }
+
+    /**
+     * Gets a derived dataset from the cache, or computes and stores it if it
+     * is not present.
+     *
+     * @param derivation_class the class performing the derivation
+     * @param version          the version of the derivation
+     * @param source_data_set  the source dataset
+     * @param derivation       the derivation
+     * @return the derived dataset
+     * @throws IOException if the derived dataset cannot be computed, or the
+     *                     cache cannot be written
+     */
+    DataSet get(final Class<?> derivation_class, final String version, final DataSet source_data_set, final Derivation derivation) throws IOException {
+
+        final Path path = directory.resolve(derivation_class.getName() + "-" + getKey(derivation_class, version, source_data_set) + FILE_SUFFIX);
+
+        if (Files.exists(path)) {
+            try {
+                return DataSet.readSnapshot(path);
+
+            } catch (final IOException | RuntimeException e) {
+                // The cached file is unreadable, for example after an interrupted write by an earlier version, so recompute it.
+            }
+        }
+
+        final DataSet derived_data_set = derivation.derive(source_data_set);
+        store(derived_data_set, path);
+        return derived_data_set;
+    }
+
+    private void store(final DataSet data_set, final Path path) throws IOException {
+
+        Files.createDirectories(directory);
+
+        // Write to a temporary file and then move it, so that a partially written file is never visible to another job.
+        final Path temp_path = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+
+        try {
+            data_set.writeSnapshot(temp_path);
+
+            try {
+                Files.move(temp_path, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(temp_path, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+        } finally {
+            Files.deleteIfExists(temp_path);
+        }
+    }
+
+    private static String getKey(final Class<?> derivation_class, final String version, final DataSet source_data_set) {
+
+        final MessageDigest digest = getDigest();
+
+        update(digest, derivation_class.getName());
+        update(digest, version);
+        update(digest, source_data_set.getColumnLabels());
+
+        final List<List<String>> records = source_data_set.getRecords();
+        updateInt(digest, records.size());
+
+        for (final List<String> record : records) {
+            update(digest, record);
+        }
+
+        final StringBuilder builder = new StringBuilder();
+        for (final byte b : digest.digest()) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    private static void update(final MessageDigest digest, final List<String> values) {
+
+        updateInt(digest, values.size());
+        for (final String value : values) {
+            update(digest, value);
+        }
+    }
+
+    private static void update(final MessageDigest digest, final String value) {
+
+        // Lengths are included so that different divisions of the same characters give different keys.
+        if (value == null) {
+            updateInt(digest, -1);
+
+        } else {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            updateInt(digest, bytes.length);
+            digest.update(bytes);
+        }
+    }
+
+    private static void updateInt(final MessageDigest digest, final int value) {
+
+        digest.update((byte) (value >>> 24));
+        digest.update((byte) (value >>> 16));
+        digest.update((byte) (value >>> 8));
+        digest.update((byte) value);
+    }
+
+    private static MessageDigest getDigest() {
+
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
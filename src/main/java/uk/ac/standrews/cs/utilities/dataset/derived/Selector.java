@@ -17,11 +17,18 @@
 package uk.ac.standrews.cs.utilities.dataset.derived;
 
 import uk.ac.standrews.cs.utilities.dataset.DataSet;
+import uk.ac.standrews.cs.utilities.dataset.Schema;
 
 import java.util.List;
 
 /**
  * Interface for selecting records from a dataset.
+ * <p>
+ * When a dataset is evaluated with
+ * {@link uk.ac.standrews.cs.utilities.dataset.ExecutionMode#PARALLEL},
+ * {@link #select(List, DataSet)} may be called concurrently for different
+ * records, and not in record order, so implementations should not depend on
+ * mutable state.
  *
  * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
  */
@@ -37,4 +44,21 @@ public interface Selector {
      * @return true if the record should be selected
      */
     boolean select(List<String> record, DataSet data_set);
+
+    /**
+     * Called once with the schema of the dataset before each scan of its
+     * records, to obtain the selector used for that scan. An implementation
+     * may return a selector that has resolved the columns it needs, for
+     * example using {@link Schema#getHandle(String)}, so that each call to
+     * {@link #select(List, DataSet)} can access values by position. This
+     * selector should not itself be modified, since it may be used in several
+     * scans over datasets with different schemas, possibly concurrently.
+     *
+     * @param schema the schema of the dataset about to be scanned
+     * @return the selector to be used for the scan; by default, this selector
+     */
+    default Selector bind(final Schema schema) {
+
+        return this;
+    }
 }
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset.encrypted;
+
+import uk.ac.standrews.cs.utilities.crypto.AsymmetricEncryption;
+import uk.ac.standrews.cs.utilities.crypto.CryptoException;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.DestroyFailedException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of AES keys extracted from encrypted key data, as used by
+ * {@link AsymmetricEncryption#getAESKey(InputStream)}, so that the private key
+ * decryption is performed once for each distinct encrypted key rather than
+ * once for each use.
+ * <p>
+ * Keys are cached under a SHA-256 hash of the encrypted key data, so the data
+ * itself is not retained. The cache holds a bounded number of keys, evicting
+ * the least recently used, and each key expires a fixed time after it was
+ * extracted. The cached key material is overwritten with zeros when a key is
+ * evicted, expires or is invalidated; expired keys are removed by a background
+ * daemon thread, so they do not remain in memory if the cache is not used
+ * again. Each call returns a new key object, so callers cannot affect the
+ * cached key.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+@SuppressWarnings("WeakerAccess")
+public final class AESKeyCache {
+
+    /**
+     * The default maximum number of cached keys.
+     */
+    public static final int DEFAULT_MAXIMUM_SIZE = 16;
+
+    /**
+     * The default time for which a key is cached.
+     */
+    public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(10);
+
+    private static final ScheduledExecutorService PURGER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+
+        final Thread thread = new Thread(runnable, "AES key cache purger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final AESKeyCache SHARED = new AESKeyCache(DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE);
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 4096;
+
+    private final int maximum_size;
+    private final long time_to_live_nanos;
+    private final KeyExtractor extractor;
+
+    private final Map<ByteBuffer, Entry> entries;
+
+    /**
+     * Creates a cache with a given size and time to live.
+     *
+     * @param maximum_size the maximum number of cached keys
+     * @param time_to_live the time for which a key is cached after it has been
+     *                     extracted
+     */
+    public AESKeyCache(final int maximum_size, final Duration time_to_live) {
+
+        this(maximum_size, time_to_live, encrypted_key -> AsymmetricEncryption.getAESKey(new ByteArrayInputStream(encrypted_key)));
+    }
+
+    AESKeyCache(final int maximum_size, final Duration time_to_live, final KeyExtractor extractor) {
+
+        if (maximum_size <= 0) {
+            throw new IllegalArgumentException("maximum size must be positive");
+        }
+        if (time_to_live.isNegative() || time_to_live.isZero()) {
+            throw new IllegalArgumentException("time to live must be positive");
+        }
+
+        this.maximum_size = maximum_size;
+        this.time_to_live_nanos = time_to_live.toNanos();
+        this.extractor = extractor;
+
+        entries = new LinkedHashMap<ByteBuffer, Entry>(maximum_size, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, Entry> eldest) {
+
+                if (size() > AESKeyCache.this.maximum_size) {
+                    eldest.getValue().clear();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the cache shared by instances of {@link EncryptedDataSet} within a
+     * process, with the default size and time to live.
+     *
+     * @return the shared cache
+     */
+    public static AESKeyCache getShared() {
+
+        return SHARED;
+    }
+
+    /**
+     * Gets the AES key from the given encrypted key data, extracting it with
+     * this user's private key if it is not already cached.
+     *
+     * @param encrypted_key_stream an input stream containing versions of the
+     *                             MIME-encoded AES key encrypted with various
+     *                             users' public keys
+     * @return the AES key
+     * @throws CryptoException if the AES key cannot be extracted with this
+     *                         user's private key
+     * @throws IOException     if the input stream cannot be read
+     */
+    public SecretKey getAESKey(final InputStream encrypted_key_stream) throws CryptoException, IOException {
+
+        return getAESKey(readAll(encrypted_key_stream));
+    }
+
+    /**
+     * Gets the AES key from the given encrypted key file, extracting it with
+     * this user's private key if it is not already cached.
+     *
+     * @param encrypted_key_path the path of a file containing versions of the
+     *                           MIME-encoded AES key encrypted with various
+     *                           users' public keys
+     * @return the AES key
+     * @throws CryptoException if the AES key cannot be extracted with this
+     *                         user's private key
+     * @throws IOException     if the file cannot be read
+     */
+    public SecretKey getAESKey(final Path encrypted_key_path) throws CryptoException, IOException {
+
+        return getAESKey(Files.readAllBytes(encrypted_key_path));
+    }
+
+    /**
+     * Removes the key extracted from the given encrypted key file, if cached.
+     *
+     * @param encrypted_key_path the path of the encrypted key file
+     * @throws IOException if the file cannot be read
+     */
+    public void invalidate(final Path encrypted_key_path) throws IOException {
+
+        final ByteBuffer hash = hash(Files.readAllBytes(encrypted_key_path));
+
+        synchronized (entries) {
+
+            final Entry entry = entries.remove(hash);
+            if (entry != null) {
+                entry.clear();
+            }
+        }
+    }
+
+    /**
+     * Removes all cached keys.
+     */
+    public void invalidateAll() {
+
+        synchronized (entries) {
+
+            for (final Entry entry : entries.values()) {
+                entry.clear();
+            }
+            entries.clear();
+        }
+    }
+
+    /**
+     * Gets the number of keys currently cached, excluding expired keys.
+     *
+     * @return the number of keys
+     */
+    public int size() {
+
+        synchronized (entries) {
+
+            removeExpired(System.nanoTime());
+            return entries.size();
+        }
+    }
+
+    private SecretKey getAESKey(final byte[] encrypted_key) throws CryptoException, IOException {
+
+        final ByteBuffer hash = hash(encrypted_key);
+
+        synchronized (entries) {
+
+            removeExpired(System.nanoTime());
+
+            final Entry entry = entries.get(hash);
+            if (entry != null) {
+                return entry.getKey();
+            }
+        }
+
+        // Extract outside the lock, so that a slow extraction doesn't block uses of other keys.
+        final SecretKey key = extractor.extract(encrypted_key);
+        final Entry new_entry = new Entry(key, System.nanoTime() + time_to_live_nanos);
+
+        synchronized (entries) {
+
+            final Entry previous = entries.put(hash, new_entry);
+            if (previous != null) {
+                previous.clear();
+            }
+        }
+
+        // Runs after the new entry has expired.
+        PURGER.schedule(this::purgeExpired, time_to_live_nanos, TimeUnit.NANOSECONDS);
+
+        return new_entry.getKey();
+    }
+
+    private void purgeExpired() {
+
+        synchronized (entries) {
+            removeExpired(System.nanoTime());
+        }
+    }
+
+    private void removeExpired(final long now) {
+
+        final Iterator<Entry> iterator = entries.values().iterator();
+
+        while (iterator.hasNext()) {
+
+            final Entry entry = iterator.next();
+            if (entry.hasExpired(now)) {
+                entry.clear();
+                iterator.remove();
+            }
+        }
+    }
+
+    private static ByteBuffer hash(final byte[] encrypted_key) {
+
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance(HASH_ALGORITHM).digest(encrypted_key));
+
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Extracts an AES key from encrypted key data.
+     */
+    interface KeyExtractor {
+
+        SecretKey extract(byte[] encrypted_key) throws CryptoException, IOException;
+    }
+
+    /**
+     * A cached key, held as raw key material so that it can be overwritten.
+     */
+    private static class Entry {
+
+        private final byte[] key_material;
+        private final String algorithm;
+        private final long expiry_time;
+
+        Entry(final SecretKey key, final long expiry_time) {
+
+            key_material = key.getEncoded();
+            algorithm = key.getAlgorithm();
+            this.expiry_time = expiry_time;
+
+            try {
+                key.destroy();
+
+            } catch (final DestroyFailedException e) {
+                // Not all key implementations can be destroyed; the cached copy is still cleared on eviction.
+            }
+        }
+
+        SecretKey getKey() {
+
+            return new SecretKeySpec(key_material, algorithm);
+        }
+
+        boolean hasExpired(final long now) {
+
+            return now - expiry_time >= 0;
+        }
+
+        void clear() {
+
+            Arrays.fill(key_material, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset.encrypted;
+
+import uk.ac.standrews.cs.utilities.crypto.CryptoException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Encrypts and decrypts data in a format that divides the plain text into
+ * segments, each encrypted and authenticated independently with AES-GCM, so
+ * that segments can be processed in parallel.
+ * <p>
+ * The data starts with a header containing a magic number, a version, the
+ * segment size and a random nonce prefix. Each segment is then written as the
+ * length of its cipher text followed by the cipher text, which includes the
+ * authentication tag. The nonce for each segment consists of the prefix, the
+ * segment number and a flag marking the final segment, and the header is
+ * authenticated with every segment, so reordering, truncating or otherwise
+ * modifying the data causes decryption to fail.
+ * <p>
+ * A batch of segments is held in memory at a time, so memory use does not
+ * depend on the size of the data.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+public final class ChunkedEncryption {
+
+    /**
+     * The default size of plain-text segments.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    // The first byte is not a MIME character, so this format can be distinguished from the MIME-encoded format.
+    private static final byte[] MAGIC = {(byte) 0x89, 'C', 'S', 'E'};
+    private static final byte VERSION = 1;
+
+    private static final int NONCE_PREFIX_LENGTH = 7;
+
+    /**
+     * The length of a header, consisting of a magic number, a version, an
+     * integer parameter and a nonce prefix.
+     */
+    static final int HEADER_LENGTH = MAGIC.length + 1 + Integer.BYTES + NONCE_PREFIX_LENGTH;
+
+    private static final int NONCE_LENGTH = 12;
+
+    /**
+     * The length of the authentication tag added to each encrypted segment.
+     */
+    static final int TAG_LENGTH = 16;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    /**
+     * The number of segments per available thread held in memory at once.
+     */
+    private static final int SEGMENTS_PER_THREAD = 2;
+
+    private ChunkedEncryption() {
+    }
+
+    /**
+     * Encrypts data with the default segment size.
+     *
+     * @param AES_key the AES key
+     * @param in      the plain text
+     * @param out     the stream to which the encrypted data is written
+     * @throws CryptoException if the data cannot be encrypted
+     * @throws IOException     if the data cannot be read or written
+     */
+    public static void encrypt(final SecretKey AES_key, final InputStream in, final OutputStream out) throws CryptoException, IOException {
+
+        encrypt(AES_key, in, out, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Encrypts data with a given segment size.
+     *
+     * @param AES_key      the AES key
+     * @param in           the plain text
+     * @param out          the stream to which the encrypted data is written
+     * @param segment_size the number of bytes of plain text in each segment
+     * @throws CryptoException if the data cannot be encrypted
+     * @throws IOException     if the data cannot be read or written
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static void encrypt(final SecretKey AES_key, final InputStream in, final OutputStream out, final int segment_size) throws CryptoException, IOException {
+
+        if (segment_size < 1) {
+            throw new IllegalArgumentException("segment size must be positive");
+        }
+
+        final byte[] header = makeHeader(MAGIC, VERSION, segment_size);
+        final PushbackInputStream input = new PushbackInputStream(in, 1);
+        final DataOutputStream output = new DataOutputStream(out);
+
+        output.write(header);
+
+        int first_segment_number = 0;
+        boolean finished = false;
+
+        while (!finished) {
+
+            final List<byte[]> plain_text_segments = new ArrayList<>();
+
+            while (!finished && plain_text_segments.size() < getBatchSize()) {
+
+                plain_text_segments.add(readSegment(input, segment_size));
+                finished = atEnd(input);
+            }
+
+            final byte[][] cipher_text_segments = process(Cipher.ENCRYPT_MODE, AES_key, header, first_segment_number, plain_text_segments, finished);
+
+            for (final byte[] segment : cipher_text_segments) {
+                output.writeInt(segment.length);
+                output.write(segment);
+            }
+            first_segment_number += plain_text_segments.size();
+        }
+        output.flush();
+    }
+
+    /**
+     * Decrypts data.
+     *
+     * @param AES_key the AES key
+     * @param in      the encrypted data
+     * @param out     the stream to which the plain text is written
+     * @throws CryptoException if the data is not in this format, has been
+     *                         modified or truncated, or cannot be decrypted
+     *                         with the given key
+     * @throws IOException     if the data cannot be read or written
+     */
+    public static void decrypt(final SecretKey AES_key, final InputStream in, final OutputStream out) throws CryptoException, IOException {
+
+        final PushbackInputStream input = new PushbackInputStream(in, 1);
+        final DataInputStream data_input = new DataInputStream(input);
+
+        final byte[] header = new byte[HEADER_LENGTH];
+        try {
+            data_input.readFully(header);
+        } catch (final EOFException e) {
+            throw new CryptoException("encrypted data has no header");
+        }
+
+        if (!hasMagic(header, MAGIC)) {
+            throw new CryptoException("encrypted data is not in chunked format");
+        }
+        if (header[MAGIC.length] != VERSION) {
+            throw new CryptoException("unsupported chunked format version: " + header[MAGIC.length]);
+        }
+
+        final int segment_size = ByteBuffer.wrap(header, MAGIC.length + 1, Integer.BYTES).getInt();
+        if (segment_size < 1 || segment_size > Integer.MAX_VALUE - TAG_LENGTH) {
+            throw new CryptoException("invalid segment size: " + segment_size);
+        }
+
+        int first_segment_number = 0;
+        boolean finished = false;
+
+        while (!finished) {
+
+            final List<byte[]> cipher_text_segments = new ArrayList<>();
+
+            while (!finished && cipher_text_segments.size() < getBatchSize()) {
+
+                if (atEnd(input)) {
+                    throw new CryptoException("encrypted data is truncated");
+                }
+
+                cipher_text_segments.add(readCipherTextSegment(data_input, segment_size));
+                finished = atEnd(input);
+            }
+
+            for (final byte[] segment : process(Cipher.DECRYPT_MODE, AES_key, header, first_segment_number, cipher_text_segments, finished)) {
+                out.write(segment);
+            }
+            first_segment_number += cipher_text_segments.size();
+        }
+        out.flush();
+    }
+
+    private static byte[] readCipherTextSegment(final DataInputStream data_input, final int segment_size) throws CryptoException, IOException {
+
+        try {
+            final int length = data_input.readInt();
+            if (length < TAG_LENGTH || length > segment_size + TAG_LENGTH) {
+                throw new CryptoException("invalid segment length: " + length);
+            }
+
+            final byte[] segment = new byte[length];
+            data_input.readFully(segment);
+            return segment;
+
+        } catch (final EOFException e) {
+            throw new CryptoException("encrypted data is truncated");
+        }
+    }
+
+    /**
+     * Encrypts a file with the default segment size.
+     *
+     * @param AES_key          the AES key
+     * @param plain_text_path  the path of the plain-text file
+     * @param cipher_text_path the path of the encrypted file to be written
+     * @throws CryptoException if the data cannot be encrypted
+     * @throws IOException     if a file cannot be accessed
+     */
+    public static void encrypt(final SecretKey AES_key, final Path plain_text_path, final Path cipher_text_path) throws CryptoException, IOException {
+
+        try (final InputStream in = Files.newInputStream(plain_text_path);
+             final OutputStream out = new BufferedOutputStream(Files.newOutputStream(cipher_text_path))) {
+
+            encrypt(AES_key, in, out);
+        }
+    }
+
+    /**
+     * Decrypts a file.
+     *
+     * @param AES_key          the AES key
+     * @param cipher_text_path the path of the encrypted file
+     * @param plain_text_path  the path of the plain-text file to be written
+     * @throws CryptoException if the data cannot be decrypted
+     * @throws IOException     if a file cannot be accessed
+     */
+    public static void decrypt(final SecretKey AES_key, final Path cipher_text_path, final Path plain_text_path) throws CryptoException, IOException {
+
+        try (final InputStream in = new BufferedInputStream(Files.newInputStream(cipher_text_path));
+             final OutputStream out = new BufferedOutputStream(Files.newOutputStream(plain_text_path))) {
+
+            decrypt(AES_key, in, out);
+        }
+    }
+
+    /**
+     * Tests whether a stream starts with data in this format, without
+     * consuming any of it.
+     *
+     * @param in a stream supporting mark and reset
+     * @return true if the stream starts with the header of this format
+     * @throws IOException if the stream cannot be read
+     */
+    public static boolean isChunked(final InputStream in) throws IOException {
+
+        return startsWith(in, MAGIC);
+    }
+
+    /**
+     * Tests whether a stream starts with a given magic number, without
+     * consuming any of it.
+     *
+     * @param in    a stream supporting mark and reset
+     * @param magic the magic number
+     * @return true if the stream starts with the magic number
+     * @throws IOException if the stream cannot be read
+     */
+    static boolean startsWith(final InputStream in, final byte[] magic) throws IOException {
+
+        final byte[] start = new byte[magic.length];
+
+        in.mark(magic.length);
+        try {
+            int count = 0;
+            int n;
+            while (count < start.length && (n = in.read(start, count, start.length - count)) > 0) {
+                count += n;
+            }
+            return count == start.length && hasMagic(start, magic);
+
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Encrypts or decrypts a batch of consecutive segments in parallel.
+     *
+     * @param mode                   {@link Cipher#ENCRYPT_MODE} or
+     *                               {@link Cipher#DECRYPT_MODE}
+     * @param AES_key                the AES key
+     * @param header                 the header, which is authenticated with
+     *                               each segment and ends with the nonce prefix
+     * @param first_segment_number   the number of the first segment
+     * @param segments               the segments
+     * @param includes_final_segment true if the last segment in the batch is
+     *                               the final segment
+     * @return the processed segments
+     * @throws CryptoException if a segment cannot be processed, or fails
+     *                         authentication
+     */
+    static byte[][] process(final int mode, final SecretKey AES_key, final byte[] header, final int first_segment_number, final List<byte[]> segments, final boolean includes_final_segment) throws CryptoException {
+
+        try {
+            return IntStream.range(0, segments.size()).parallel().
+                    mapToObj(i -> process(mode, AES_key, header, first_segment_number + i, includes_final_segment && i == segments.size() - 1, segments.get(i))).
+                    toArray(byte[][]::new);
+
+        } catch (final SegmentException e) {
+            if (e.getCause() instanceof AEADBadTagException) {
+                throw new CryptoException("segment " + e.segment_number + " failed authentication");
+            }
+            throw new CryptoException(e.getCause());
+        }
+    }
+
+    private static byte[] process(final int mode, final SecretKey AES_key, final byte[] header, final int segment_number, final boolean final_segment, final byte[] segment) {
+
+        try {
+            final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(mode, AES_key, new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, makeNonce(header, segment_number, final_segment)));
+            cipher.updateAAD(header);
+
+            return cipher.doFinal(segment);
+
+        } catch (final GeneralSecurityException e) {
+            throw new SegmentException(segment_number, e);
+        }
+    }
+
+    /**
+     * Creates a header with a random nonce prefix.
+     *
+     * @param magic     the magic number
+     * @param version   the format version
+     * @param parameter a parameter of the format
+     * @return the header
+     */
+    static byte[] makeHeader(final byte[] magic, final byte version, final int parameter) {
+
+        final byte[] nonce_prefix = new byte[NONCE_PREFIX_LENGTH];
+        new SecureRandom().nextBytes(nonce_prefix);
+
+        return ByteBuffer.allocate(HEADER_LENGTH).put(magic).put(version).putInt(parameter).put(nonce_prefix).array();
+    }
+
+    private static byte[] makeNonce(final byte[] header, final int segment_number, final boolean final_segment) {
+
+        return ByteBuffer.allocate(NONCE_LENGTH).
+                put(header, HEADER_LENGTH - NONCE_PREFIX_LENGTH, NONCE_PREFIX_LENGTH).
+                putInt(segment_number).
+                put((byte) (final_segment ? 1 : 0)).
+                array();
+    }
+
+    /**
+     * Tests whether data starts with a given magic number.
+     *
+     * @param bytes the data
+     * @param magic the magic number
+     * @return true if the data starts with the magic number
+     */
+    static boolean hasMagic(final byte[] bytes, final byte[] magic) {
+
+        return Arrays.equals(Arrays.copyOf(bytes, magic.length), magic);
+    }
+
+    private static byte[] readSegment(final InputStream in, final int segment_size) throws IOException {
+
+        final byte[] buffer = new byte[segment_size];
+        int count = 0;
+        int n;
+
+        while (count < segment_size && (n = in.read(buffer, count, segment_size - count)) > 0) {
+            count += n;
+        }
+        return count == segment_size ? buffer : Arrays.copyOf(buffer, count);
+    }
+
+    private static boolean atEnd(final PushbackInputStream in) throws IOException {
+
+        final int b = in.read();
+        if (b < 0) {
+            return true;
+        }
+        in.unread(b);
+        return false;
+    }
+
+    /**
+     * Gets the number of segments to be processed at once, allowing them to be
+     * processed in parallel while bounding the memory used.
+     *
+     * @return the number of segments
+     */
+    static int getBatchSize() {
+
+        return ForkJoinPool.getCommonPoolParallelism() * SEGMENTS_PER_THREAD;
+    }
+
+    private static class SegmentException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int segment_number;
+
+        SegmentException(final int segment_number, final GeneralSecurityException cause) {
+
+            super(cause);
+            this.segment_number = segment_number;
+        }
+    }
+}
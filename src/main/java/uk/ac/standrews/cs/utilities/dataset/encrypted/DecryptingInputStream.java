@@ -0,0 +1,248 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset.encrypted;
+
+import uk.ac.standrews.cs.utilities.crypto.CryptoException;
+import uk.ac.standrews.cs.utilities.crypto.SymmetricEncryption;
+
+import javax.crypto.SecretKey;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Input stream giving the plain text of encrypted data as it is decrypted.
+ * Data in any {@link EncryptionFormat} is accepted, the format being
+ * detected from the start of the data.
+ * Decryption is performed by a separate thread, which writes the plain text
+ * into a bounded pipe, so memory use does not depend on the size of the data,
+ * and plain text can be read as soon as the corresponding cipher text has been
+ * decrypted. The stream can be passed to {@link uk.ac.standrews.cs.utilities.dataset.DataSet}
+ * or {@link uk.ac.standrews.cs.utilities.dataset.StreamingDataSet}.
+ * <p>
+ * If decryption fails, reading the end of the stream throws an
+ * {@link IOException} with the {@link CryptoException} as its cause.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+public class DecryptingInputStream extends InputStream {
+
+    private static final int PIPE_SIZE = 1 << 16;
+
+    private final InputStream encrypted_data;
+    private final PipedInputStream plain_text;
+    private final Thread decryptor;
+
+    private volatile CryptoException decryption_error;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a stream decrypting the given encrypted data. Decryption starts
+     * immediately.
+     *
+     * @param encrypted_data the encrypted data, which is closed when this
+     *                       stream is closed
+     * @param AES_key        the AES key to decrypt the data
+     * @throws IOException if the pipe cannot be created
+     */
+    public DecryptingInputStream(final InputStream encrypted_data, final SecretKey AES_key) throws IOException {
+
+        this.encrypted_data = encrypted_data;
+
+        plain_text = new PipedInputStream(PIPE_SIZE);
+        final PipedOutputStream plain_text_sink = new PipedOutputStream(plain_text);
+
+        decryptor = new Thread(() -> {
+
+            try (final PipedOutputStream sink = plain_text_sink) {
+                decrypt(AES_key, encrypted_data, sink);
+
+            } catch (final CryptoException e) {
+                recordError(e);
+
+            } catch (final IOException e) {
+                recordError(new CryptoException(e));
+
+            } catch (final RuntimeException | Error e) {
+                // Recorded rather than left to end the thread, since closing the pipe would otherwise appear as a normal end of data.
+                recordError(new CryptoException(e));
+            }
+        });
+
+        decryptor.setDaemon(true);
+        decryptor.start();
+    }
+
+    /**
+     * Decrypts data in any {@link EncryptionFormat}, detected from the start of
+     * the data, in the calling thread.
+     *
+     * @param AES_key the AES key to decrypt the data
+     * @param in      the encrypted data
+     * @param out     the stream to which the plain text is written
+     * @throws CryptoException if the data cannot be decrypted with the given
+     *                         key, or has been modified
+     * @throws IOException     if the data cannot be read or written
+     */
+    public static void decrypt(final SecretKey AES_key, final InputStream in, final OutputStream out) throws CryptoException, IOException {
+
+        final InputStream input = new BufferedInputStream(in);
+
+        if (IndexedEncryption.isIndexed(input)) {
+            IndexedEncryption.decrypt(AES_key, input, out);
+        } else if (ChunkedEncryption.isChunked(input)) {
+            ChunkedEncryption.decrypt(AES_key, input, out);
+        } else {
+            SymmetricEncryption.decrypt(AES_key, input, out);
+        }
+    }
+
+    /**
+     * Decrypts a file in any {@link EncryptionFormat}, detected from the start
+     * of the file, in the calling thread.
+     *
+     * @param AES_key          the AES key to decrypt the file
+     * @param cipher_text_path the path of the encrypted file
+     * @param plain_text_path  the path of the new plain-text file
+     * @throws CryptoException if the file cannot be decrypted with the given
+     *                         key, or has been modified
+     * @throws IOException     if a file cannot be read or written
+     */
+    public static void decrypt(final SecretKey AES_key, final Path cipher_text_path, final Path plain_text_path) throws CryptoException, IOException {
+
+        try (final InputStream in = Files.newInputStream(cipher_text_path);
+             final OutputStream out = new BufferedOutputStream(Files.newOutputStream(plain_text_path))) {
+            decrypt(AES_key, in, out);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+
+        final int b = plain_text.read();
+        if (b < 0) {
+            checkEnd();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+
+        final int count = plain_text.read(bytes, offset, length);
+        if (count < 0) {
+            checkEnd();
+        }
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+
+        return plain_text.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        // Closing the pipe stops the decryptor at its next write.
+        closed = true;
+        try {
+            plain_text.close();
+            waitForDecryptor();
+
+        } finally {
+            encrypted_data.close();
+        }
+    }
+
+    /**
+     * Gets a view of this stream that is not closed by its user, so that
+     * decryption can be checked with {@link #checkDecryption()} after the
+     * user has finished reading.
+     *
+     * @return the view
+     */
+    InputStream withoutClose() {
+
+        return new FilterInputStream(this) {
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Reads and discards any remaining plain text, and then checks whether
+     * decryption succeeded. Used to distinguish a failure to decrypt from a
+     * failure to parse the plain text, since decrypting with the wrong key
+     * may give unparseable plain text before the failure is detected.
+     *
+     * @throws CryptoException if decryption failed
+     * @throws IOException     if the plain text cannot be read
+     */
+    void checkDecryption() throws CryptoException, IOException {
+
+        final byte[] buffer = new byte[PIPE_SIZE];
+
+        while (plain_text.read(buffer, 0, buffer.length) >= 0) {
+            // Discard.
+        }
+        waitForDecryptor();
+
+        if (decryption_error != null) {
+            throw decryption_error;
+        }
+    }
+
+    private void recordError(final CryptoException e) {
+
+        // A failure caused by the reader closing the pipe early is not an error.
+        if (!closed) {
+            decryption_error = e;
+        }
+    }
+
+    private void checkEnd() throws IOException {
+
+        waitForDecryptor();
+
+        if (decryption_error != null) {
+            throw new IOException("decryption failed", decryption_error);
+        }
+    }
+
+    private void waitForDecryptor() throws InterruptedIOException {
+
+        try {
+            decryptor.join();
+
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
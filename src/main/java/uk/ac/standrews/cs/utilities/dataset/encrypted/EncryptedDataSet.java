@@ -16,15 +16,18 @@
  */
 package uk.ac.standrews.cs.utilities.dataset.encrypted;
 
-import uk.ac.standrews.cs.utilities.crypto.AsymmetricEncryption;
 import uk.ac.standrews.cs.utilities.crypto.CryptoException;
 import uk.ac.standrews.cs.utilities.crypto.SymmetricEncryption;
 import uk.ac.standrews.cs.utilities.dataset.DataSet;
+import uk.ac.standrews.cs.utilities.dataset.FlushPolicy;
+import uk.ac.standrews.cs.utilities.dataset.StreamingDataSet;
 
 import javax.crypto.SecretKey;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -35,6 +38,12 @@ import java.util.List;
  */
 public class EncryptedDataSet extends DataSet {
 
+    /**
+     * The size of the buffers used between the CSV printer, the encryption and
+     * the output.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
     /**
      * Creates a new dataset with column labels and data read from a file with
      * the given path.
@@ -68,7 +77,8 @@ public class EncryptedDataSet extends DataSet {
     }
 
     /**
-     * Creates a new dataset from an encrypted input stream.
+     * Creates a new dataset from an encrypted input stream. The data is parsed
+     * as it is decrypted, without holding the whole plain text in memory.
      *
      * @param source_data       the encrypted data input stream
      * @param AES_key           the AES key to decrypt the input stream
@@ -78,13 +88,14 @@ public class EncryptedDataSet extends DataSet {
      */
     public EncryptedDataSet(final InputStream source_data, final SecretKey AES_key) throws CryptoException, IOException {
 
-        try (InputStream in = source_data) {
-            init(decrypt(source_data, AES_key));
-        }
+        load(source_data, AES_key);
     }
 
     /**
-     * Creates a new dataset from an encrypted file.
+     * Creates a new dataset from an encrypted file. If the file is in
+     * {@link EncryptionFormat#INDEXED} format, only the index is decrypted
+     * initially, and the records are decrypted a chunk at a time as they are
+     * accessed; otherwise the whole file is decrypted.
      *
      * @param path              the path of the encrypted file
      * @param AES_key           the AES key to decrypt the file
@@ -93,14 +104,27 @@ public class EncryptedDataSet extends DataSet {
      */
     public EncryptedDataSet(final Path path, final SecretKey AES_key) throws CryptoException, IOException {
 
-        this(Files.newInputStream(path), AES_key);
+        final boolean indexed;
+        try (final InputStream input = new BufferedInputStream(Files.newInputStream(path))) {
+            indexed = IndexedEncryption.isIndexed(input);
+        }
+
+        if (indexed) {
+            final IndexedEncryption.Index index = IndexedEncryption.readIndex(path, AES_key);
+            init(index.getLabels(), new IndexedRecords(path, AES_key, index));
+
+        } else {
+            load(Files.newInputStream(path), AES_key);
+        }
     }
 
     /**
      * Creates a new dataset from an encrypted input stream. This constructor
      * attempts to extract the MIME-encoded AES key from the given input stream,
      * which contains versions of the AES key encrypted with various users' RSA
-     * public keys.
+     * public keys. Extracted keys are cached by {@link AESKeyCache#getShared()},
+     * so the private key decryption is not repeated for datasets sharing an
+     * encrypted key.
      *
      * @param source_data           the encrypted data input stream
      * @param encrypted_key_stream  an input stream containing versions of the 
@@ -113,11 +137,50 @@ public class EncryptedDataSet extends DataSet {
     @SuppressWarnings("UnusedDeclaration")
     public EncryptedDataSet(final InputStream source_data, final InputStream encrypted_key_stream) throws IOException, CryptoException {
 
-        this(source_data, AsymmetricEncryption.getAESKey(encrypted_key_stream));
+        this(source_data, AESKeyCache.getShared().getAESKey(encrypted_key_stream));
+    }
+
+    /**
+     * Gets a range of the records of this dataset. If this dataset was read
+     * from a file in {@link EncryptionFormat#INDEXED} format, only the chunks
+     * containing the records are decrypted, in parallel.
+     *
+     * @param from_index the position of the first record, inclusive
+     * @param to_index   the position of the last record, exclusive
+     * @return the records
+     */
+    @SuppressWarnings("WeakerAccess")
+    public List<List<String>> getRecords(final int from_index, final int to_index) {
+
+        final List<List<String>> all_records = getRecords();
+
+        if (all_records instanceof IndexedRecords) {
+            return ((IndexedRecords) all_records).getRange(from_index, to_index);
+        }
+        return new ArrayList<>(all_records.subList(from_index, to_index));
     }
 
     /**
-     * Prints this dataset, in encrypted form, to the given output object.
+     * Opens an encrypted file for forward-only processing. Records are
+     * decrypted and parsed as they are consumed, so memory use does not depend
+     * on the size of the file.
+     *
+     * @param path    the path of the encrypted file
+     * @param AES_key the AES key to decrypt the file
+     * @return a streaming dataset over the plain text
+     * @throws IOException if the file cannot be read; a failure to decrypt the
+     *                     data is reported when the records are consumed
+     */
+    @SuppressWarnings("unused")
+    public static StreamingDataSet openStreaming(final Path path, final SecretKey AES_key) throws IOException {
+
+        return new StreamingDataSet(new DecryptingInputStream(Files.newInputStream(path), AES_key));
+    }
+
+    /**
+     * Prints this dataset, in encrypted form, to the given output object. The
+     * plain text is encrypted as it is generated, so the whole dataset is
+     * never held in memory in plain text or encrypted form.
      *
      * @param out               the output object
      * @param AES_key           the AES key to encrypt the dataset
@@ -128,11 +191,10 @@ public class EncryptedDataSet extends DataSet {
     @SuppressWarnings("WeakerAccess")
     public void print(final Appendable out, final SecretKey AES_key) throws IOException, CryptoException {
 
-        final StringBuilder builder = new StringBuilder();
-        print(builder);
+        final OutputStream output_stream = new BufferedOutputStream(new AppendableOutputStream(out), BUFFER_SIZE);
 
-        final InputStream input_stream = new ByteArrayInputStream(builder.toString().getBytes());
-        SymmetricEncryption.encrypt(AES_key, input_stream, makeOutputStream(out));
+        print(output_stream, AES_key, EncryptionFormat.CONTINUOUS);
+        output_stream.flush();
     }
 
     /**
@@ -146,28 +208,157 @@ public class EncryptedDataSet extends DataSet {
      */
     public void print(final Path path, final SecretKey AES_key) throws IOException, CryptoException {
 
-        try (final Writer writer = Files.newBufferedWriter(path)) {
-            print(writer, AES_key);
+        print(path, AES_key, EncryptionFormat.CONTINUOUS);
+    }
+
+    /**
+     * Prints this dataset, in encrypted form with a given format, to the given
+     * file.
+     *
+     * @param path              the path of the output file
+     * @param AES_key           the AES key to encrypt the dataset
+     * @param format            the encrypted format
+     * @throws IOException      if this dataset cannot be printed to the given
+     *                          output object
+     * @throws CryptoException  if the data cannot be encrypted
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void print(final Path path, final SecretKey AES_key, final EncryptionFormat format) throws IOException, CryptoException {
+
+        try (final OutputStream output_stream = new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE)) {
+            print(output_stream, AES_key, format);
+        }
+    }
+
+    /**
+     * Prints this dataset, in encrypted form with a given format, to the given
+     * output stream. The stream is not closed.
+     *
+     * @param out               the output stream
+     * @param AES_key           the AES key to encrypt the dataset
+     * @param format            the encrypted format
+     * @throws IOException      if this dataset cannot be printed to the given
+     *                          output stream
+     * @throws CryptoException  if the data cannot be encrypted
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void print(final OutputStream out, final SecretKey AES_key, final EncryptionFormat format) throws IOException, CryptoException {
+
+        if (format == EncryptionFormat.INDEXED) {
+            IndexedEncryption.write(getColumnLabels(), getRecords(), AES_key, out);
+        } else if (format == EncryptionFormat.CHUNKED) {
+            encrypt(out, plain_text -> ChunkedEncryption.encrypt(AES_key, plain_text, out));
+        } else {
+            encrypt(out, plain_text -> SymmetricEncryption.encrypt(AES_key, plain_text, out));
         }
     }
 
-    private static OutputStream makeOutputStream(final Appendable out) {
+    /**
+     * Reads the contents of this dataset from an encrypted input stream, which
+     * is parsed as it is decrypted.
+     */
+    private void load(final InputStream source_data, final SecretKey AES_key) throws CryptoException, IOException {
+
+        try (final DecryptingInputStream plain_text = new DecryptingInputStream(source_data, AES_key)) {
 
-        return new OutputStream() {
+            final DataSet data_set;
+            try {
+                data_set = new DataSet(plain_text.withoutClose());
 
-            @Override
-            public void write(final int b) throws IOException {
+            } catch (final RuntimeException e) {
 
-                out.append((char) b);
+                // Report a decryption failure in preference to any resulting parse failure.
+                plain_text.checkDecryption();
+                throw e;
             }
-        };
+
+            plain_text.checkDecryption();
+            init(data_set);
+        }
     }
 
-    private static DataSet decrypt(final InputStream source_data, final SecretKey AES_key) throws CryptoException {
+    /**
+     * Encrypts the CSV form of this dataset to the given stream. The CSV is
+     * printed by a separate thread into a pipe, from which it is read by the
+     * encryption.
+     */
+    private void encrypt(final OutputStream out, final Encryption encryption) throws IOException, CryptoException {
+
+        final PipedInputStream plain_text = new PipedInputStream(BUFFER_SIZE);
+        final PipedOutputStream plain_text_sink = new PipedOutputStream(plain_text);
+        final Exception[] printing_error = new Exception[1];
 
-        final ByteArrayOutputStream output_stream = new ByteArrayOutputStream();
-        SymmetricEncryption.decrypt(AES_key, source_data, output_stream);
+        final Thread printer = new Thread(() -> {
 
-        return new DataSet(new ByteArrayInputStream(output_stream.toByteArray()));
+            try (final Writer writer = new BufferedWriter(new OutputStreamWriter(plain_text_sink, getCharset()), BUFFER_SIZE)) {
+                print(writer, FlushPolicy.AT_END);
+
+            } catch (final IOException | RuntimeException e) {
+                printing_error[0] = e;
+            }
+        });
+
+        printer.setDaemon(true);
+        printer.start();
+
+        try {
+            encryption.encrypt(plain_text);
+
+        } finally {
+            // Release the printer if the encryption stopped before reading all of the plain text.
+            plain_text.close();
+            join(printer);
+        }
+
+        if (printing_error[0] instanceof IOException) {
+            throw (IOException) printing_error[0];
+        }
+        if (printing_error[0] != null) {
+            throw (RuntimeException) printing_error[0];
+        }
     }
+
+    private static void join(final Thread thread) throws InterruptedIOException {
+
+        try {
+            thread.join();
+
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private interface Encryption {
+
+        void encrypt(InputStream plain_text) throws CryptoException, IOException;
+    }
+
+    /**
+     * Output stream that appends bytes to an Appendable as characters. Used
+     * only for encrypted output, which is MIME-encoded and so contains only
+     * ASCII characters.
+     */
+    private static class AppendableOutputStream extends OutputStream {
+
+        private final Appendable out;
+
+        AppendableOutputStream(final Appendable out) {
+
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+
+            out.append((char) (b & 0xff));
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+
+            out.append(new String(bytes, offset, length, StandardCharsets.ISO_8859_1));
+        }
+    }
+
 }
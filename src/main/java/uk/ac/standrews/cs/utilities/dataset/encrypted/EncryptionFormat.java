@@ -0,0 +1,51 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset.encrypted;
+
+/**
+ * Formats in which an encrypted dataset can be written. All formats can be
+ * read by {@link EncryptedDataSet}, {@link DecryptingInputStream} and the
+ * decryption utilities, which detect the format automatically.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+public enum EncryptionFormat {
+
+    /**
+     * A single MIME-encoded stream, as produced by
+     * {@link uk.ac.standrews.cs.utilities.crypto.SymmetricEncryption}.
+     * Encryption and decryption are sequential.
+     */
+    CONTINUOUS,
+
+    /**
+     * A binary format in which the data is divided into independently
+     * authenticated segments, as produced by {@link ChunkedEncryption}.
+     * Segments are encrypted and decrypted in parallel, and any modification
+     * or truncation of the data is detected.
+     */
+    CHUNKED,
+
+    /**
+     * A binary format in which the records are divided into independently
+     * authenticated chunks, followed by an encrypted index giving the column
+     * labels, the number of records and the records in each chunk. An
+     * {@link EncryptedDataSet} read from a file in this format decrypts only
+     * the chunks containing the records accessed.
+     */
+    INDEXED
+}
@@ -0,0 +1,535 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset.encrypted;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import uk.ac.standrews.cs.utilities.crypto.CryptoException;
+import uk.ac.standrews.cs.utilities.dataset.DataSet;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Encrypted format for datasets supporting random access to ranges of
+ * records. The records are divided into chunks, each holding consecutive
+ * records in CSV form, which are encrypted and authenticated independently as
+ * in {@link ChunkedEncryption}. The first chunk also starts with the column
+ * labels, so the concatenated plain text of the chunks is the CSV form of the
+ * dataset.
+ * <p>
+ * The data starts with a header, and each chunk is written as a block type,
+ * the length of its cipher text and the cipher text. The chunks are followed
+ * by an index block containing the number of chunks and the encrypted index,
+ * which holds the column labels, the number of records, and the position,
+ * length and first record of each chunk. The data ends with the position of
+ * the index block. The index is authenticated as the final segment, numbered
+ * after the last chunk, so removal or truncation of chunks is detected.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+final class IndexedEncryption {
+
+    // The first byte is not a MIME character, so this format can be distinguished from the MIME-encoded format.
+    static final byte[] MAGIC = {(byte) 0x89, 'C', 'S', 'I'};
+    private static final byte VERSION = 1;
+
+    /**
+     * The approximate number of bytes of plain text in each chunk.
+     */
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private static final byte CHUNK_BLOCK = 0;
+    private static final byte INDEX_BLOCK = 1;
+
+    private static final CSVFormat FORMAT = DataSet.DEFAULT_CSV_FORMAT;
+
+    private IndexedEncryption() {
+    }
+
+    /**
+     * The column labels and chunk positions of an encrypted dataset.
+     */
+    static class Index {
+
+        private final byte[] header;
+        private final List<String> labels;
+        private final int number_of_records;
+        private final long[] chunk_positions;
+        private final int[] chunk_lengths;
+        private final int[] first_records;
+
+        Index(final byte[] header, final List<String> labels, final int number_of_records, final long[] chunk_positions, final int[] chunk_lengths, final int[] first_records) {
+
+            this.header = header;
+            this.labels = labels;
+            this.number_of_records = number_of_records;
+            this.chunk_positions = chunk_positions;
+            this.chunk_lengths = chunk_lengths;
+            this.first_records = first_records;
+        }
+
+        List<String> getLabels() {
+
+            return labels;
+        }
+
+        int getNumberOfRecords() {
+
+            return number_of_records;
+        }
+
+        int getNumberOfChunks() {
+
+            return first_records.length;
+        }
+
+        int getFirstRecord(final int chunk_index) {
+
+            return first_records[chunk_index];
+        }
+
+        /**
+         * Gets the chunk containing a given record.
+         *
+         * @param record_index the position of the record
+         * @return the position of the chunk
+         */
+        int getChunk(final int record_index) {
+
+            int low = 0;
+            int high = first_records.length - 1;
+
+            while (low < high) {
+
+                final int middle = (low + high + 1) >>> 1;
+                if (first_records[middle] <= record_index) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Writes a dataset in this format.
+     *
+     * @param labels  the column labels
+     * @param records the records
+     * @param AES_key the AES key
+     * @param out     the stream to which the encrypted data is written
+     * @throws CryptoException if the data cannot be encrypted
+     * @throws IOException     if the data cannot be written
+     */
+    static void write(final List<String> labels, final List<List<String>> records, final SecretKey AES_key, final OutputStream out) throws CryptoException, IOException {
+
+        write(labels, records, AES_key, out, CHUNK_SIZE);
+    }
+
+    /**
+     * Writes a dataset in this format, with a given chunk size.
+     *
+     * @param labels     the column labels
+     * @param records    the records
+     * @param AES_key    the AES key
+     * @param out        the stream to which the encrypted data is written
+     * @param chunk_size the approximate number of characters of plain text in
+     *                   each chunk
+     * @throws CryptoException if the data cannot be encrypted
+     * @throws IOException     if the data cannot be written
+     */
+    static void write(final List<String> labels, final List<List<String>> records, final SecretKey AES_key, final OutputStream out, final int chunk_size) throws CryptoException, IOException {
+
+        if (chunk_size <= 0) {
+            throw new IllegalArgumentException("chunk size must be positive");
+        }
+
+        final byte[] header = ChunkedEncryption.makeHeader(MAGIC, VERSION, 0);
+        final CountingOutputStream counter = new CountingOutputStream(out);
+        final DataOutputStream output = new DataOutputStream(counter);
+
+        output.write(header);
+
+        final List<Long> chunk_positions = new ArrayList<>();
+        final List<Integer> chunk_lengths = new ArrayList<>();
+        final List<Integer> first_records = new ArrayList<>();
+
+        final Iterator<List<String>> iterator = records.iterator();
+        int number_of_records = 0;
+        boolean first_chunk = true;
+
+        while (first_chunk || iterator.hasNext()) {
+
+            final List<byte[]> plain_text_chunks = new ArrayList<>();
+
+            while ((first_chunk || iterator.hasNext()) && plain_text_chunks.size() < ChunkedEncryption.getBatchSize()) {
+
+                first_records.add(number_of_records);
+
+                final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+                try (final CSVPrinter printer = new CSVPrinter(new OutputStreamWriter(chunk, StandardCharsets.UTF_8), FORMAT)) {
+
+                    if (first_chunk) {
+                        printer.printRecord(labels);
+                        first_chunk = false;
+                    }
+
+                    // Count characters rather than encoded bytes, which is close enough for sizing chunks.
+                    int size = 0;
+                    while (iterator.hasNext() && size < chunk_size) {
+
+                        final List<String> record = iterator.next();
+                        printer.printRecord(record);
+                        number_of_records++;
+
+                        for (final String value : record) {
+                            size += value == null ? 1 : value.length() + 1;
+                        }
+                    }
+                }
+                plain_text_chunks.add(chunk.toByteArray());
+            }
+
+            final byte[][] cipher_text_chunks = ChunkedEncryption.process(Cipher.ENCRYPT_MODE, AES_key, header, chunk_positions.size(), plain_text_chunks, false);
+
+            for (final byte[] chunk : cipher_text_chunks) {
+
+                output.writeByte(CHUNK_BLOCK);
+                output.writeInt(chunk.length);
+                output.flush();
+
+                chunk_positions.add(counter.getCount());
+                chunk_lengths.add(chunk.length);
+
+                output.write(chunk);
+            }
+        }
+
+        output.flush();
+        final long index_position = counter.getCount();
+        final byte[] index = encryptIndex(header, AES_key, labels, number_of_records, chunk_positions, chunk_lengths, first_records);
+
+        output.writeByte(INDEX_BLOCK);
+        output.writeInt(first_records.size());
+        output.writeInt(index.length);
+        output.write(index);
+        output.writeLong(index_position);
+        output.flush();
+    }
+
+    /**
+     * Reads the index of a file in this format.
+     *
+     * @param path    the path of the file
+     * @param AES_key the AES key
+     * @return the index
+     * @throws CryptoException if the file is not in this format, or the index
+     *                         cannot be decrypted
+     * @throws IOException     if the file cannot be read
+     */
+    static Index readIndex(final Path path, final SecretKey AES_key) throws CryptoException, IOException {
+
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+            final long size = channel.size();
+            if (size < ChunkedEncryption.HEADER_LENGTH + Long.BYTES) {
+                throw new CryptoException("encrypted data is truncated");
+            }
+
+            final byte[] header = read(channel, 0, ChunkedEncryption.HEADER_LENGTH);
+            checkHeader(header);
+
+            final long index_position = ByteBuffer.wrap(read(channel, size - Long.BYTES, Long.BYTES)).getLong();
+            if (index_position < ChunkedEncryption.HEADER_LENGTH || index_position > size - Long.BYTES - 1 - 2 * Integer.BYTES) {
+                throw new CryptoException("invalid index position: " + index_position);
+            }
+
+            final DataInputStream block = new DataInputStream(new ByteArrayInputStream(read(channel, index_position, (int) (size - Long.BYTES - index_position))));
+            if (block.readByte() != INDEX_BLOCK) {
+                throw new CryptoException("index block not found");
+            }
+
+            final int number_of_chunks = block.readInt();
+            final int index_length = block.readInt();
+            if (index_length < ChunkedEncryption.TAG_LENGTH || index_length > block.available()) {
+                throw new CryptoException("invalid block length: " + index_length);
+            }
+
+            final byte[] index = new byte[index_length];
+            block.readFully(index);
+
+            return decryptIndex(header, AES_key, number_of_chunks, index);
+        }
+    }
+
+    /**
+     * Reads and decrypts a chunk of a file in this format.
+     *
+     * @param path        the path of the file
+     * @param AES_key     the AES key
+     * @param index       the index of the file
+     * @param chunk_index the position of the chunk
+     * @return the records in the chunk, excluding the column labels, each of
+     * which is unmodifiable
+     * @throws CryptoException if the chunk cannot be decrypted
+     * @throws IOException     if the file cannot be read
+     */
+    static List<List<String>> readChunk(final Path path, final SecretKey AES_key, final Index index, final int chunk_index) throws CryptoException, IOException {
+
+        final byte[] cipher_text;
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            cipher_text = read(channel, index.chunk_positions[chunk_index], index.chunk_lengths[chunk_index]);
+        }
+
+        final byte[] plain_text = ChunkedEncryption.process(Cipher.DECRYPT_MODE, AES_key, index.header, chunk_index, Collections.singletonList(cipher_text), false)[0];
+
+        final List<List<String>> records = new ArrayList<>();
+        try (final CSVParser parser = new CSVParser(new InputStreamReader(new ByteArrayInputStream(plain_text), StandardCharsets.UTF_8), FORMAT)) {
+
+            for (final CSVRecord record : parser) {
+
+                final List<String> values = new ArrayList<>(record.size());
+                for (final String value : record) {
+                    values.add(value);
+                }
+                records.add(Collections.unmodifiableList(values));
+            }
+        }
+
+        // The first chunk starts with the column labels.
+        return chunk_index == 0 ? records.subList(1, records.size()) : records;
+    }
+
+    /**
+     * Decrypts data in this format sequentially, giving the CSV form of the
+     * dataset.
+     *
+     * @param AES_key the AES key
+     * @param in      the encrypted data
+     * @param out     the stream to which the plain text is written
+     * @throws CryptoException if the data is not in this format, has been
+     *                         modified or truncated, or cannot be decrypted
+     *                         with the given key
+     * @throws IOException     if the data cannot be read or written
+     */
+    static void decrypt(final SecretKey AES_key, final InputStream in, final OutputStream out) throws CryptoException, IOException {
+
+        final DataInputStream input = new DataInputStream(in);
+
+        final byte[] header = new byte[ChunkedEncryption.HEADER_LENGTH];
+        try {
+            input.readFully(header);
+        } catch (final EOFException e) {
+            throw new CryptoException("encrypted data has no header");
+        }
+        checkHeader(header);
+
+        int chunk_index = 0;
+
+        while (true) {
+
+            final byte block_type;
+            final byte[] block;
+            try {
+                block_type = input.readByte();
+                if (block_type == INDEX_BLOCK && input.readInt() != chunk_index) {
+                    throw new CryptoException("encrypted data is truncated");
+                }
+                block = readBlock(input);
+
+            } catch (final EOFException e) {
+                throw new CryptoException("encrypted data is truncated");
+            }
+
+            if (block_type == INDEX_BLOCK) {
+
+                // Authenticates the index as following the chunks read.
+                decryptIndex(header, AES_key, chunk_index, block);
+                out.flush();
+                return;
+            }
+            if (block_type != CHUNK_BLOCK) {
+                throw new CryptoException("invalid block type: " + block_type);
+            }
+
+            out.write(ChunkedEncryption.process(Cipher.DECRYPT_MODE, AES_key, header, chunk_index++, Collections.singletonList(block), false)[0]);
+        }
+    }
+
+    /**
+     * Tests whether a stream starts with data in this format, without
+     * consuming any of it.
+     *
+     * @param in a stream supporting mark and reset
+     * @return true if the stream starts with the magic number of this format
+     * @throws IOException if the stream cannot be read
+     */
+    static boolean isIndexed(final InputStream in) throws IOException {
+
+        return ChunkedEncryption.startsWith(in, MAGIC);
+    }
+
+    private static byte[] encryptIndex(final byte[] header, final SecretKey AES_key, final List<String> labels, final int number_of_records, final List<Long> chunk_positions, final List<Integer> chunk_lengths, final List<Integer> first_records) throws CryptoException, IOException {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream index = new DataOutputStream(bytes);
+
+        index.writeInt(labels.size());
+        for (final String label : labels) {
+            final byte[] encoded = label.getBytes(StandardCharsets.UTF_8);
+            index.writeInt(encoded.length);
+            index.write(encoded);
+        }
+
+        index.writeInt(number_of_records);
+        index.writeInt(first_records.size());
+
+        for (int i = 0; i < first_records.size(); i++) {
+            index.writeLong(chunk_positions.get(i));
+            index.writeInt(chunk_lengths.get(i));
+            index.writeInt(first_records.get(i));
+        }
+        index.flush();
+
+        // The index is authenticated as the segment following the last chunk, marked as final.
+        return ChunkedEncryption.process(Cipher.ENCRYPT_MODE, AES_key, header, first_records.size(), Collections.singletonList(bytes.toByteArray()), true)[0];
+    }
+
+    private static Index decryptIndex(final byte[] header, final SecretKey AES_key, final int number_of_chunks, final byte[] cipher_text) throws CryptoException, IOException {
+
+        // The number of chunks is stored in clear, but is authenticated since it determines the nonce.
+        final byte[] plain_text = ChunkedEncryption.process(Cipher.DECRYPT_MODE, AES_key, header, number_of_chunks, Collections.singletonList(cipher_text), true)[0];
+        final DataInputStream index = new DataInputStream(new ByteArrayInputStream(plain_text));
+
+        final List<String> labels = new ArrayList<>();
+        final int number_of_labels = index.readInt();
+        for (int i = 0; i < number_of_labels; i++) {
+            final byte[] encoded = new byte[index.readInt()];
+            index.readFully(encoded);
+            labels.add(new String(encoded, StandardCharsets.UTF_8));
+        }
+
+        final int number_of_records = index.readInt();
+        if (index.readInt() != number_of_chunks) {
+            throw new CryptoException("inconsistent index");
+        }
+
+        final long[] chunk_positions = new long[number_of_chunks];
+        final int[] chunk_lengths = new int[number_of_chunks];
+        final int[] first_records = new int[number_of_chunks];
+
+        for (int i = 0; i < number_of_chunks; i++) {
+            chunk_positions[i] = index.readLong();
+            chunk_lengths[i] = index.readInt();
+            first_records[i] = index.readInt();
+        }
+
+        return new Index(header, labels, number_of_records, chunk_positions, chunk_lengths, first_records);
+    }
+
+    private static void checkHeader(final byte[] header) throws CryptoException {
+
+        if (!ChunkedEncryption.hasMagic(header, MAGIC)) {
+            throw new CryptoException("encrypted data is not in indexed format");
+        }
+        if (header[MAGIC.length] != VERSION) {
+            throw new CryptoException("unsupported indexed format version: " + header[MAGIC.length]);
+        }
+    }
+
+    private static byte[] readBlock(final DataInputStream input) throws CryptoException, IOException {
+
+        final int length = input.readInt();
+        if (length < ChunkedEncryption.TAG_LENGTH) {
+            throw new CryptoException("invalid block length: " + length);
+        }
+
+        // The length is not authenticated until the block is decrypted, so the buffer grows only as data is read.
+        final ByteArrayOutputStream block = new ByteArrayOutputStream(Math.min(length, CHUNK_SIZE + ChunkedEncryption.TAG_LENGTH));
+        final byte[] buffer = new byte[8192];
+
+        int remaining = length;
+        while (remaining > 0) {
+
+            final int n = input.read(buffer, 0, Math.min(remaining, buffer.length));
+            if (n < 0) {
+                throw new EOFException();
+            }
+            block.write(buffer, 0, n);
+            remaining -= n;
+        }
+        return block.toByteArray();
+    }
+
+    private static byte[] read(final FileChannel channel, final long position, final int length) throws IOException {
+
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Output stream that counts the bytes written to an underlying stream.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        CountingOutputStream(final OutputStream out) {
+
+            super(out);
+        }
+
+        long getCount() {
+
+            return count;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+
+            out.write(bytes, offset, length);
+            count += length;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset.encrypted;
+
+import uk.ac.standrews.cs.utilities.crypto.CryptoException;
+import uk.ac.standrews.cs.utilities.dataset.AppendOnlyRecords;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Records of a dataset stored in {@link IndexedEncryption} format, which are
+ * decrypted a chunk at a time as they are accessed. The chunk most recently
+ * accessed by each thread is retained for that thread, along with enough
+ * recently accessed chunks for each thread of a parallel evaluation to be
+ * reading a different chunk, so that sequential access to a range of records,
+ * including by concurrent threads, decrypts each chunk once.
+ * <p>
+ * Records can be added, and are held in memory; the stored records cannot be
+ * replaced or removed, and are themselves unmodifiable, since a change would be
+ * lost when the chunk holding the record was discarded. A failure to read or decrypt a chunk is reported as an
+ * unchecked exception, since it cannot be reported through the list interface.
+ *
+ * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
+ */
+class IndexedRecords extends AbstractList<List<String>> implements RandomAccess, AppendOnlyRecords {
+
+    /**
+     * The minimum number of decrypted chunks retained.
+     */
+    private static final int MIN_CACHED_CHUNKS = 4;
+
+    /**
+     * The number of decrypted chunks retained, allowing for the threads of the
+     * common pool and the calling thread.
+     */
+    private static final int CACHED_CHUNKS = Math.max(MIN_CACHED_CHUNKS, ForkJoinPool.getCommonPoolParallelism() + 1);
+
+    private final Path path;
+    private final SecretKey AES_key;
+    private final IndexedEncryption.Index index;
+
+    private final List<List<String>> added_records = new ArrayList<>();
+    private final Map<Integer, List<List<String>>> cached_chunks = new LinkedHashMap<Integer, List<List<String>>>(CACHED_CHUNKS, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Integer, List<List<String>>> eldest) {
+
+            return size() > CACHED_CHUNKS;
+        }
+    };
+    private final ThreadLocal<CurrentChunk> current_chunks = new ThreadLocal<>();
+    private final AtomicInteger number_of_chunks_decrypted = new AtomicInteger();
+
+    IndexedRecords(final Path path, final SecretKey AES_key, final IndexedEncryption.Index index) {
+
+        this.path = path;
+        this.AES_key = AES_key;
+        this.index = index;
+    }
+
+    @Override
+    public List<String> get(final int record_index) {
+
+        final int number_of_stored_records = index.getNumberOfRecords();
+
+        if (record_index >= number_of_stored_records) {
+            return added_records.get(record_index - number_of_stored_records);
+        }
+        if (record_index < 0) {
+            throw new IndexOutOfBoundsException("index: " + record_index);
+        }
+
+        final int chunk_index = index.getChunk(record_index);
+        CurrentChunk current_chunk = current_chunks.get();
+
+        if (current_chunk == null || current_chunk.chunk_index != chunk_index) {
+            current_chunk = new CurrentChunk(chunk_index, getChunk(chunk_index));
+            current_chunks.set(current_chunk);
+        }
+        return current_chunk.records.get(record_index - index.getFirstRecord(chunk_index));
+    }
+
+    @Override
+    public int size() {
+
+        return index.getNumberOfRecords() + added_records.size();
+    }
+
+    @Override
+    public boolean add(final List<String> record) {
+
+        modCount++;
+        return added_records.add(record);
+    }
+
+    /**
+     * Gets a range of records, decrypting only the chunks that contain them.
+     * The chunks are decrypted in parallel.
+     *
+     * @param from_index the position of the first record, inclusive
+     * @param to_index   the position of the last record, exclusive
+     * @return the records
+     */
+    List<List<String>> getRange(final int from_index, final int to_index) {
+
+        if (from_index < 0 || to_index > size() || from_index > to_index) {
+            throw new IndexOutOfBoundsException("range: " + from_index + " to " + to_index);
+        }
+
+        final int number_of_stored_records = index.getNumberOfRecords();
+        final List<List<String>> range = new ArrayList<>(to_index - from_index);
+
+        if (from_index < number_of_stored_records) {
+
+            final int first_chunk = index.getChunk(from_index);
+            final int last_chunk = index.getChunk(Math.min(to_index, number_of_stored_records) - 1);
+
+            final List<List<List<String>>> chunks = IntStream.rangeClosed(first_chunk, last_chunk).parallel().
+                    mapToObj(this::getChunk).
+                    collect(Collectors.toList());
+
+            for (int chunk_index = first_chunk; chunk_index <= last_chunk; chunk_index++) {
+
+                final int first_record = index.getFirstRecord(chunk_index);
+                final List<List<String>> chunk = chunks.get(chunk_index - first_chunk);
+
+                final int start = Math.max(from_index - first_record, 0);
+                final int end = Math.min(to_index - first_record, chunk.size());
+
+                range.addAll(chunk.subList(start, end));
+            }
+        }
+
+        for (int i = Math.max(from_index, number_of_stored_records); i < to_index; i++) {
+            range.add(added_records.get(i - number_of_stored_records));
+        }
+        return range;
+    }
+
+    /**
+     * Gets the number of times that a chunk has been decrypted.
+     *
+     * @return the number of chunks decrypted
+     */
+    int getNumberOfChunksDecrypted() {
+
+        return number_of_chunks_decrypted.get();
+    }
+
+    private List<List<String>> getChunk(final int chunk_index) {
+
+        synchronized (cached_chunks) {
+
+            final List<List<String>> chunk = cached_chunks.get(chunk_index);
+            if (chunk != null) {
+                return chunk;
+            }
+        }
+
+        try {
+            number_of_chunks_decrypted.incrementAndGet();
+            final List<List<String>> chunk = IndexedEncryption.readChunk(path, AES_key, index, chunk_index);
+
+            synchronized (cached_chunks) {
+                cached_chunks.put(chunk_index, chunk);
+            }
+            return chunk;
+
+        } catch (final CryptoException e) {
+            throw new RuntimeException("cannot decrypt chunk " + chunk_index, e);
+
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class CurrentChunk {
+
+        final int chunk_index;
+        final List<List<String>> records;
+
+        CurrentChunk(final int chunk_index, final List<List<String>> records) {
+
+            this.chunk_index = chunk_index;
+            this.records = records;
+        }
+    }
+}
@@ -18,12 +18,14 @@ package uk.ac.standrews.cs.utilities.dataset.encrypted.util;
 
 import uk.ac.standrews.cs.utilities.crypto.CryptoException;
 import uk.ac.standrews.cs.utilities.crypto.SymmetricEncryption;
+import uk.ac.standrews.cs.utilities.dataset.encrypted.DecryptingInputStream;
 
 import java.io.IOException;
 import java.nio.file.Paths;
 
 /**
- * Decrypts a file using AES.
+ * Decrypts a file using AES. The {@link uk.ac.standrews.cs.utilities.dataset.encrypted.EncryptionFormat}
+ * of the file is detected automatically.
  *
  * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
  */
@@ -48,7 +50,7 @@ public class DecryptFileWithAESKey {
             final String cipher_text_path = args[1];
             final String plain_text_path = args[2];
 
-            SymmetricEncryption.decrypt(SymmetricEncryption.getKey(AES_key), Paths.get(cipher_text_path), Paths.get(plain_text_path));
+            DecryptingInputStream.decrypt(SymmetricEncryption.getKey(AES_key), Paths.get(cipher_text_path), Paths.get(plain_text_path));
         }
     }
 
@@ -18,14 +18,16 @@ package uk.ac.standrews.cs.utilities.dataset.encrypted.util;
 
 import uk.ac.standrews.cs.utilities.crypto.AsymmetricEncryption;
 import uk.ac.standrews.cs.utilities.crypto.CryptoException;
-import uk.ac.standrews.cs.utilities.crypto.SymmetricEncryption;
+import uk.ac.standrews.cs.utilities.dataset.encrypted.DecryptingInputStream;
 
 import javax.crypto.SecretKey;
 import java.io.IOException;
 import java.nio.file.Paths;
 
 /**
- * Decrypts a file using a public-key-encrypted AES key.
+ * Decrypts a file using a public-key-encrypted AES key. The
+ * {@link uk.ac.standrews.cs.utilities.dataset.encrypted.EncryptionFormat} of
+ * the file is detected automatically.
  *
  * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
  */
@@ -58,7 +60,7 @@ public class DecryptFileWithEncryptedAESKey {
 
         SecretKey AES_key = AsymmetricEncryption.getAESKey(Paths.get(encrypted_key_path));
 
-        SymmetricEncryption.decrypt(AES_key, Paths.get(cipher_text_path), Paths.get(plain_text_path));
+        DecryptingInputStream.decrypt(AES_key, Paths.get(cipher_text_path), Paths.get(plain_text_path));
     }
 
     private static void usage() {
@@ -18,23 +18,27 @@ package uk.ac.standrews.cs.utilities.dataset.encrypted.util;
 
 import uk.ac.standrews.cs.utilities.crypto.CryptoException;
 import uk.ac.standrews.cs.utilities.crypto.SymmetricEncryption;
+import uk.ac.standrews.cs.utilities.dataset.encrypted.ChunkedEncryption;
 
 import java.io.IOException;
 import java.nio.file.Paths;
 
 /**
- * Encrypts a file using AES.
+ * Encrypts a file using AES, optionally in the chunked format that is
+ * encrypted and decrypted in parallel.
  *
  * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
  */
 @SuppressWarnings("WeakerAccess")
 public class EncryptFileWithAESKey {
 
+    private static final String CHUNKED_OPTION = "chunked";
+
     /**
      * Encrypts a file with a given AES key.
      *
      * @param args MIME-encoded AES key, path of plain-text file, path of new
-     * encrypted file
+     * encrypted file, and optionally "chunked" to select the chunked format
      * @throws CryptoException if the encryption cannot be completed
      * @throws IOException     if a file cannot be accessed
      */
@@ -48,12 +52,16 @@ public class EncryptFileWithAESKey {
             final String plain_text_path = args[1];
             final String cipher_text_path = args[2];
 
-            SymmetricEncryption.encrypt(SymmetricEncryption.getKey(key), Paths.get(plain_text_path), Paths.get(cipher_text_path));
+            if (args.length > 3 && args[3].equals(CHUNKED_OPTION)) {
+                ChunkedEncryption.encrypt(SymmetricEncryption.getKey(key), Paths.get(plain_text_path), Paths.get(cipher_text_path));
+            } else {
+                SymmetricEncryption.encrypt(SymmetricEncryption.getKey(key), Paths.get(plain_text_path), Paths.get(cipher_text_path));
+            }
         }
     }
 
     private static void usage() {
 
-        System.out.println("usage: EncryptFileWithAESKey <key> <plain text path> <cipher text path>");
+        System.out.println("usage: EncryptFileWithAESKey <key> <plain text path> <cipher text path> [" + CHUNKED_OPTION + "]");
     }
 }
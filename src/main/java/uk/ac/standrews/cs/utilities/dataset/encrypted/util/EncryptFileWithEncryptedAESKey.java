@@ -19,25 +19,30 @@ package uk.ac.standrews.cs.utilities.dataset.encrypted.util;
 import uk.ac.standrews.cs.utilities.crypto.AsymmetricEncryption;
 import uk.ac.standrews.cs.utilities.crypto.CryptoException;
 import uk.ac.standrews.cs.utilities.crypto.SymmetricEncryption;
+import uk.ac.standrews.cs.utilities.dataset.encrypted.ChunkedEncryption;
 
 import javax.crypto.SecretKey;
 import java.io.IOException;
 import java.nio.file.Paths;
 
 /**
- * Encrypts a file using a public-key-encrypted AES key.
+ * Encrypts a file using a public-key-encrypted AES key, optionally in the
+ * chunked format that is encrypted and decrypted in parallel.
  *
  * @author Graham Kirby (graham.kirby@st-andrews.ac.uk)
  */
 @SuppressWarnings("WeakerAccess")
 public class EncryptFileWithEncryptedAESKey {
 
+    private static final String CHUNKED_OPTION = "chunked";
+
     /**
      * Encrypts a file with an AES key extracted from a file containing the key
      * encrypted separately with the public key of each authorized user.
      *
      * @param args path of file containing encrypted key, path of plain-text
-     * file, path of new encrypted file
+     * file, path of new encrypted file, and optionally "chunked" to select the
+     * chunked format
      * @throws CryptoException if the encryption cannot be completed
      * @throws IOException     if a file cannot be accessed
      */
@@ -49,20 +54,25 @@ public class EncryptFileWithEncryptedAESKey {
             final String encrypted_key_path = args[0];
             final String plain_text_path = args[1];
             final String cipher_text_path = args[2];
+            final boolean chunked = args.length > 3 && args[3].equals(CHUNKED_OPTION);
 
-            encryptFileWithEncryptedAESKey(encrypted_key_path, plain_text_path, cipher_text_path);
+            encryptFileWithEncryptedAESKey(encrypted_key_path, plain_text_path, cipher_text_path, chunked);
         }
     }
 
-    private static void encryptFileWithEncryptedAESKey(final String encrypted_key_path, final String plain_text_path, final String cipher_text_path) throws IOException, CryptoException {
+    private static void encryptFileWithEncryptedAESKey(final String encrypted_key_path, final String plain_text_path, final String cipher_text_path, final boolean chunked) throws IOException, CryptoException {
 
         final SecretKey AES_key = AsymmetricEncryption.getAESKey(Paths.get(encrypted_key_path));
 
-        SymmetricEncryption.encrypt(AES_key, Paths.get(plain_text_path), Paths.get(cipher_text_path));
+        if (chunked) {
+            ChunkedEncryption.encrypt(AES_key, Paths.get(plain_text_path), Paths.get(cipher_text_path));
+        } else {
+            SymmetricEncryption.encrypt(AES_key, Paths.get(plain_text_path), Paths.get(cipher_text_path));
+        }
     }
 
     private static void usage() {
 
-        System.out.println("usage: EncryptFileWithEncryptedAESKey <encrypted key path> <plain text path> <cipher text path>");
+        System.out.println("usage: EncryptFileWithEncryptedAESKey <encrypted key path> <plain text path> <cipher text path> [" + CHUNKED_OPTION + "]");
     }
 }
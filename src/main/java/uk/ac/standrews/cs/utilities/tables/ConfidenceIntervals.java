@@ -44,6 +44,23 @@ public class ConfidenceIntervals extends StatisticValues {
         super(data);
     }
 
+    private ConfidenceIntervals(final Columns columns) {
+
+        super(columns);
+    }
+
+    /**
+     * Creates a new calculation over data that is already held as a list of
+     * columns.
+     *
+     * @param columns the columns of the numerical table
+     * @return the calculation
+     */
+    static ConfidenceIntervals fromColumns(final List<List<Double>> columns) {
+
+        return new ConfidenceIntervals(new Columns(columns));
+    }
+
     protected double calculateColumnResult(final List<Double> values) {
 
         return Statistics.confidenceInterval(values);
@@ -38,6 +38,23 @@ public class Means extends StatisticValues {
         super(data);
     }
 
+    private Means(final Columns columns) {
+
+        super(columns);
+    }
+
+    /**
+     * Creates a new calculation over data that is already held as a list of
+     * columns.
+     *
+     * @param columns the columns of the numerical table
+     * @return the calculation
+     */
+    static Means fromColumns(final List<List<Double>> columns) {
+
+        return new Means(new Columns(columns));
+    }
+
     protected double calculateColumnResult(final List<Double> values) {
 
         return Statistics.mean(values);
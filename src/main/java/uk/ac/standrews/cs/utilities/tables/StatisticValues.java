@@ -16,6 +16,8 @@
  */
 package uk.ac.standrews.cs.utilities.tables;
 
+import uk.ac.standrews.cs.utilities.dataset.DataSet;
+
 import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -29,14 +31,19 @@ import java.util.stream.Collectors;
  */
 abstract class StatisticValues {
 
-    private final List<List<Double>> data;
+    private final List<List<Double>> columns;
     private final List<Double> results;
 
     @SuppressWarnings("UnusedDeclaration")
     StatisticValues(final List<List<Double>> data) {
 
-        this.data = data;
-        results = calculateResults(data);
+        this(new Columns(getColumns(data)));
+    }
+
+    StatisticValues(final Columns columns) {
+
+        this.columns = columns.values;
+        results = calculateResults();
     }
 
     /**
@@ -62,20 +69,69 @@ abstract class StatisticValues {
         return data;
     }
 
-    private List<Double> calculateResults(final List<List<Double>> data) {
+    /**
+     * Parses the values in each column of the given dataset, reading one column
+     * at a time.
+     *
+     * @param data_set the dataset
+     * @return the parsed values, as a list of columns
+     */
+    static List<List<Double>> parseColumns(final DataSet data_set) {
+
+        final List<List<Double>> columns = new ArrayList<>();
+
+        for (final String label : data_set.getColumnLabels()) {
+
+            final List<String> column = data_set.getColumn(label);
+            final List<Double> values = new ArrayList<>(column.size());
+
+            for (final String value : column) {
+                values.add(Double.parseDouble(value));
+            }
+            columns.add(values);
+        }
+        return columns;
+    }
+
+    /**
+     * Numerical data held as a list of columns, distinguished by type from
+     * data held as a list of rows.
+     */
+    static final class Columns {
+
+        private final List<List<Double>> values;
+
+        Columns(final List<List<Double>> values) {
+
+            this.values = values;
+        }
+    }
+
+    private List<Double> calculateResults() {
 
         final List<Double> results = new ArrayList<>();
 
+        for (final List<Double> column : columns) {
+            results.add(calculateColumnResult(column));
+        }
+
+        return results;
+    }
+
+    private static List<List<Double>> getColumns(final List<List<Double>> data) {
+
+        final List<List<Double>> columns = new ArrayList<>();
+
         final int size = data.get(0).size();
         for (int column_number = 0; column_number < size; column_number++) {
 
-            results.add(calculateColumnResult(getColumn(column_number)));
+            columns.add(getColumn(data, column_number));
         }
 
-        return results;
+        return columns;
     }
 
-    private List<Double> getColumn(final int column_number) {
+    private static List<Double> getColumn(final List<List<Double>> data, final int column_number) {
 
         return data.stream().map(value -> value.get(column_number)).collect(Collectors.toList());
     }
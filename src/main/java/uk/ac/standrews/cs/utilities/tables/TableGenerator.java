@@ -127,10 +127,10 @@ public class TableGenerator {
 
     private List<String> getProcessedRow(String row_label, DataSet dataSet) {
 
-        List<List<Double>> numerical_values = StatisticValues.parseStrings(dataSet.getRecords());
+        List<List<Double>> numerical_columns = StatisticValues.parseColumns(dataSet);
 
-        StatisticValues means = new Means(numerical_values);
-        StatisticValues confidence_intervals = numerical_values.size() > 1 ? new ConfidenceIntervals(numerical_values) : null;
+        StatisticValues means = Means.fromColumns(numerical_columns);
+        StatisticValues confidence_intervals = dataSet.getRecords().size() > 1 ? ConfidenceIntervals.fromColumns(numerical_columns) : null;
 
         List<String> values = new ArrayList<>();
         values.add(row_label);
@@ -17,14 +17,33 @@
 package uk.ac.standrews.cs.utilities.dataset;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.ac.standrews.cs.utilities.dataset.derived.DerivationScheduler;
+import uk.ac.standrews.cs.utilities.dataset.derived.DerivedDataSet;
+import uk.ac.standrews.cs.utilities.dataset.derived.Extender;
+import uk.ac.standrews.cs.utilities.dataset.derived.Selector;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -34,6 +53,9 @@ public class DataSetTest {
     private static final String EMPTY_DATA_SET_FILE_NAME = "csv_empty_test_data.csv";
     private static final char DELIMITER = ',';
 
+    @Rule
+    public TemporaryFolder temporary_folder = new TemporaryFolder();
+
     private DataSet non_empty_data_set;
     private DataSet empty_data_set;
 
@@ -178,6 +200,945 @@ public class DataSetTest {
         assertEquals("jkl", projected_data_set.getValue(projected_data_set.getRecords().get(0), "col4"));
     }
 
+    @Test
+    public void selectorBoundToSchemaGivesExpectedResults() {
+
+        final DataSet filtered_data_set = non_empty_data_set.select(new Selector() {
+
+            @Override
+            public Selector bind(final Schema schema) {
+
+                final ColumnHandle col4 = schema.getHandle("col4");
+                return (record, data_set) -> col4.getValue(record).contains("jkl");
+            }
+
+            @Override
+            public boolean select(final List<String> record, final DataSet data_set) {
+                throw new RuntimeException("unbound selector should not be called");
+            }
+        });
+
+        assertEquals(5, filtered_data_set.getRecords().size());
+    }
+
+    @Test
+    public void selectorCanBeReusedOverDifferentSchemasInOnePass() {
+
+        final DataSet data_set = new DataSet(Arrays.asList("a", "b"));
+        data_set.addRow("x", "1");
+        data_set.addRow("y", "2");
+        data_set.addRow("x", "3");
+
+        final ValueSelector selector = new ValueSelector("a", "x");
+
+        // Both selections are bound before the fused pass, each to a different column order.
+        final DataSet selected = data_set.select(selector).project(() -> Arrays.asList("b", "a")).select(selector);
+
+        assertEquals(Arrays.asList(Arrays.asList("1", "x"), Arrays.asList("3", "x")), selected.getRecords());
+    }
+
+    @Test
+    public void datasetsSharingAnOperationBindItSeparately() {
+
+        final DataSet data_set = new DataSet(Collections.singletonList("n"));
+        for (int i = 1; i <= 4; i++) {
+            data_set.addRow(String.valueOf(i));
+        }
+
+        final DataSet[] interleaved = new DataSet[1];
+
+        // Each bound instance selects alternate records, counting those it has seen.
+        final Selector alternate = new Selector() {
+
+            @Override
+            public Selector bind(final Schema schema) {
+
+                final int[] count = new int[1];
+                return (record, d) -> {
+
+                    if (interleaved[0] != null) {
+
+                        // Evaluate the other dataset, binding the shared selection again, part way through this pass.
+                        final DataSet other = interleaved[0];
+                        interleaved[0] = null;
+                        other.getRecords();
+                    }
+                    return count[0]++ % 2 == 0;
+                };
+            }
+
+            @Override
+            public boolean select(final List<String> record, final DataSet d) {
+                throw new RuntimeException("unbound selector should not be called");
+            }
+        };
+
+        final DataSet selected = data_set.select(alternate);
+        final DataSet projected = selected.project(() -> Collections.singletonList("n"));
+        final DataSet reselected = selected.select((record, d) -> true);
+
+        interleaved[0] = reselected;
+
+        assertEquals(Arrays.asList(Collections.singletonList("1"), Collections.singletonList("3")), projected.getRecords());
+        assertEquals(Arrays.asList(Collections.singletonList("1"), Collections.singletonList("3")), reselected.getRecords());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void projectionWithDuplicateLabelsThrowsException() {
+
+        non_empty_data_set.project(() -> Arrays.asList("id", "col3", "id"));
+    }
+
+    @Test
+    public void extendedColumnsDiscardedByLaterProjectionAreNotComputed() {
+
+        final DataSet derived_data_set = non_empty_data_set.extend(new Extender() {
+
+            @Override
+            public List<String> getAdditionalValues(final List<String> record, final DataSet data_set) {
+                throw new RuntimeException("extender should not be called");
+            }
+
+            @Override
+            public List<String> getColumnLabels() {
+                return Collections.singletonList("extra");
+            }
+        }).project(() -> Arrays.asList("col2", "id"));
+
+        assertEquals(9, derived_data_set.getRecords().size());
+        assertEquals(Arrays.asList("def", "5"), derived_data_set.getRecords().get(0));
+    }
+
+    @Test
+    public void renumberedDataSetHasConsecutiveIds() {
+
+        final DataSet data_set = new DataSet(Arrays.asList("ID", "name"));
+        data_set.addRow("3", "a");
+        data_set.addRow("5", "b");
+        data_set.addRow("8", "c");
+
+        final DataSet renumbered = DerivedDataSet.renumber(data_set.select((record, d) -> !d.getValue(record, "name").equals("b")));
+
+        assertEquals(Arrays.asList("ID", "name"), renumbered.getColumnLabels());
+        assertEquals(Arrays.asList("1", "a"), renumbered.getRecords().get(0));
+        assertEquals(Arrays.asList("2", "c"), renumbered.getRecords().get(1));
+    }
+
+    @Test
+    public void idColumnIsAddedAheadOfExistingColumns() {
+
+        final DataSet data_set = new DataSet(Arrays.asList("name", "town"));
+        data_set.addRow("a", "x");
+        data_set.addRow("b", "y");
+
+        final List<List<String>> expected = Arrays.asList(Arrays.asList("1", "a", "x"), Arrays.asList("2", "b", "y"));
+
+        for (final StorageLayout layout : Arrays.asList(StorageLayout.ROW, StorageLayout.COLUMN)) {
+
+            final DataSet stored = new DataSet(data_set.getColumnLabels(), layout);
+            for (final List<String> record : data_set) {
+                stored.addRow(record);
+            }
+
+            final DataSet numbered = stored.addIdColumn("ID");
+
+            assertEquals(Arrays.asList("ID", "name", "town"), numbered.getColumnLabels());
+            assertEquals(expected, numbered.getRecords());
+            assertEquals(Arrays.asList("1", "2"), numbered.project(() -> Collections.singletonList("ID")).renumber().getColumn("ID"));
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void columnOfColumnStoreIsReadOnly() {
+
+        final DataSet data_set = new DataSet(Arrays.asList("name", "town"), StorageLayout.COLUMN);
+        data_set.addRow("a", "x");
+
+        data_set.getColumn("name").set(0, "b");
+    }
+
+    @Test
+    public void sortKeepsRecordsWithEqualConcatenatedValues() {
+
+        final DataSet data_set = new DataSet(Arrays.asList("a", "b"));
+        data_set.addRow("b", "");
+        data_set.addRow("ab", "c");
+        data_set.addRow("a", "bc");
+
+        final DataSet sorted = DerivedDataSet.sort(data_set);
+
+        assertEquals(Arrays.asList(Arrays.asList("ab", "c"), Arrays.asList("a", "bc"), Arrays.asList("b", "")), sorted.getRecords());
+    }
+
+    @Test
+    public void externalSortGivesSameResultsAsInMemorySort() throws IOException {
+
+        final DataSet data_set = new DataSet(Arrays.asList("a", "b"));
+        for (int i = 0; i < 20000; i++) {
+            data_set.addRow(String.valueOf((i * 7919) % 1000), i % 3 == 0 ? "x" + i % 10 : "\"quoted, " + i % 10 + "\"");
+        }
+
+        final DataSet in_memory = DerivedDataSet.sort(data_set);
+        final DataSet external = DerivedDataSet.sort(data_set, 10000);
+
+        assertEquals(StorageLayout.MAPPED, external.getStorageLayout());
+        assertEquals(in_memory, external);
+        assertEquals(in_memory, DerivedDataSet.sort(data_set, Long.MAX_VALUE));
+
+        final StringBuilder csv = new StringBuilder();
+        data_set.print(csv);
+        final StreamingDataSet streaming = new StreamingDataSet(new ByteArrayInputStream(csv.toString().getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(in_memory, DerivedDataSet.sort(streaming, 10000));
+    }
+
+    @Test
+    public void externalSortReadsNullValuesAsEmptyOnlyWhenSpilled() throws IOException {
+
+        final DataSet data_set = new DataSet(Arrays.asList("a", "b"));
+        for (int i = 0; i < 1000; i++) {
+            data_set.addRow(String.valueOf(i % 10), i % 2 == 0 ? null : "x");
+        }
+
+        final DataSet in_memory = DerivedDataSet.sort(data_set, Long.MAX_VALUE);
+        final DataSet spilled = DerivedDataSet.sort(data_set, 1000);
+
+        assertEquals(DerivedDataSet.sort(data_set), in_memory);
+        assertNull(in_memory.getRecords().get(0).get(1));
+
+        // The order is unaffected, but null values are read back from the spilled file as empty strings.
+        final List<List<String>> expected = new ArrayList<>();
+        for (final List<String> record : in_memory.getRecords()) {
+            expected.add(Arrays.asList(record.get(0), record.get(1) == null ? "" : record.get(1)));
+        }
+        assertEquals(expected, spilled.getRecords());
+    }
+
+    @Test
+    public void cachedDerivedDataSetIsOnlyRecomputedWhenSourceOrVersionChanges() throws IOException {
+
+        final Path cache_directory = temporary_folder.newFolder().toPath();
+
+        CachedDerivation.cache_directory = cache_directory;
+        CachedDerivation.source = new DataSet(Arrays.asList("a", "b"));
+        CachedDerivation.source.addRow("1", "x");
+        CachedDerivation.source.addRow("2", "y");
+        CachedDerivation.version = "1";
+        CachedDerivation.derivation_count = 0;
+
+        final DataSet first = new CachedDerivation();
+        first.getRecords();
+        final DataSet second = new CachedDerivation();
+        second.getRecords();
+
+        assertEquals(1, CachedDerivation.derivation_count);
+        assertEquals(first, second);
+        assertEquals(Collections.singletonList("y"), second.getColumn("b"));
+
+        CachedDerivation.source.addRow("3", "z");
+        assertEquals(Arrays.asList("y", "z"), new CachedDerivation().getColumn("b"));
+        assertEquals(2, CachedDerivation.derivation_count);
+
+        CachedDerivation.version = "2";
+        new CachedDerivation().getRecords();
+        assertEquals(3, CachedDerivation.derivation_count);
+    }
+
+    @Test
+    public void derivedDataSetIsComputedLazilyAndOnlyOnce() throws Exception {
+
+        CachedDerivation.cache_directory = null;
+        CachedDerivation.source = new DataSet(Arrays.asList("a", "b"));
+        CachedDerivation.derivation_count = 0;
+
+        for (int i = 0; i < 10000; i++) {
+            CachedDerivation.source.addRow(String.valueOf(i % 3), "x");
+        }
+
+        final DataSet derived = new CachedDerivation();
+        assertEquals(0, CachedDerivation.derivation_count);
+
+        assertEquals(Arrays.asList("a", "b"), derived.getColumnLabels());
+        assertEquals(1, CachedDerivation.derivation_count);
+
+        final List<Thread> threads = new ArrayList<>();
+        final List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(() -> sizes.add(derived.getRecords().size())));
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(Collections.nCopies(8, 6667), sizes);
+        assertEquals(1, CachedDerivation.derivation_count);
+    }
+
+    @Test
+    public void schedulerObtainsSharedSourcesOnce() throws IOException {
+
+        ScheduledSource.source_loads.set(0);
+
+        final ScheduledFilter filter1 = new ScheduledFilter("1");
+        final ScheduledFilter filter2 = new ScheduledFilter("2");
+        final ScheduledFilter filter3 = new ScheduledFilter("3");
+
+        final DerivationScheduler scheduler = new DerivationScheduler(4);
+        scheduler.run(filter1, filter2, filter3);
+
+        assertEquals(1, ScheduledSource.source_loads.get());
+        assertEquals(Collections.singletonList("y"), filter1.getColumn("b"));
+        assertEquals(Collections.singletonList("z"), filter2.getColumn("b"));
+        assertEquals(0, filter3.getRecords().size());
+        assertEquals(1, ScheduledSource.source_loads.get());
+
+        // Obtaining and deriving the shared source, obtaining the raw data, and deriving each filter.
+        assertEquals(6, scheduler.getTimings().size());
+    }
+
+    @Test
+    public void schedulerDoesNotRederiveResolvedDataSet() throws IOException {
+
+        ScheduledFilter.derivations.set(0);
+
+        final ScheduledFilter filter = new ScheduledFilter("1");
+        assertEquals(Collections.singletonList("y"), filter.getColumn("b"));
+        assertEquals(1, ScheduledFilter.derivations.get());
+
+        new DerivationScheduler(2).run(filter);
+
+        assertEquals(1, ScheduledFilter.derivations.get());
+        assertEquals(Collections.singletonList("y"), filter.getColumn("b"));
+    }
+
+    @Test
+    public void schedulerEvaluatesDerivationsOnItsThreads() throws IOException {
+
+        ScheduledFilter.selecting_threads.clear();
+
+        final ScheduledFilter filter1 = new ScheduledFilter("1");
+        final ScheduledFilter filter2 = new ScheduledFilter("2");
+
+        new DerivationScheduler(2).run(filter1, filter2);
+
+        // The selections have already been evaluated, and not by this thread.
+        assertFalse(ScheduledFilter.selecting_threads.isEmpty());
+        assertFalse(ScheduledFilter.selecting_threads.contains(Thread.currentThread()));
+
+        ScheduledFilter.selecting_threads.clear();
+
+        assertEquals(Collections.singletonList("y"), filter1.getColumn("b"));
+        assertEquals(Collections.singletonList("z"), filter2.getColumn("b"));
+        assertTrue(ScheduledFilter.selecting_threads.isEmpty());
+    }
+
+    private static class ScheduledSource extends DerivedDataSet {
+
+        static final AtomicInteger source_loads = new AtomicInteger();
+
+        ScheduledSource() throws IOException {
+        }
+
+        @Override
+        public DataSet getSourceDataSet() {
+
+            source_loads.incrementAndGet();
+
+            final DataSet data_set = new DataSet(Arrays.asList("a", "b"));
+            data_set.addRow("0", "x");
+            data_set.addRow("1", "y");
+            data_set.addRow("2", "z");
+            return data_set;
+        }
+
+        @Override
+        protected DataSet getDerivedDataSet(final DataSet source_data_set) {
+
+            return source_data_set.select((record, data_set) -> !data_set.getValue(record, "a").equals("0"));
+        }
+    }
+
+    private static class ScheduledFilter extends DerivedDataSet {
+
+        static final AtomicInteger derivations = new AtomicInteger();
+        static final Set<Thread> selecting_threads = ConcurrentHashMap.newKeySet();
+
+        private final String value;
+
+        ScheduledFilter(final String value) throws IOException {
+
+            this.value = value;
+        }
+
+        @Override
+        public DataSet getSourceDataSet() throws IOException {
+
+            return new ScheduledSource();
+        }
+
+        @Override
+        protected DataSet getDerivedDataSet(final DataSet source_data_set) {
+
+            derivations.incrementAndGet();
+            return source_data_set.select((record, data_set) -> {
+
+                selecting_threads.add(Thread.currentThread());
+                return data_set.getValue(record, "a").equals(value);
+            });
+        }
+
+        @Override
+        protected Object getSourceKey() {
+
+            return ScheduledSource.class;
+        }
+    }
+
+    private static class CachedDerivation extends DerivedDataSet {
+
+        static Path cache_directory;
+        static DataSet source;
+        static String version;
+        static int derivation_count;
+
+        CachedDerivation() throws IOException {
+        }
+
+        @Override
+        public DataSet getSourceDataSet() {
+
+            return source;
+        }
+
+        @Override
+        protected DataSet getDerivedDataSet(final DataSet source_data_set) {
+
+            derivation_count++;
+            return source_data_set.select((record, data_set) -> !data_set.getValue(record, "a").equals("1"));
+        }
+
+        @Override
+        protected Path getCacheDirectory() {
+
+            return cache_directory;
+        }
+
+        @Override
+        protected String getDerivationVersion() {
+
+            return version;
+        }
+    }
+
+    @Test
+    public void sortOnMultipleKeysGivesExpectedOrder() {
+
+        final DataSet data_set = new DataSet(Arrays.asList("name", "age", "town"));
+        data_set.addRow("a", "9", "x");
+        data_set.addRow("b", "10", "y");
+        data_set.addRow("c", "9", "y");
+        data_set.addRow("d", "", "x");
+        data_set.addRow("e", "10", "x");
+        data_set.addRow("f", "9", "x");
+
+        final DataSet by_age = data_set.sort(new SortKey("age", SortKey.Direction.ASCENDING, SortKey.Ordering.NUMERIC));
+        assertEquals(Arrays.asList("a", "c", "f", "b", "e", "d"), by_age.getColumn("name"));
+
+        final DataSet by_town_and_age = data_set.sort(new SortKey("town", SortKey.Direction.DESCENDING), new SortKey("age", SortKey.Direction.DESCENDING, SortKey.Ordering.NUMERIC));
+        assertEquals(Arrays.asList("b", "c", "d", "e", "a", "f"), by_town_and_age.getColumn("name"));
+
+        final DataSet lexical = data_set.sort(new SortKey("age"));
+        assertEquals(Arrays.asList("d", "b", "e", "a", "c", "f"), lexical.getColumn("name"));
+    }
+
+    @Test
+    public void sortOfLargeColumnLayoutDataSetIsStable() {
+
+        final DataSet data_set = new DataSet(Arrays.asList("key", "position"), StorageLayout.COLUMN);
+        for (int i = 0; i < 50000; i++) {
+            data_set.addRow(String.valueOf(i % 100), String.valueOf(i));
+        }
+
+        final DataSet sorted = data_set.sort(new SortKey("key", SortKey.Direction.ASCENDING, SortKey.Ordering.NUMERIC));
+        final List<List<String>> records = sorted.getRecords();
+
+        assertEquals(StorageLayout.COLUMN, sorted.getStorageLayout());
+        for (int i = 1; i < records.size(); i++) {
+
+            final int key_comparison = Integer.compare(Integer.parseInt(records.get(i - 1).get(0)), Integer.parseInt(records.get(i).get(0)));
+            assertTrue(key_comparison < 0 || (key_comparison == 0 && Integer.parseInt(records.get(i - 1).get(1)) < Integer.parseInt(records.get(i).get(1))));
+        }
+    }
+
+    @Test
+    public void removeDuplicatesComparesRecordsFieldByField() {
+
+        final DataSet data_set = new DataSet(Arrays.asList("a", "b"));
+        data_set.addRow("ab", "c");
+        data_set.addRow("a", "bc");
+        data_set.addRow("ab", "c");
+
+        assertEquals(Arrays.asList(Arrays.asList("ab", "c"), Arrays.asList("a", "bc")), DerivedDataSet.removeDuplicates(data_set).getRecords());
+    }
+
+    @Test
+    public void removeDuplicatesOnKeyColumnsRetainsFirstOrLast() {
+
+        final DataSet data_set = new DataSet(Arrays.asList("name", "town", "year"), StorageLayout.COLUMN);
+        data_set.addRow("a", "x", "1");
+        data_set.addRow("b", "y", "1");
+        data_set.addRow("c", "x", "1");
+        data_set.addRow("d", "x", "2");
+        data_set.addRow("e", "y", "1");
+
+        final List<String> keys = Arrays.asList("town", "year");
+
+        assertEquals(Arrays.asList("a", "b", "d"), data_set.removeDuplicates(keys, DuplicateRetention.FIRST).getColumn("name"));
+        assertEquals(Arrays.asList("c", "d", "e"), data_set.removeDuplicates(keys, DuplicateRetention.LAST).getColumn("name"));
+        assertEquals(data_set, data_set.removeDuplicates());
+    }
+
+    @Test
+    public void joinsGiveExpectedResults() {
+
+        final DataSet people = new DataSet(Arrays.asList("ID", "name"));
+        people.addRow("1", "ann");
+        people.addRow("2", "bob");
+        people.addRow("3", "cat");
+
+        final DataSet events = new DataSet(Arrays.asList("person", "event"));
+        events.addRow("2", "birth");
+        events.addRow("1", "birth");
+        events.addRow("2", "death");
+        events.addRow("4", "birth");
+
+        final List<String> left_keys = Collections.singletonList("ID");
+        final List<String> right_keys = Collections.singletonList("person");
+
+        final DataSet inner = people.join(events, left_keys, right_keys, JoinType.INNER);
+        assertEquals(Arrays.asList("ID", "name", "event"), inner.getColumnLabels());
+        assertEquals(Arrays.asList(Arrays.asList("1", "ann", "birth"), Arrays.asList("2", "bob", "birth"), Arrays.asList("2", "bob", "death")), inner.getRecords());
+
+        final DataSet outer = people.join(events, left_keys, right_keys, JoinType.LEFT_OUTER);
+        assertEquals(Arrays.asList("3", "cat", ""), outer.getRecords().get(3));
+        assertEquals(4, outer.getRecords().size());
+
+        assertEquals(Arrays.asList("1", "2"), people.join(events, left_keys, right_keys, JoinType.SEMI).getColumn("ID"));
+        assertEquals(Collections.singletonList("3"), people.join(events, left_keys, right_keys, JoinType.ANTI).getColumn("ID"));
+
+        // The hash table is built on the smaller side, here the left.
+        assertEquals(Arrays.asList("2", "1", "2"), events.join(people, right_keys, left_keys, JoinType.INNER).getColumn("person"));
+        assertEquals(Collections.singletonList("4"), events.join(people, right_keys, left_keys, JoinType.ANTI).getColumn("person"));
+
+        for (final JoinType type : JoinType.values()) {
+            assertEquals(people.join(events, left_keys, right_keys, type), people.join(events, left_keys, right_keys, type, JoinStrategy.SORT_MERGE));
+        }
+    }
+
+    @Test
+    public void joinStrategiesGiveDocumentedOrderForUnsortedInput() {
+
+        final DataSet people = new DataSet(Arrays.asList("ID", "name"));
+        people.addRow("3", "cat");
+        people.addRow("2", "bob");
+        people.addRow("1", "ann");
+
+        final DataSet events = new DataSet(Arrays.asList("person", "event"));
+        events.addRow("2", "birth");
+        events.addRow("1", "birth");
+        events.addRow("2", "death");
+        events.addRow("4", "birth");
+
+        final List<String> left_keys = Collections.singletonList("ID");
+        final List<String> right_keys = Collections.singletonList("person");
+
+        // Hash join: left record order, with matches in right record order.
+        assertEquals(Arrays.asList(Arrays.asList("2", "bob", "birth"), Arrays.asList("2", "bob", "death"), Arrays.asList("1", "ann", "birth")),
+                people.join(events, left_keys, right_keys, JoinType.INNER, JoinStrategy.HASH).getRecords());
+        assertEquals(Arrays.asList("2", "1"), people.join(events, left_keys, right_keys, JoinType.SEMI, JoinStrategy.HASH).getColumn("ID"));
+
+        // Sort-merge join: key order, with equal keys in original order.
+        assertEquals(Arrays.asList(Arrays.asList("1", "ann", "birth"), Arrays.asList("2", "bob", "birth"), Arrays.asList("2", "bob", "death")),
+                people.join(events, left_keys, right_keys, JoinType.INNER, JoinStrategy.SORT_MERGE).getRecords());
+        assertEquals(Arrays.asList("1", "2"), people.join(events, left_keys, right_keys, JoinType.SEMI, JoinStrategy.SORT_MERGE).getColumn("ID"));
+    }
+
+    @Test
+    public void sortMergeJoinGivesSameResultsWhenSpilled() throws IOException {
+
+        final DataSet people = new DataSet(Arrays.asList("ID", "name"));
+        for (int i = 0; i < 2000; i++) {
+            people.addRow(String.valueOf((i * 7919) % 2500), "name " + i);
+        }
+        people.addRow(null, "unknown");
+
+        final DataSet events = new DataSet(Arrays.asList("person", "event"));
+        for (int i = 0; i < 3000; i++) {
+            events.addRow(String.valueOf((i * 104729) % 2800), "event " + i);
+        }
+        events.addRow(null, "unattributed");
+
+        final List<String> left_keys = Collections.singletonList("ID");
+        final List<String> right_keys = Collections.singletonList("person");
+
+        // A budget small enough for each side to be sorted in many runs, which are merged in more than one pass.
+        for (final JoinType type : JoinType.values()) {
+            assertEquals(people.join(events, left_keys, right_keys, type, JoinStrategy.SORT_MERGE), people.join(events, left_keys, right_keys, type, 4000));
+        }
+    }
+
+    @Test
+    public void groupByGivesExpectedResults() {
+
+        final DataSet data_set = new DataSet(Arrays.asList("place", "age"));
+        data_set.addRow("x", "10");
+        data_set.addRow("y", "3");
+        data_set.addRow("x", "2.5");
+        data_set.addRow("x", "");
+        data_set.addRow("y", "3");
+
+        final DataSet grouped = data_set.groupBy(Collections.singletonList("place"), Aggregate.count(), Aggregate.sum("age"), Aggregate.min("age"),
+                Aggregate.max("age"), Aggregate.mean("age").as("average"), Aggregate.distinctCount("age"));
+
+        assertEquals(Arrays.asList("place", "count", "sum(age)", "min(age)", "max(age)", "average", "distinct_count(age)"), grouped.getColumnLabels());
+        assertEquals(Arrays.asList(Arrays.asList("x", "3", "12.5", "2.5", "10", "6.25", "3"), Arrays.asList("y", "2", "6", "3", "3", "3", "1")), grouped.getRecords());
+    }
+
+    @Test
+    public void parallelGroupByGivesSameResultsAsSequential() {
+
+        final DataSet data_set = new DataSet(Arrays.asList("ID", "value"));
+        for (int i = 0; i < 100000; i++) {
+            data_set.addRow(String.valueOf(i), String.valueOf(i % 7));
+        }
+
+        final List<String> keys = Collections.singletonList("value");
+        final DataSet sequential = data_set.groupBy(keys, Aggregate.count(), Aggregate.sum("ID"), Aggregate.max("ID"), Aggregate.distinctCount("ID"));
+
+        data_set.setExecutionMode(ExecutionMode.PARALLEL);
+        assertEquals(sequential, data_set.groupBy(keys, Aggregate.count(), Aggregate.sum("ID"), Aggregate.max("ID"), Aggregate.distinctCount("ID")));
+
+        assertEquals(Arrays.asList("0", "14286", "714264285", "99995", "14286"), sequential.getRecords().get(0));
+    }
+
+    @Test
+    public void selectAndProjectGiveViewsCopiedOnModification() {
+
+        final DataSet data_set = new DataSet(Arrays.asList("a", "b", "c"));
+        data_set.addRow("1", "x", "p");
+        data_set.addRow("2", "y", "q");
+        data_set.addRow("3", "z", "r");
+
+        final DataSet selected = data_set.select((record, d) -> !d.getValue(record, "a").equals("2"));
+        final DataSet projected = selected.project(() -> Arrays.asList("c", "a")).select((record, d) -> !d.getValue(record, "a").equals("3"));
+
+        assertTrue(projected.getRecords() instanceof RecordView);
+        assertSame(data_set.getRecords().get(2), selected.getRecords().get(1));
+        assertEquals(Collections.singletonList(Arrays.asList("p", "1")), projected.getRecords());
+
+        projected.getRecords().get(0).set(0, "modified");
+        assertEquals(Arrays.asList("modified", "1"), projected.getRecords().get(0));
+        assertEquals("p", data_set.getRecords().get(0).get(2));
+
+        projected.addRow("s", "4");
+        assertEquals(2, projected.getRecords().size());
+
+        projected.materialise();
+        assertFalse(projected.getRecords() instanceof RecordView);
+        assertEquals(Arrays.asList(Arrays.asList("modified", "1"), Arrays.asList("s", "4")), projected.getRecords());
+    }
+
+    @Test
+    public void viewsCanBeModifiedAsLists() {
+
+        final DataSet data_set = new DataSet(Arrays.asList("a", "b"));
+        data_set.addRow("3", "z");
+        data_set.addRow("1", "x");
+        data_set.addRow("2", "y");
+
+        final DataSet projected = data_set.project(() -> Arrays.asList("b", "a"));
+        final List<List<String>> records = projected.getRecords();
+        assertTrue(records instanceof RecordView);
+
+        records.get(0).set(0, "modified");
+        records.sort(Comparator.comparing(record -> record.get(1)));
+        assertEquals(Arrays.asList(Arrays.asList("x", "1"), Arrays.asList("y", "2"), Arrays.asList("modified", "3")), records);
+
+        records.remove(0);
+        records.set(0, Arrays.asList("w", "0"));
+        records.add(Arrays.asList("v", "4"));
+        assertEquals(Arrays.asList(Arrays.asList("w", "0"), Arrays.asList("modified", "3"), Arrays.asList("v", "4")), projected.getRecords());
+
+        // The underlying records are unchanged.
+        assertEquals(Arrays.asList(Arrays.asList("3", "z"), Arrays.asList("1", "x"), Arrays.asList("2", "y")), data_set.getRecords());
+    }
+
+    @Test
+    public void viewsAreUnaffectedByReorderingUnderlyingRecords() {
+
+        final DataSet data_set = new DataSet(Arrays.asList("a", "b"));
+        data_set.addRow("3", "z");
+        data_set.addRow("1", "x");
+        data_set.addRow("2", "y");
+
+        final DataSet selected = data_set.select((record, d) -> !d.getValue(record, "a").equals("1"));
+        final DataSet projected = data_set.project(() -> Collections.singletonList("b"));
+
+        assertEquals(Arrays.asList(Arrays.asList("3", "z"), Arrays.asList("2", "y")), selected.getRecords());
+        assertEquals(Arrays.asList(Collections.singletonList("z"), Collections.singletonList("x"), Collections.singletonList("y")), projected.getRecords());
+
+        final List<List<String>> records = data_set.getRecords();
+        records.sort(Comparator.comparing(record -> record.get(0)));
+        records.remove(2);
+        records.add(0, Arrays.asList("0", "w"));
+
+        assertEquals(Arrays.asList(Arrays.asList("3", "z"), Arrays.asList("2", "y")), selected.getRecords());
+        assertEquals(Arrays.asList(Collections.singletonList("z"), Collections.singletonList("x"), Collections.singletonList("y")), projected.getRecords());
+    }
+
+    @Test
+    public void parallelEvaluationGivesSameResultsAsSequential() {
+
+        final DataSet data_set = new DataSet(Arrays.asList("ID", "value"));
+        for (int i = 0; i < 100000; i++) {
+            data_set.addRow(String.valueOf(i), String.valueOf(i % 7));
+        }
+
+        final DataSet sequential = DerivedDataSet.renumber(data_set.select((record, d) -> !d.getValue(record, "value").equals("3")));
+
+        data_set.setExecutionMode(ExecutionMode.PARALLEL);
+        final DataSet parallel = DerivedDataSet.renumber(data_set.select((record, d) -> !d.getValue(record, "value").equals("3")));
+
+        assertEquals(ExecutionMode.PARALLEL, parallel.getExecutionMode());
+        assertEquals(sequential, parallel);
+        assertEquals(String.valueOf(parallel.getRecords().size()), parallel.getRecords().get(parallel.getRecords().size() - 1).get(0));
+    }
+
+    @Test
+    public void parallelLoadGivesSameResultsAsSequential() throws IOException {
+
+        final DataSet data_set = new DataSet(Arrays.asList("id", "text", "value"));
+        for (int i = 0; i < 100000; i++) {
+            data_set.addRow(String.valueOf(i), i % 3 == 0 ? "line\nbreak, \"quoted\"" : "plain", String.valueOf(i % 7));
+        }
+
+        final Path temp_path = temporary_folder.newFile().toPath();
+
+        try (final OutputStreamWriter writer = new OutputStreamWriter(Files.newOutputStream(temp_path))) {
+
+            data_set.print(writer);
+        }
+
+        final DataSet sequential = new DataSet(temp_path, DataSet.DEFAULT_CSV_FORMAT, StorageLayout.ROW, ExecutionMode.SEQUENTIAL);
+        final DataSet parallel = new DataSet(temp_path, DataSet.DEFAULT_CSV_FORMAT, StorageLayout.ROW, ExecutionMode.PARALLEL);
+
+        assertEquals(ExecutionMode.PARALLEL, parallel.getExecutionMode());
+        assertEquals(data_set, sequential);
+        assertEquals(sequential, parallel);
+    }
+
+    @Test
+    public void mappedDataSetHasSameContentsAsRowLayout() throws IOException, URISyntaxException {
+
+        final DataSet mapped_data_set = new DataSet(Paths.get(getClass().getResource(NON_EMPTY_DATA_SET_FILE_NAME).toURI()), StorageLayout.MAPPED);
+
+        assertEquals(StorageLayout.MAPPED, mapped_data_set.getStorageLayout());
+        assertEquals(non_empty_data_set, mapped_data_set);
+    }
+
+    @Test
+    public void derivedDataSetReportsLayoutItWillProduce() throws IOException, URISyntaxException {
+
+        final DataSet mapped_data_set = new DataSet(Paths.get(getClass().getResource(NON_EMPTY_DATA_SET_FILE_NAME).toURI()), StorageLayout.MAPPED);
+        final DataSet column_data_set = new DataSet(getClass().getResourceAsStream(NON_EMPTY_DATA_SET_FILE_NAME), DataSet.DEFAULT_CSV_FORMAT, StorageLayout.COLUMN);
+
+        final List<DataSet> derived_from_mapped = Arrays.asList(
+                mapped_data_set.select((record, data_set) -> true),
+                mapped_data_set.project(() -> Collections.singletonList("col4")),
+                mapped_data_set.extend(DerivedDataSet.addIdColumn()));
+
+        final List<DataSet> derived_from_column = Arrays.asList(
+                column_data_set.select((record, data_set) -> true),
+                column_data_set.project(() -> Collections.singletonList("col4")),
+                column_data_set.extend(DerivedDataSet.addIdColumn()));
+
+        for (final DataSet derived : derived_from_mapped) {
+
+            assertEquals(StorageLayout.ROW, derived.getStorageLayout());
+            derived.getRecords();
+            assertEquals(StorageLayout.ROW, derived.getStorageLayout());
+        }
+
+        for (final DataSet derived : derived_from_column) {
+
+            assertEquals(StorageLayout.COLUMN, derived.getStorageLayout());
+            derived.getRecords();
+            assertEquals(StorageLayout.COLUMN, derived.getStorageLayout());
+        }
+    }
+
+    @Test
+    public void mappedDataSetReadsQuotedLineBreaksCorrectly() throws IOException {
+
+        final DataSet data_set = new DataSet(Arrays.asList("id", "text"));
+        data_set.addRow("1", "line\r\nbreak, \"quoted\"");
+        data_set.addRow("2", "");
+        data_set.addRow("3", "plain");
+
+        final Path temp_path = temporary_folder.newFile().toPath();
+
+        try (final OutputStreamWriter writer = new OutputStreamWriter(Files.newOutputStream(temp_path))) {
+
+            data_set.print(writer);
+        }
+
+        final DataSet mapped_data_set = new DataSet(temp_path, StorageLayout.MAPPED);
+        mapped_data_set.addRow("4", "added");
+        data_set.addRow("4", "added");
+
+        assertEquals(data_set, mapped_data_set);
+        assertEquals(Arrays.asList("1", "3", "4"), mapped_data_set.select((record, d) -> d.getValue(record, "text").contains("a")).getColumn("id"));
+    }
+
+    @Test
+    public void columnLayoutDataSetHasSameContentsAsRowLayout() {
+
+        final DataSet column_data_set = new DataSet(getClass().getResourceAsStream(NON_EMPTY_DATA_SET_FILE_NAME), DataSet.DEFAULT_CSV_FORMAT, StorageLayout.COLUMN);
+
+        assertEquals(StorageLayout.COLUMN, column_data_set.getStorageLayout());
+        assertEquals(non_empty_data_set, column_data_set);
+    }
+
+    @Test
+    public void columnLayoutDataSetFilteredAndProjectedGivesExpectedResults() {
+
+        final DataSet column_data_set = new DataSet(getClass().getResourceAsStream(NON_EMPTY_DATA_SET_FILE_NAME), DataSet.DEFAULT_CSV_FORMAT, StorageLayout.COLUMN);
+
+        final DataSet filtered_data_set = column_data_set.select((record, original_csv) -> original_csv.getValue(record, "col4").contains("jkl"));
+        final DataSet projected_data_set = filtered_data_set.project(() -> Arrays.asList("col4", "id"));
+
+        assertEquals(StorageLayout.COLUMN, projected_data_set.getStorageLayout());
+        assertEquals(5, projected_data_set.getRecords().size());
+        assertEquals(Arrays.asList("jkl", "5"), projected_data_set.getRecords().get(0));
+        assertEquals(projected_data_set.getColumn("id"), non_empty_data_set.select((record, original_csv) -> original_csv.getValue(record, "col4").contains("jkl")).getColumn("id"));
+    }
+
+    @Test
+    public void dictionaryEncodedDataSetHasSameContentsAsRowLayout() {
+
+        final DataSet encoded_data_set = new DataSet(getClass().getResourceAsStream(NON_EMPTY_DATA_SET_FILE_NAME), DataSet.DEFAULT_CSV_FORMAT, new DictionaryEncoding(3, Collections.singletonList("col2")));
+        final ColumnStore store = (ColumnStore) encoded_data_set.getRecords();
+
+        assertFalse(store.getStoredColumn(0) instanceof Column.Dictionary);
+        assertTrue(store.getStoredColumn(1) instanceof Column.Dictionary);
+        assertTrue(store.getStoredColumn(2) instanceof Column.Dictionary);
+        assertTrue(store.getStoredColumn(3) instanceof Column.Dictionary);
+        assertEquals(3, ((Column.Dictionary) store.getStoredColumn(3)).getDictionarySize());
+
+        assertEquals(non_empty_data_set, encoded_data_set);
+    }
+
+    @Test
+    public void valueSelectorOnDictionaryEncodedColumnGivesExpectedResults() {
+
+        final DataSet encoded_data_set = new DataSet(getClass().getResourceAsStream(NON_EMPTY_DATA_SET_FILE_NAME), DataSet.DEFAULT_CSV_FORMAT, new DictionaryEncoding(3));
+
+        assertEquals(Arrays.asList("7", "8", "9", "10"), encoded_data_set.select(new ValueSelector("col4", "zzz")).getColumn("id"));
+        assertEquals(Arrays.asList("7", "8", "9", "10"), non_empty_data_set.select(new ValueSelector("col4", "zzz")).getColumn("id"));
+        assertEquals(Collections.singletonList("8"), encoded_data_set.select(new ValueSelector("col4", "zzz")).select(new ValueSelector("col2", "def")).getColumn("id"));
+        assertEquals(0, encoded_data_set.select(new ValueSelector("col4", "absent")).getRecords().size());
+    }
+
+    @Test
+    public void flushPolicyDoesNotChangeOutput() throws IOException {
+
+        final StringBuilder expected = new StringBuilder();
+        non_empty_data_set.print(expected);
+
+        for (final FlushPolicy policy : Arrays.asList(FlushPolicy.EACH_RECORD, FlushPolicy.AT_END, FlushPolicy.everyRecords(4), FlushPolicy.everyCharacters(30))) {
+
+            final StringWriter writer = new StringWriter();
+            non_empty_data_set.print(writer, policy);
+
+            assertEquals(expected.toString(), writer.toString());
+        }
+
+        final ByteArrayOutputStream output_stream = new ByteArrayOutputStream();
+        non_empty_data_set.print(output_stream, StandardCharsets.UTF_8, FlushPolicy.AT_END);
+
+        assertEquals(expected.toString(), new String(output_stream.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void flushPolicyControlsNumberOfFlushes() throws IOException {
+
+        assertEquals(9, countFlushes(FlushPolicy.EACH_RECORD));
+        assertEquals(3, countFlushes(FlushPolicy.everyRecords(4)));
+        assertEquals(1, countFlushes(FlushPolicy.AT_END));
+    }
+
+    private int countFlushes(final FlushPolicy policy) throws IOException {
+
+        final int[] flushes = new int[1];
+
+        final Writer writer = new StringWriter() {
+
+            @Override
+            public void flush() {
+
+                flushes[0]++;
+            }
+        };
+
+        non_empty_data_set.print(writer, policy);
+        return flushes[0];
+    }
+
+    @Test
+    public void snapshotRoundTripGivesSameDataSet() throws IOException {
+
+        final DataSet data_set = new DataSet(Arrays.asList("id", "county", "note"));
+        for (int i = 0; i < 1000; i++) {
+            data_set.addRow(String.valueOf(i), "county " + i % 5, i % 100 == 0 ? "line\nbreak, \u00e9" : "");
+        }
+        data_set.addRow("1000", null, "null county");
+
+        for (final DataSet original : Arrays.asList(non_empty_data_set, data_set, new DataSet(getClass().getResourceAsStream(NON_EMPTY_DATA_SET_FILE_NAME), DataSet.DEFAULT_CSV_FORMAT, new DictionaryEncoding(3)))) {
+
+            final Path temp_path = temporary_folder.newFile().toPath();
+            original.writeSnapshot(temp_path);
+
+            final DataSet loaded = DataSet.readSnapshot(temp_path);
+
+            assertEquals(original, loaded);
+            assertEquals(original.getStorageLayout(), loaded.getStorageLayout());
+
+            final StringBuilder original_output = new StringBuilder();
+            final StringBuilder loaded_output = new StringBuilder();
+            original.print(original_output);
+            loaded.print(loaded_output);
+            assertEquals(original_output.toString(), loaded_output.toString());
+        }
+    }
+
+    @Test
+    public void snapshotRoundTripPreservesRaggedRecords() throws IOException {
+
+        final DataSet data_set = new DataSet(Arrays.asList("a", "b"));
+        data_set.addRow("1", "2");
+        data_set.addRow("3");
+        data_set.addRow("4", "5", "6");
+
+        final Path temp_path = temporary_folder.newFile().toPath();
+        data_set.writeSnapshot(temp_path);
+
+        assertEquals(data_set, DataSet.readSnapshot(temp_path));
+    }
+
     @Test
     public void dataSetRoundTripGivesExpectedResults() throws IOException {
 
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2021 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module ciesvium.
+ *
+ * ciesvium is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ciesvium is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with ciesvium. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.utilities.dataset;
+
+import org.junit.Test;
+import uk.ac.standrews.cs.utilities.dataset.derived.DerivedDataSet;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class StreamingDataSetTest {
+
+    private static final String NON_EMPTY_DATA_SET_FILE_NAME = "csv_test_data.csv";
+
+    @Test
+    public void streamingOutputIsSameAsInMemoryOutput() throws IOException {
+
+        final DataSet in_memory = new DataSet(getClass().getResourceAsStream(NON_EMPTY_DATA_SET_FILE_NAME));
+        final StreamingDataSet streaming = new StreamingDataSet(getClass().getResourceAsStream(NON_EMPTY_DATA_SET_FILE_NAME));
+
+        final StringBuilder expected = new StringBuilder();
+        derive(in_memory).print(expected);
+
+        final StringBuilder actual = new StringBuilder();
+        derive(streaming).print(actual);
+
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void streamingDataSetCanBeReadIntoMemory() throws IOException {
+
+        final DataSet in_memory = new DataSet(getClass().getResourceAsStream(NON_EMPTY_DATA_SET_FILE_NAME));
+        final StreamingDataSet streaming = new StreamingDataSet(getClass().getResourceAsStream(NON_EMPTY_DATA_SET_FILE_NAME));
+
+        assertEquals(derive(in_memory), derive(streaming).toDataSet());
+    }
+
+    @Test
+    public void streamingDuplicateRemovalIsSameAsInMemory() throws IOException {
+
+        final DataSet in_memory = new DataSet(getClass().getResourceAsStream(NON_EMPTY_DATA_SET_FILE_NAME));
+        final StreamingDataSet streaming = new StreamingDataSet(getClass().getResourceAsStream(NON_EMPTY_DATA_SET_FILE_NAME));
+
+        final List<String> keys = Arrays.asList("col3", "col4");
+
+        assertEquals(in_memory.removeDuplicates(keys, DuplicateRetention.FIRST), streaming.removeDuplicates(keys).toDataSet());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void streamingDataSetCannotBeConsumedTwice() throws IOException {
+
+        final StreamingDataSet streaming = new StreamingDataSet(getClass().getResourceAsStream(NON_EMPTY_DATA_SET_FILE_NAME));
+
+        streaming.print(new StringBuilder());
+        streaming.print(new StringBuilder());
+    }
+
+    private static DataSet derive(final DataSet data_set) {
+
+        return data_set.select((record, d) -> d.getValue(record, "col4").startsWith("jkl")).project(() -> Arrays.asList("col4", "id")).extend(DerivedDataSet.addIdColumn());
+    }
+
+    private static StreamingDataSet derive(final StreamingDataSet data_set) {
+
+        return data_set.select((record, d) -> d.getValue(record, "col4").startsWith("jkl")).project(() -> Arrays.asList("col4", "id")).extend(DerivedDataSet.addIdColumn());
+    }
+}
@@ -17,26 +17,43 @@
 package uk.ac.standrews.cs.utilities.dataset.encrypted;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import uk.ac.standrews.cs.utilities.FileManipulation;
 import uk.ac.standrews.cs.utilities.crypto.CryptoException;
 import uk.ac.standrews.cs.utilities.crypto.SymmetricEncryption;
 import uk.ac.standrews.cs.utilities.dataset.DataSet;
+import uk.ac.standrews.cs.utilities.dataset.ExecutionMode;
+import uk.ac.standrews.cs.utilities.dataset.StreamingDataSet;
 
 import javax.crypto.SecretKey;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class EncryptedDataSetTest {
 
     private static final String NON_EMPTY_DATA_SET_FILE_NAME = "csv_test_data.csv";
     private static final char DELIMITER = ',';
 
+    @Rule
+    public TemporaryFolder temporary_folder = new TemporaryFolder();
+
     private DataSet data_set;
 
     @Before
@@ -68,6 +85,367 @@ public class EncryptedDataSetTest {
         assertEquals(data_sets[0], data_sets[1]);
     }
 
+    @Test
+    public void largeEncryptedDataSetCanBeDecrypted() throws IOException, CryptoException {
+
+        final SecretKey key = SymmetricEncryption.generateRandomKey();
+
+        final EncryptedDataSet new_data_set = new EncryptedDataSet(Arrays.asList("id", "text"));
+        for (int i = 0; i < 50000; i++) {
+            new_data_set.addRow(String.valueOf(i), "value, \"quoted\" " + i);
+        }
+
+        final Path cipher_text_path = temporary_folder.newFile().toPath();
+        new_data_set.print(cipher_text_path, key);
+
+        final StringBuilder encrypted_form = new StringBuilder();
+        new_data_set.print(encrypted_form, key);
+
+        assertEquals(new_data_set, new EncryptedDataSet(cipher_text_path, key));
+        assertEquals(new_data_set, new EncryptedDataSet(new ByteArrayInputStream(encrypted_form.toString().getBytes()), key));
+    }
+
+    @Test
+    public void encryptedFileCanBeStreamed() throws IOException, CryptoException {
+
+        final SecretKey key = SymmetricEncryption.generateRandomKey();
+        final Path cipher_text_path = temporary_folder.newFile().toPath();
+
+        new EncryptedDataSet(data_set).print(cipher_text_path, key);
+
+        final List<List<String>> streamed_records = new ArrayList<>();
+        try (final StreamingDataSet streamed = EncryptedDataSet.openStreaming(cipher_text_path, key)) {
+
+            assertEquals(data_set.getColumnLabels(), streamed.getColumnLabels());
+            for (final List<String> record : streamed) {
+                streamed_records.add(record);
+            }
+        }
+
+        assertEquals(data_set.getRecords(), streamed_records);
+    }
+
+    @Test
+    public void chunkedEncryptedDataSetCanBeDecrypted() throws IOException, CryptoException {
+
+        final SecretKey key = SymmetricEncryption.generateRandomKey();
+        final Path cipher_text_path = temporary_folder.newFile().toPath();
+
+        final EncryptedDataSet new_data_set = new EncryptedDataSet(data_set);
+        new_data_set.print(cipher_text_path, key, EncryptionFormat.CHUNKED);
+
+        assertEquals(new_data_set, new EncryptedDataSet(cipher_text_path, key));
+    }
+
+    @Test
+    public void allFormatsCanBeDecryptedToFile() throws IOException, CryptoException {
+
+        final SecretKey key = SymmetricEncryption.generateRandomKey();
+        final EncryptedDataSet new_data_set = new EncryptedDataSet(data_set);
+
+        for (final EncryptionFormat format : EncryptionFormat.values()) {
+
+            final Path cipher_text_path = temporary_folder.newFile().toPath();
+            final Path plain_text_path = temporary_folder.newFile().toPath();
+
+            new_data_set.print(cipher_text_path, key, format);
+            DecryptingInputStream.decrypt(key, cipher_text_path, plain_text_path);
+
+            assertEquals(new_data_set, new EncryptedDataSet(plain_text_path));
+        }
+    }
+
+    @Test
+    public void chunkedEncryptionDetectsModification() throws IOException, CryptoException {
+
+        final SecretKey key = SymmetricEncryption.generateRandomKey();
+
+        final byte[] plain_text = new byte[10000];
+        for (int i = 0; i < plain_text.length; i++) {
+            plain_text[i] = (byte) i;
+        }
+
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        ChunkedEncryption.encrypt(key, new ByteArrayInputStream(plain_text), encrypted, 100);
+        final byte[] cipher_text = encrypted.toByteArray();
+
+        final ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        ChunkedEncryption.decrypt(key, new ByteArrayInputStream(cipher_text), decrypted);
+        assertArrayEquals(plain_text, decrypted.toByteArray());
+
+        final byte[] modified = cipher_text.clone();
+        modified[modified.length / 2] ^= 1;
+        assertDecryptionFails(key, modified);
+
+        // Remove the final segment: 100 bytes of plain text, 16 bytes of tag and 4 bytes of length.
+        assertDecryptionFails(key, Arrays.copyOf(cipher_text, cipher_text.length - 120));
+
+        // Truncate within the final segment, and within its length.
+        assertDecryptionFails(key, Arrays.copyOf(cipher_text, cipher_text.length - 50));
+        assertDecryptionFails(key, Arrays.copyOf(cipher_text, cipher_text.length - 118));
+    }
+
+    @Test
+    public void indexedEncryptedDataSetCanBeDecrypted() throws IOException, CryptoException {
+
+        final SecretKey key = SymmetricEncryption.generateRandomKey();
+        final Path cipher_text_path = temporary_folder.newFile().toPath();
+
+        final EncryptedDataSet new_data_set = new EncryptedDataSet(data_set);
+        new_data_set.print(cipher_text_path, key, EncryptionFormat.INDEXED);
+
+        assertEquals(new_data_set, new EncryptedDataSet(cipher_text_path, key));
+        assertEquals(new_data_set, new EncryptedDataSet(Files.newInputStream(cipher_text_path), key));
+    }
+
+    @Test
+    public void indexedEncryptedDataSetReadsRangesOfRecords() throws IOException, CryptoException {
+
+        final SecretKey key = SymmetricEncryption.generateRandomKey();
+        final Path cipher_text_path = temporary_folder.newFile().toPath();
+
+        final DataSet numbers = new DataSet(Arrays.asList("number", "square"));
+        for (int i = 0; i < 1000; i++) {
+            numbers.addRow(String.valueOf(i), String.valueOf(i * i));
+        }
+
+        // Small chunks, so that ranges span several chunks.
+        try (final OutputStream out = Files.newOutputStream(cipher_text_path)) {
+            IndexedEncryption.write(numbers.getColumnLabels(), numbers.getRecords(), key, out, 100);
+        }
+
+        final EncryptedDataSet indexed = new EncryptedDataSet(cipher_text_path, key);
+
+        assertEquals(numbers.getColumnLabels(), indexed.getColumnLabels());
+        assertEquals(1000, indexed.getRecords().size());
+        assertEquals(numbers.getRecords().subList(123, 789), indexed.getRecords(123, 789));
+        assertEquals(numbers.getRecords().subList(999, 1000), indexed.getRecords(999, 1000));
+        assertEquals(Arrays.asList("500", "250000"), indexed.getRecords().get(500));
+        assertEquals(numbers.getRecords(), indexed.getRecords());
+
+        indexed.addRow("1000", "1000000");
+        assertEquals(Arrays.asList(Arrays.asList("999", "998001"), Arrays.asList("1000", "1000000")), indexed.getRecords(999, 1001));
+
+        // A change to a stored record would be lost when its chunk was discarded.
+        try {
+            indexed.getRecords().get(500).set(1, "0");
+            fail();
+
+        } catch (final UnsupportedOperationException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void concurrentReadersDecryptEachChunkOnce() throws Exception {
+
+        final SecretKey key = SymmetricEncryption.generateRandomKey();
+        final Path cipher_text_path = temporary_folder.newFile().toPath();
+
+        final DataSet numbers = new DataSet(Arrays.asList("number", "square"));
+        for (int i = 0; i < 10000; i++) {
+            numbers.addRow(String.valueOf(i), String.valueOf(i * i));
+        }
+
+        try (final OutputStream out = Files.newOutputStream(cipher_text_path)) {
+            IndexedEncryption.write(numbers.getColumnLabels(), numbers.getRecords(), key, out, 1000);
+        }
+
+        // Reading the records sequentially decrypts each chunk once.
+        final IndexedRecords sequential_records = (IndexedRecords) new EncryptedDataSet(cipher_text_path, key).getRecords();
+        assertEquals(numbers.getRecords(), sequential_records);
+        final int number_of_chunks = sequential_records.getNumberOfChunksDecrypted();
+
+        final EncryptedDataSet indexed = new EncryptedDataSet(cipher_text_path, key);
+        final IndexedRecords records = (IndexedRecords) indexed.getRecords();
+
+        indexed.setExecutionMode(ExecutionMode.PARALLEL);
+        final DataSet selected = indexed.select((record, d) -> Integer.parseInt(d.getValue(record, "number")) % 2 == 0);
+        assertEquals(5000, selected.getRecords().size());
+        assertEquals(Arrays.asList("9998", "99960004"), selected.getRecords().get(4999));
+
+        // Each of the ranges selected in parallel, of at least 1024 records, may decrypt the chunk at its start again.
+        final int decrypted_by_select = records.getNumberOfChunksDecrypted();
+        assertTrue(decrypted_by_select <= number_of_chunks + 10000 / 1024);
+
+        // More threads than retained chunks, each reading its own range one record at a time, in step.
+        final int number_of_threads = 8;
+        final int range_size = 10000 / number_of_threads;
+        final CyclicBarrier barrier = new CyclicBarrier(number_of_threads);
+        final List<Future<?>> readers = new ArrayList<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(number_of_threads);
+
+        try {
+            for (int i = 0; i < number_of_threads; i++) {
+
+                final int start = i * range_size;
+                readers.add(executor.submit(() -> {
+                    for (int record_index = start; record_index < start + range_size; record_index++) {
+                        assertEquals(String.valueOf(record_index), records.get(record_index).get(0));
+                        barrier.await();
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> reader : readers) {
+                reader.get();
+            }
+
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue(records.getNumberOfChunksDecrypted() - decrypted_by_select <= number_of_chunks + number_of_threads);
+    }
+
+    @Test
+    public void indexedEncryptionDetectsTruncation() throws IOException, CryptoException {
+
+        final SecretKey key = SymmetricEncryption.generateRandomKey();
+        final Path cipher_text_path = temporary_folder.newFile().toPath();
+
+        final DataSet numbers = new DataSet(Arrays.asList("number"));
+        for (int i = 0; i < 1000; i++) {
+            numbers.addRow(String.valueOf(i));
+        }
+
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        IndexedEncryption.write(numbers.getColumnLabels(), numbers.getRecords(), key, encrypted, 100);
+        final byte[] cipher_text = encrypted.toByteArray();
+
+        // Remove the last byte of the position of the index.
+        Files.write(cipher_text_path, Arrays.copyOf(cipher_text, cipher_text.length - 1));
+
+        try {
+            new EncryptedDataSet(cipher_text_path, key);
+            fail();
+
+        } catch (final CryptoException e) {
+            // Expected.
+        }
+
+        try {
+            IndexedEncryption.decrypt(key, new ByteArrayInputStream(Arrays.copyOf(cipher_text, cipher_text.length / 2)), new ByteArrayOutputStream());
+            fail();
+
+        } catch (final CryptoException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void indexedEncryptionDetectsModifiedBlockLength() throws IOException, CryptoException {
+
+        final SecretKey key = SymmetricEncryption.generateRandomKey();
+
+        final DataSet numbers = new DataSet(Arrays.asList("number"));
+        for (int i = 0; i < 1000; i++) {
+            numbers.addRow(String.valueOf(i));
+        }
+
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        IndexedEncryption.write(numbers.getColumnLabels(), numbers.getRecords(), key, encrypted, 100);
+        final byte[] cipher_text = encrypted.toByteArray();
+
+        // The length of the first chunk follows the header and the block type.
+        final int length_position = ChunkedEncryption.HEADER_LENGTH + 1;
+
+        // Negative, too long for the remaining data, and shorter than the chunk.
+        for (final int[] modification : new int[][]{{0, 0x80}, {0, 0x01}, {Integer.BYTES - 1, 0x01}}) {
+
+            final byte[] modified = cipher_text.clone();
+            modified[length_position + modification[0]] ^= modification[1];
+
+            try {
+                new EncryptedDataSet(new ByteArrayInputStream(modified), key);
+                fail();
+
+            } catch (final CryptoException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void cachedKeyIsExtractedOnceAndClearedOnEviction() throws IOException, CryptoException {
+
+        final SecretKey key1 = SymmetricEncryption.generateRandomKey();
+        final SecretKey key2 = SymmetricEncryption.generateRandomKey();
+        final byte[] encrypted_key1 = "key 1".getBytes();
+        final byte[] encrypted_key2 = "key 2".getBytes();
+
+        final List<ExposedKey> extracted = new ArrayList<>();
+        final AESKeyCache cache = new AESKeyCache(1, Duration.ofMinutes(1), encrypted_key -> {
+
+            final ExposedKey key = new ExposedKey((Arrays.equals(encrypted_key, encrypted_key1) ? key1 : key2).getEncoded());
+            extracted.add(key);
+            return key;
+        });
+
+        final SecretKey first = cache.getAESKey(new ByteArrayInputStream(encrypted_key1));
+        final SecretKey second = cache.getAESKey(new ByteArrayInputStream(encrypted_key1));
+
+        assertArrayEquals(key1.getEncoded(), first.getEncoded());
+        assertArrayEquals(key1.getEncoded(), second.getEncoded());
+        assertEquals(1, extracted.size());
+
+        // Evicts the first key.
+        final SecretKey third = cache.getAESKey(new ByteArrayInputStream(encrypted_key2));
+
+        assertArrayEquals(key2.getEncoded(), third.getEncoded());
+        assertEquals(1, cache.size());
+        assertTrue(extracted.get(0).isCleared());
+        assertFalse(extracted.get(1).isCleared());
+
+        // Keys already returned are not affected.
+        assertArrayEquals(key1.getEncoded(), first.getEncoded());
+
+        cache.getAESKey(new ByteArrayInputStream(encrypted_key1));
+        assertEquals(3, extracted.size());
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertTrue(extracted.get(2).isCleared());
+    }
+
+    @Test
+    public void cachedKeyExpires() throws IOException, CryptoException, InterruptedException {
+
+        final SecretKey key = SymmetricEncryption.generateRandomKey();
+        final List<ExposedKey> extracted = new ArrayList<>();
+
+        final AESKeyCache cache = new AESKeyCache(10, Duration.ofMillis(50), encrypted_key -> {
+
+            final ExposedKey extracted_key = new ExposedKey(key.getEncoded());
+            extracted.add(extracted_key);
+            return extracted_key;
+        });
+
+        cache.getAESKey(new ByteArrayInputStream("key".getBytes()));
+        cache.getAESKey(new ByteArrayInputStream("key".getBytes()));
+        assertEquals(1, extracted.size());
+
+        Thread.sleep(200);
+
+        // Cleared in the background, without further use of the cache.
+        assertTrue(extracted.get(0).isCleared());
+
+        assertEquals(0, cache.size());
+        assertArrayEquals(key.getEncoded(), cache.getAESKey(new ByteArrayInputStream("key".getBytes())).getEncoded());
+        assertEquals(2, extracted.size());
+    }
+
+    private static void assertDecryptionFails(final SecretKey key, final byte[] cipher_text) throws IOException {
+
+        try {
+            ChunkedEncryption.decrypt(key, new ByteArrayInputStream(cipher_text), new ByteArrayOutputStream());
+            fail();
+
+        } catch (final CryptoException e) {
+            // Expected.
+        }
+    }
+
     @Test(expected = CryptoException.class)
     public void encryptedDataSetDecryptedWithWrongKeyThrowsException() throws CryptoException, IOException {
 
@@ -97,4 +475,48 @@ public class EncryptedDataSetTest {
 
         return new EncryptedDataSet[]{new_data_set, existing_data_set};
     }
+
+    /**
+     * Key that exposes its key material rather than a copy, so that clearing
+     * of the material held by a cache can be observed.
+     */
+    private static class ExposedKey implements SecretKey {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] key_material;
+
+        ExposedKey(final byte[] key_material) {
+
+            this.key_material = key_material;
+        }
+
+        @Override
+        public String getAlgorithm() {
+
+            return "AES";
+        }
+
+        @Override
+        public String getFormat() {
+
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+
+            return key_material;
+        }
+
+        boolean isCleared() {
+
+            for (final byte b : key_material) {
+                if (b != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }